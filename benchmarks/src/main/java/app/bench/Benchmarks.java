@@ -0,0 +1,23 @@
+package app.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, and unless
+ * a result format is given, also writes the results as JSON to
+ * target/jmh-result.json so CI runs can be compared over time.
+ */
+public class Benchmarks {
+
+    private static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rf") && !jmhArgs.contains("-rff")) {
+            jmhArgs.addAll(List.of("-rf", "json", "-rff", DEFAULT_RESULT_FILE));
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,59 @@
+package app.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import app.redis.RedisPool;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPooled;
+import redis.embedded.RedisServer;
+
+/**
+ * A throwaway Redis server on a free port, with persistence off, plus a pool
+ * configured the same way the API builds its own.
+ */
+final class EmbeddedRedis implements AutoCloseable {
+
+    private final RedisServer server;
+    private final JedisPooled redis;
+
+    private EmbeddedRedis(RedisServer server, JedisPooled redis) {
+        this.server = server;
+        this.redis = redis;
+    }
+
+    static EmbeddedRedis start() throws IOException {
+        return start(false);
+    }
+
+    /** With {@code timed}, the client times every command into Metrics, as the API does by default. */
+    static EmbeddedRedis start(boolean timed) throws IOException {
+        int port = freePort();
+        RedisServer server = RedisServer.newRedisServer()
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        server.start();
+        JedisPooled redis = RedisPool.create(new HostAndPort("localhost", port),
+                DefaultJedisClientConfig.builder().build(), RedisPool.poolConfigFromEnv(), timed);
+        return new EmbeddedRedis(server, redis);
+    }
+
+    JedisPooled client() {
+        return this.redis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.redis.close();
+        this.server.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
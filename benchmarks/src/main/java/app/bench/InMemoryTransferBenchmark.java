@@ -0,0 +1,100 @@
+package app.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.model.Account;
+import app.model.Bank;
+import app.model.User;
+import app.store.InMemoryLedgerStore;
+import app.store.TransferResult;
+
+/**
+ * Transfers against InMemoryLedgerStore, the engine behind WIPAY_STORE=memory:
+ * the same work as TransferBenchmark minus the Redis round trip and the body
+ * parse. Run with -t to see how the lock stripes hold up under contention;
+ * fewer users means more transfers collide on a stripe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryTransferBenchmark {
+
+    // Large enough that no sender runs dry during a run
+    private static final long OPENING_BALANCE_MINOR = 100_000_000_000L;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"64"})
+    public int stripes;
+
+    private InMemoryLedgerStore store;
+
+    /**
+     * Fresh store every iteration, so histories and inboxes do not keep
+     * growing across the run.
+     */
+    @Setup(Level.Iteration)
+    public void seed() {
+        this.store = new InMemoryLedgerStore(this.stripes);
+        for (int i = 0; i < this.users; i++) {
+            User user = new User();
+            user.setUserId(userId(i));
+            user.setFirstName("user" + i);
+            user.setLastName("bench");
+            user.setBalanceMinor(OPENING_BALANCE_MINOR);
+            this.store.createUser(user);
+
+            Bank bank = new Bank();
+            bank.setBankName("Bench Bank");
+            Account account = new Account();
+            account.setAccountId(accountId(i));
+            account.setOwner(user);
+            account.setAccountNumber(String.valueOf(i));
+            account.setBank(bank);
+            account.setBalanceMinor(OPENING_BALANCE_MINOR);
+            this.store.createAccount(account);
+        }
+    }
+
+    @Benchmark
+    public String betweenUsers() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TransferResult result = this.store.transferBetweenUsers(userId(random.nextInt(this.users)),
+                userId(random.nextInt(this.users)), 1 + random.nextInt(10_000), null);
+        return result.getTransactionJson();
+    }
+
+    @Benchmark
+    public String betweenAccounts() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TransferResult result = this.store.transferBetweenAccounts(accountId(random.nextInt(this.users)),
+                accountId(random.nextInt(this.users)), 1 + random.nextInt(10_000), null);
+        return result.getTransactionJson();
+    }
+
+    private static String userId(int i) {
+        return "user" + i + "@wipay";
+    }
+
+    private static String accountId(int i) {
+        return "bench-account-" + i;
+    }
+}
@@ -0,0 +1,123 @@
+package app.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.json.JsonCodec;
+import app.json.RawJson;
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+
+/**
+ * Parse and render cost of the request and response payloads, without HTTP
+ * or Redis. Run with -prof gc to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private byte[] userBody;
+    private byte[] accountBody;
+    private byte[] transferBody;
+
+    private User user;
+    private Account account;
+    private Transaction transaction;
+    private Map<String, Object> report;
+
+    @Setup
+    public void setup() throws IOException {
+        this.userBody = bytes("{\"firstName\":\"Asha\",\"lastName\":\"Rao\",\"balance\":2500.75}");
+        this.accountBody = bytes("{\"userId\":\"asha@wipay\",\"accountNumber\":\"1234567890\","
+                + "\"bankName\":\"State Bank\",\"balance\":1200.5}");
+        this.transferBody = bytes("{\"fromUserId\":\"asha@wipay\",\"toUserId\":\"ravi@wipay\",\"amount\":125.25}");
+
+        this.user = JsonCodec.readUser(this.userBody);
+        this.user.setUserId("asha@wipay");
+        this.user.setCreatedAt(LocalDateTime.now());
+        this.account = JsonCodec.readAccount(this.accountBody);
+        this.account.setAccountId("5f0c6a1e-3b1d-4c55-9a51-0d3f7d2e8b11");
+        this.account.setCreatedAt(LocalDateTime.now());
+        this.transaction = JsonCodec.readTransaction(this.transferBody);
+        this.transaction.setTransactionId("0b7f5d2c-9a3e-4f1b-8c6d-2e4a1f9b7c30");
+        this.transaction.setTimestamp(LocalDateTime.now());
+        this.transaction.setStatus("completed");
+
+        // A full report page: 50 stored transaction records passed through as-is
+        List<RawJson> transactions = new ArrayList<>();
+        String stored = JsonCodec.write(this.transaction);
+        for (int i = 0; i < 50; i++) {
+            transactions.add(new RawJson(stored));
+        }
+        this.report = new HashMap<>();
+        this.report.put("userId", "asha@wipay");
+        this.report.put("totalTransactions", 50L);
+        this.report.put("totalSent", 6262.5);
+        this.report.put("totalReceived", 0.0);
+        this.report.put("currentBalance", 2500.75);
+        this.report.put("transactions", transactions);
+        this.report.put("limit", 50);
+        this.report.put("offset", 0);
+    }
+
+    @Benchmark
+    public User readUser() throws IOException {
+        return JsonCodec.readUser(this.userBody);
+    }
+
+    @Benchmark
+    public Account readAccount() throws IOException {
+        return JsonCodec.readAccount(this.accountBody);
+    }
+
+    @Benchmark
+    public Transaction readTransfer() throws IOException {
+        return JsonCodec.readTransaction(this.transferBody);
+    }
+
+    @Benchmark
+    public String writeUser() {
+        return JsonCodec.write(this.user);
+    }
+
+    @Benchmark
+    public String writeAccount() {
+        return JsonCodec.write(this.account);
+    }
+
+    @Benchmark
+    public String writeTransaction() {
+        return JsonCodec.write(this.transaction);
+    }
+
+    @Benchmark
+    public String writeReportPage() {
+        return JsonCodec.write(this.report);
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+package app.bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop HTTP load against a running API, for comparing the platform
+ * thread pool with WIPAY_VIRTUAL_THREADS=true. Each client thread sends its
+ * next request as soon as the previous one answers; the mix is 80% report
+ * reads and 20% transfers between a fixed set of users it creates first.
+ *
+ * java -cp benchmarks/target/benchmarks.jar app.bench.LoadTest [baseUrl] [clients] [seconds]
+ *
+ * Prints throughput and p50/p99/max latency. Run it against a fresh Redis:
+ * it adds loadtest users and transactions.
+ */
+public class LoadTest {
+
+    private static final int USERS = 200;
+    private static final int WARMUP_SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        HttpClient http = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        for (int i = 0; i < USERS; i++) {
+            send(http, post(baseUrl + "/api/users",
+                    "{\"firstName\":\"Loadtest" + i + "\",\"lastName\":\"L\",\"balance\":1000000}"));
+        }
+
+        System.out.println("Warming up for " + WARMUP_SECONDS + "s");
+        run(http, baseUrl, clients, WARMUP_SECONDS);
+        System.out.println("Measuring " + clients + " clients for " + seconds + "s");
+        Result result = run(http, baseUrl, clients, seconds);
+        System.out.println(result);
+    }
+
+    private static Result run(HttpClient http, String baseUrl, int clients, int seconds)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        AtomicLong errors = new AtomicLong();
+        List<long[]> latencies = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            LatencyLog log = new LatencyLog();
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    HttpRequest request = random.nextInt(5) == 0
+                            ? post(baseUrl + "/api/transfer", "{\"fromUserId\":\"" + userId(random)
+                                    + "\",\"toUserId\":\"" + userId(random) + "\",\"amount\":1.25}")
+                            : HttpRequest.newBuilder(URI.create(baseUrl + "/api/reports/" + userId(random)
+                                    + "?limit=20")).build();
+                    long start = System.nanoTime();
+                    if (!send(http, request)) {
+                        errors.incrementAndGet();
+                    }
+                    log.add(System.nanoTime() - start);
+                }
+                synchronized (latencies) {
+                    latencies.add(log.toArray());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Result(all, errors.get(), seconds);
+    }
+
+    private static boolean send(HttpClient http, HttpRequest request) {
+        try {
+            int status = http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            return status < 500;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static HttpRequest post(String url, String body) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private static String userId(ThreadLocalRandom random) {
+        return "loadtest" + random.nextInt(USERS) + "@wipay";
+    }
+
+    /** Growable array of latencies in nanoseconds, one per client thread. */
+    private static class LatencyLog {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long nanos) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = nanos;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+
+    private static class Result {
+        private final long[] sortedNanos;
+        private final long errors;
+        private final int seconds;
+
+        Result(long[] sortedNanos, long errors, int seconds) {
+            this.sortedNanos = sortedNanos;
+            this.errors = errors;
+            this.seconds = seconds;
+        }
+
+        private double percentileMillis(double p) {
+            if (this.sortedNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100 * this.sortedNanos.length) - 1;
+            return this.sortedNanos[Math.max(0, index)] / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d throughput=%.0f req/s p50=%.2fms p99=%.2fms max=%.2fms",
+                    this.sortedNanos.length, this.errors, (double) this.sortedNanos.length / this.seconds,
+                    percentileMillis(50), percentileMillis(99), percentileMillis(100));
+        }
+    }
+}
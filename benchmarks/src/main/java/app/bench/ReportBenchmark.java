@@ -0,0 +1,116 @@
+package app.bench;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.json.JsonCodec;
+import app.model.Transaction;
+import app.model.User;
+import app.redis.EntityHashes;
+import app.redis.RedisKeys;
+import app.redis.Reports;
+import app.util.Money;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.JedisPooled;
+
+/**
+ * /api/reports/{userId} for a user with 10k, 100k and 1M transactions:
+ * build the report and render it, as the handler does. Both the first page
+ * and a page halfway through the history are measured.
+ *
+ * The history is written straight into the same keys the transfer scripts
+ * maintain, which is much faster than running a million transfers. The 1M
+ * case needs roughly 0.5 GB for the Redis server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+    private static final String USER_ID = "asha@wipay";
+    private static final String COUNTERPARTY_ID = "ravi@wipay";
+    private static final int PAGE_SIZE = 50;
+    private static final int BATCH = 10_000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int transactions;
+
+    private EmbeddedRedis server;
+    private JedisPooled redis;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        this.server = EmbeddedRedis.start();
+        this.redis = this.server.client();
+
+        User user = new User();
+        user.setUserId(USER_ID);
+        user.setFirstName("Asha");
+        user.setLastName("Rao");
+        user.setBalanceMinor(100_000_000);
+        this.redis.hset(RedisKeys.user(USER_ID), EntityHashes.userFields(user));
+
+        LocalDateTime start = LocalDateTime.now().minusSeconds(this.transactions);
+        long sentMinor = 0;
+        for (int from = 0; from < this.transactions; from += BATCH) {
+            int to = Math.min(from + BATCH, this.transactions);
+            Map<String, String> records = new HashMap<>();
+            Map<String, Double> index = new HashMap<>();
+            for (int i = from; i < to; i++) {
+                Transaction transaction = new Transaction();
+                transaction.setTransactionId("txn-" + i);
+                transaction.setFromUserId(USER_ID);
+                transaction.setToUserId(COUNTERPARTY_ID);
+                transaction.setAmountMinor((1 + i % 500) * Money.MINOR_PER_MAJOR);
+                transaction.setTimestamp(start.plusSeconds(i));
+                transaction.setStatus("completed");
+                records.put(transaction.getTransactionId(), JsonCodec.write(transaction));
+                index.put(transaction.getTransactionId(), (double) i);
+                sentMinor += transaction.getAmountMinor();
+            }
+            try (AbstractPipeline pipeline = this.redis.pipelined()) {
+                pipeline.hset(RedisKeys.transactions(USER_ID), records);
+                pipeline.zadd(RedisKeys.transactionsByUser(USER_ID), index);
+                pipeline.sync();
+            }
+        }
+        this.redis.hset(RedisKeys.reportTotals(USER_ID), Map.of(
+                "sentMinor", String.valueOf(sentMinor),
+                "totalTransactions", String.valueOf(this.transactions)));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        this.server.close();
+    }
+
+    @Benchmark
+    public String firstPage() {
+        return JsonCodec.write(Reports.forUser(this.redis, USER_ID, PAGE_SIZE, 0));
+    }
+
+    @Benchmark
+    public String middlePage() {
+        return JsonCodec.write(Reports.forUser(this.redis, USER_ID, PAGE_SIZE, this.transactions / 2));
+    }
+}
@@ -0,0 +1,176 @@
+package app.bench;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.json.JsonCodec;
+import app.metrics.Metrics;
+import app.model.Account;
+import app.model.Bank;
+import app.model.Transaction;
+import app.model.User;
+import app.redis.EntityHashes;
+import app.redis.RedisKeys;
+import app.redis.TransferScripts;
+import app.store.TransferResult;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.JedisPooled;
+
+/**
+ * What /api/transfer and /api/transfer-account do per request, minus HTTP:
+ * parse the body, run the transfer script against a real Redis server, and
+ * take the stored transaction JSON back. Pairs are drawn at random from
+ * {@code users} users so contention can be tuned; use -t to add threads.
+ *
+ * With {@code metrics} the Redis client times its commands and each transfer
+ * is recorded as the API records a request, so the two settings side by side
+ * give the cost of the instrumentation on the transfer path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    // Large enough that no sender runs dry during a run
+    private static final long OPENING_BALANCE_MINOR = 100_000_000_000L;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private EmbeddedRedis server;
+    private JedisPooled redis;
+    private byte[][] userBodies;
+    private byte[][] accountBodies;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        this.server = EmbeddedRedis.start(this.metrics);
+        this.redis = this.server.client();
+        TransferScripts.preload(this.redis);
+
+        // A handful of ready-made request bodies, so the parse cost is realistic
+        this.userBodies = new byte[64][];
+        this.accountBodies = new byte[64][];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < this.userBodies.length; i++) {
+            int from = random.nextInt(this.users);
+            int to = random.nextInt(this.users);
+            String amount = (1 + random.nextInt(100)) + "." + random.nextInt(10, 100);
+            this.userBodies[i] = ("{\"fromUserId\":\"" + userId(from) + "\",\"toUserId\":\"" + userId(to)
+                    + "\",\"amount\":" + amount + "}").getBytes();
+            this.accountBodies[i] = ("{\"fromAccountId\":\"" + accountId(from) + "\",\"toAccountId\":\""
+                    + accountId(to) + "\",\"amount\":" + amount + "}").getBytes();
+        }
+    }
+
+    /**
+     * Fresh data every iteration, so transaction history and notification
+     * lists do not keep growing across the run.
+     */
+    @Setup(Level.Iteration)
+    public void seed() {
+        this.redis.flushAll();
+        try (AbstractPipeline pipeline = this.redis.pipelined()) {
+            for (int i = 0; i < this.users; i++) {
+                User user = new User();
+                user.setUserId(userId(i));
+                user.setFirstName("user" + i);
+                user.setLastName("bench");
+                user.setBalanceMinor(OPENING_BALANCE_MINOR);
+                pipeline.hset(RedisKeys.user(user.getUserId()), EntityHashes.userFields(user));
+                pipeline.sadd(RedisKeys.userIds(RedisKeys.idShard(user.getUserId())), user.getUserId());
+
+                Bank bank = new Bank();
+                bank.setBankName("Bench Bank");
+                Account account = new Account();
+                account.setAccountId(accountId(i));
+                account.setOwner(user);
+                account.setAccountNumber(String.valueOf(i));
+                account.setBank(bank);
+                account.setBalanceMinor(OPENING_BALANCE_MINOR);
+                pipeline.hset(RedisKeys.account(user.getUserId(), account.getAccountId()),
+                        EntityHashes.accountFields(account));
+                pipeline.set(RedisKeys.accountOwner(account.getAccountId()), user.getUserId());
+                pipeline.sadd(RedisKeys.accountIds(RedisKeys.idShard(account.getAccountId())),
+                        account.getAccountId());
+                pipeline.sadd(RedisKeys.accountsByUser(user.getUserId()), account.getAccountId());
+            }
+            pipeline.sync();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        this.server.close();
+    }
+
+    @Benchmark
+    public String betweenUsers() throws IOException {
+        long start = System.nanoTime();
+        Transaction request = JsonCodec.readTransaction(nextBody(this.userBodies));
+        TransferResult result = TransferScripts.betweenUsers(this.redis, request.getFromUserId(),
+                request.getToUserId(), request.getAmountMinor(), UUID.randomUUID().toString(),
+                LocalDateTime.now());
+        record("user", "/api/transfer", result, start);
+        return result.getTransactionJson();
+    }
+
+    @Benchmark
+    public String betweenAccounts() throws IOException {
+        long start = System.nanoTime();
+        Transaction request = JsonCodec.readTransaction(nextBody(this.accountBodies));
+        // The API finds owners in its cache of the account directory; here they follow from the ids
+        TransferResult result = TransferScripts.betweenAccounts(this.redis, request.getFromAccountId(),
+                ownerOf(request.getFromAccountId()), request.getToAccountId(), ownerOf(request.getToAccountId()),
+                request.getAmountMinor(), UUID.randomUUID().toString(), LocalDateTime.now());
+        record("account", "/api/transfer-account", result, start);
+        return result.getTransactionJson();
+    }
+
+    // What WiPayApi records per transfer request
+    private void record(String kind, String route, TransferResult result, long start) {
+        if (this.metrics) {
+            Metrics.transfer(kind, result.getStatus());
+            Metrics.request("POST", route, 201, System.nanoTime() - start);
+        }
+    }
+
+    private static byte[] nextBody(byte[][] bodies) {
+        return bodies[ThreadLocalRandom.current().nextInt(bodies.length)];
+    }
+
+    private static String userId(int i) {
+        return "user" + i + "@wipay";
+    }
+
+    private static String accountId(int i) {
+        return "bench-account-" + i;
+    }
+
+    private static String ownerOf(String accountId) {
+        return userId(Integer.parseInt(accountId.substring("bench-account-".length())));
+    }
+}
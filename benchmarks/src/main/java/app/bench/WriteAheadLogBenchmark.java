@@ -0,0 +1,74 @@
+package app.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app.store.WriteAheadLog;
+
+/**
+ * Durable appends to the journal behind WIPAY_JOURNAL_DIR: each operation
+ * appends a transfer-sized record and waits for its group commit. With
+ * enough writers, throughput should follow the group size, since one fsync
+ * covers a whole group. Point java.io.tmpdir at the disk you care about.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class WriteAheadLogBenchmark {
+
+    private static final byte[] RECORD = new byte[220];
+
+    @Param({"1", "16", "64"})
+    public int group;
+
+    @Param({"2"})
+    public int flushMillis;
+
+    private Path dir;
+    private WriteAheadLog log;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        this.dir = Files.createTempDirectory("wal-bench");
+        this.log = WriteAheadLog.open(this.dir, 64 << 20, this.flushMillis, this.group, 0, (lsn, type, payload) -> {
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        this.log.close();
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long appendDurably() {
+        long lsn = this.log.append(WriteAheadLog.TRANSFER, RECORD);
+        this.log.awaitDurable(lsn);
+        return lsn;
+    }
+}
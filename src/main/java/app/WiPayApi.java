@@ -1,34 +1,86 @@
 package app;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-
-import com.google.gson.Gson;
-
+import java.util.function.BiFunction;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import app.json.CodecJsonMapper;
+import app.json.JsonCodec;
+import app.json.RawJson;
+import app.metrics.Metrics;
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+import app.redis.Contacts;
+import app.redis.RedisPool;
+import app.redis.Rollups;
+import app.store.IdempotencyStore;
+import app.store.LedgerStore;
+import app.store.Page;
+import app.store.RedisLedgerStore;
+import app.store.TransferResult;
+import app.util.Money;
 import io.javalin.Javalin;
-import redis.clients.jedis.Jedis;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
 
 /**
- * WiPay Banking API - Minimal OOP, simple Redis storage
+ * WiPay Banking API - Minimal OOP, Redis or in-memory storage
  * Features: Users, Bank Accounts, Transfers, Notifications, Reports
  */
 public class WiPayApi {
 
-    private static final Gson gson = new Gson();
-    private static final String USERS_KEY = "wipay:users";
-    private static final String ACCOUNTS_KEY = "wipay:accounts";
-    private static final String TRANSACTIONS_KEY = "wipay:transactions";
-    private static final String NOTIFICATIONS_KEY = "wipay:notifications";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int STREAM_WINDOW = 500;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final String STATEMENT_CSV_HEADER =
+            "id,timestamp,direction,counterparty,fromAccountId,toAccountId,amount,status\r\n";
+
+    private static final String INVALID_TRANSFER_ID = "id must be 1-100 letters, digits or . _ : -";
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final String TRANSFER_ABORTED = "Transfer did not complete in time and was refunded";
+    private static final String DUPLICATE_ID = "Transaction id is already used by another transfer";
+
+    // Opt-in: run handlers on virtual threads instead of Jetty's thread pool (Java 21+)
+    private static final boolean VIRTUAL_THREADS = virtualThreadsFromEnv();
+
+    // Redis by default, or the in-process engine with WIPAY_STORE=memory
+    private static LedgerStore store;
 
     public static void main(String[] args) {
         int port = getPort();
-        Javalin app = createJavalinApp(port);
+        start(LedgerStore.fromEnv(VIRTUAL_THREADS), port);
         System.out.println("🚀 WiPay API running at http://localhost:" + port);
+    }
+
+    // Also how the tests start the API, on a store of their own and port 0
+    static Javalin start(LedgerStore ledger, int port) {
+        store = ledger;
+        Javalin app = createJavalinApp(port);
         setupRoutes(app);
+        return app;
     }
 
     private static int getPort() {
@@ -36,357 +88,587 @@ public class WiPayApi {
         return portEnv != null ? Integer.parseInt(portEnv) : 8080;
     }
 
-    private static Jedis getRedisConnection() {
-        String redisUrl = System.getenv("REDIS_URL");
-        if (redisUrl != null && !redisUrl.isEmpty()) {
-            // Parse Railway Redis URL format: redis://:password@host:port
-            try {
-                java.net.URI uri = new java.net.URI(redisUrl);
-                String host = uri.getHost();
-                int port = uri.getPort() != -1 ? uri.getPort() : 6379;
-                String password = uri.getUserInfo() != null ? uri.getUserInfo().split(":")[1] : null;
-
-                Jedis jedis = new Jedis(host, port);
-                if (password != null && !password.isEmpty()) {
-                    jedis.auth(password);
-                }
-                return jedis;
-            } catch (Exception e) {
-                System.err.println("Failed to parse REDIS_URL, using localhost");
-            }
+    private static boolean virtualThreadsFromEnv() {
+        if (!Boolean.parseBoolean(System.getenv("WIPAY_VIRTUAL_THREADS"))) {
+            return false;
+        }
+        if (Runtime.version().feature() < 21) {
+            System.err.println("WIPAY_VIRTUAL_THREADS needs Java 21+, using the platform thread pool");
+            return false;
         }
-        // Fallback to localhost
-        return new Jedis("localhost", 6379);
+        return true;
     }
 
     private static Javalin createJavalinApp(int port) {
         return Javalin.create(config -> {
+            config.useVirtualThreads = VIRTUAL_THREADS;
             config.bundledPlugins.enableCors(cors -> cors.addRule(corsConfig -> corsConfig.anyHost()));
+            config.jsonMapper(new CodecJsonMapper());
+            // Called once the response is out, with Javalin's own timing of the request
+            config.requestLogger.http((ctx, ms) -> Metrics.request(ctx.method().name(), route(ctx),
+                    ctx.status().getCode(), (long) (ms * 1_000_000)));
+            config.events(events -> events.serverStopped(() -> store.close()));
         }).start("0.0.0.0", port);
     }
 
     private static void setupRoutes(Javalin app) {
         // ===== HEALTH CHECK =====
         app.get("/api/ping", ctx -> ctx.json(Map.of("status", "OK")));
+        app.get("/api/health/store", ctx -> ctx.json(store.stats()));
+        app.get("/metrics", ctx -> ctx.contentType("text/plain; version=0.0.4; charset=utf-8")
+                .result(Metrics.prometheus()));
+        if (store instanceof RedisLedgerStore redisStore) {
+            app.get("/api/health/redis", ctx -> ctx.json(RedisPool.stats(redisStore.redis())));
+            app.get("/api/health/cache", ctx -> ctx.json(redisStore.cache().stats()));
+        }
+
+        app.exception(JsonProcessingException.class,
+                (e, ctx) -> ctx.status(400).json(Map.of("error", "Invalid JSON")));
+        // Amounts with more than two decimals or beyond a long's range of paise
+        app.exception(NumberFormatException.class,
+                (e, ctx) -> ctx.status(400).json(Map.of("error", "Invalid amount")));
+        app.exception(ArithmeticException.class,
+                (e, ctx) -> ctx.status(400).json(Map.of("error", "Amount out of range")));
 
         // ===== USER ENDPOINTS =====
         app.post("/api/users", ctx -> {
-            Map<String, Object> body = gson.fromJson(ctx.body(), Map.class);
-            String firstName = (String) body.get("firstName");
-            String lastName = (String) body.get("lastName");
-            double balance = ((Number) body.getOrDefault("balance", 0)).doubleValue();
-
-            String userId = firstName.toLowerCase() + "@wipay";
-            Map<String, Object> user = new HashMap<>();
-            user.put("id", userId);
-            user.put("firstName", firstName);
-            user.put("lastName", lastName);
-            user.put("balance", balance);
-            user.put("createdAt", LocalDateTime.now().toString());
-
-            try (Jedis jedis = getRedisConnection()) {
-                jedis.hset(USERS_KEY, userId, gson.toJson(user));
-            }
+            User user = JsonCodec.readUser(ctx.bodyAsBytes());
+            String userId = user.getFirstName().toLowerCase() + "@wipay";
+            user.setUserId(userId);
+            user.setCreatedAt(LocalDateTime.now());
+            store.createUser(user);
             ctx.status(201).json(user);
         });
 
-        app.get("/api/users", ctx -> {
-            try (Jedis jedis = getRedisConnection()) {
-                Map<String, String> users = jedis.hgetAll(USERS_KEY);
-                List<Map<String, Object>> userList = new ArrayList<>();
-                for (String userJson : users.values()) {
-                    userList.add(gson.fromJson(userJson, Map.class));
-                }
-                ctx.json(userList);
-            }
-        });
+        app.get("/api/users", ctx -> respondList(ctx, store::users));
 
         app.get("/api/users/{userId}", ctx -> {
-            String userId = ctx.pathParam("userId");
-            try (Jedis jedis = getRedisConnection()) {
-                String userJson = jedis.hget(USERS_KEY, userId);
-                if (userJson == null) {
-                    ctx.status(404).json(Map.of("error", "User not found"));
-                } else {
-                    ctx.json(gson.fromJson(userJson, Map.class));
-                }
+            User user = store.user(ctx.pathParam("userId"));
+            if (user == null) {
+                ctx.status(404).json(Map.of("error", "User not found"));
+            } else {
+                ctx.json(user);
             }
         });
 
         // ===== BANK ACCOUNTS ENDPOINTS =====
         app.post("/api/accounts", ctx -> {
-            Map<String, Object> body = gson.fromJson(ctx.body(), Map.class);
-            String userId = (String) body.get("userId");
-            String accountNumber = (String) body.get("accountNumber");
-            String bankName = (String) body.get("bankName");
-            double balance = ((Number) body.getOrDefault("balance", 0)).doubleValue();
-
-            Map<String, Object> account = new HashMap<>();
-            account.put("id", UUID.randomUUID().toString());
-            account.put("userId", userId);
-            account.put("accountNumber", accountNumber);
-            account.put("bankName", bankName);
-            account.put("balance", balance);
-            account.put("createdAt", LocalDateTime.now().toString());
-
-            try (Jedis jedis = getRedisConnection()) {
-                jedis.hset(ACCOUNTS_KEY, account.get("id").toString(), gson.toJson(account));
-                // Update user balance
-                String userJson = jedis.hget(USERS_KEY, userId);
-                if (userJson != null) {
-                    Map<String, Object> user = gson.fromJson(userJson, Map.class);
-                    user.put("balance", balance);
-                    jedis.hset(USERS_KEY, userId, gson.toJson(user));
-                }
+            Account account = JsonCodec.readAccount(ctx.bodyAsBytes());
+            if (account.getOwnerUserId() == null) {
+                ctx.status(400).json(Map.of("error", "userId is required"));
+                return;
             }
+            account.setAccountId(UUID.randomUUID().toString());
+            account.setCreatedAt(LocalDateTime.now());
+            store.createAccount(account);
             ctx.status(201).json(account);
         });
 
-        app.get("/api/accounts", ctx -> {
-            try (Jedis jedis = getRedisConnection()) {
-                Map<String, String> accounts = jedis.hgetAll(ACCOUNTS_KEY);
-                List<Map<String, Object>> accountList = new ArrayList<>();
-                for (String accountJson : accounts.values()) {
-                    accountList.add(gson.fromJson(accountJson, Map.class));
-                }
-                ctx.json(accountList);
-            }
-        });
+        app.get("/api/accounts", ctx -> respondList(ctx, store::accounts));
 
-        app.get("/api/accounts/{userId}", ctx -> {
-            String userId = ctx.pathParam("userId");
-            try (Jedis jedis = getRedisConnection()) {
-                Map<String, String> accounts = jedis.hgetAll(ACCOUNTS_KEY);
-                List<Map<String, Object>> userAccounts = new ArrayList<>();
-                for (String accountJson : accounts.values()) {
-                    Map<String, Object> acc = gson.fromJson(accountJson, Map.class);
-                    if (userId.equals(acc.get("userId"))) {
-                        userAccounts.add(acc);
-                    }
-                }
-                ctx.json(userAccounts);
-            }
-        });
+        app.get("/api/accounts/{userId}", ctx -> ctx.json(store.accountsOf(ctx.pathParam("userId"))));
 
         // ===== CONTACTS ENDPOINT =====
         app.get("/api/contacts", ctx -> {
-            try (Jedis jedis = getRedisConnection()) {
-                Map<String, String> users = jedis.hgetAll(USERS_KEY);
-                List<Map<String, Object>> contacts = new ArrayList<>();
-                for (String userJson : users.values()) {
-                    Map<String, Object> user = gson.fromJson(userJson, Map.class);
-                    Map<String, Object> contact = new HashMap<>();
-                    contact.put("id", user.get("id"));
-                    contact.put("name", user.get("firstName") + " " + user.get("lastName"));
-                    contact.put("paymentId", user.get("id"));
-                    contacts.add(contact);
-                }
-                ctx.json(contacts);
+            String query = ctx.queryParam("q");
+            if (query == null) {
+                respondList(ctx, (cursor, limit) -> {
+                    Page<User> users = store.users(cursor, limit);
+                    return new Page<>(contacts(users.getItems()), users.getNextCursor());
+                });
+                return;
+            }
+            if (Contacts.words(query).isEmpty()) {
+                ctx.status(400).json(Map.of("error", "q must not be blank"));
+                return;
             }
+            int limit = Math.max(1, Math.min(ctx.queryParamAsClass("limit", Integer.class)
+                    .getOrDefault(Contacts.DEFAULT_LIMIT), Contacts.MAX_LIMIT));
+            ctx.json(contacts(store.searchContacts(query, limit)));
         });
 
         // ===== TRANSFER/TRANSACTION ENDPOINT =====
         app.post("/api/transfer", ctx -> {
-            Map<String, Object> body = gson.fromJson(ctx.body(), Map.class);
-            String fromUserId = (String) body.get("fromUserId");
-            String toUserId = (String) body.get("toUserId");
-            double amount = ((Number) body.get("amount")).doubleValue();
-
-            try (Jedis jedis = getRedisConnection()) {
-                // Get sender
-                String senderJson = jedis.hget(USERS_KEY, fromUserId);
-                if (senderJson == null) {
-                    ctx.status(404).json(Map.of("error", "Sender not found"));
+            Transaction request = JsonCodec.readTransaction(ctx.bodyAsBytes());
+            idempotent(ctx, "transfer", request.getFromUserId(), keyTransferId -> {
+                String fromUserId = request.getFromUserId();
+                String toUserId = request.getToUserId();
+                long amount = request.getAmountMinor();
+
+                if (amount <= 0) {
+                    Metrics.transfer("user", "INVALID");
+                    ctx.status(400).json(Map.of("error", "Amount must be positive"));
                     return;
                 }
-
-                // Get receiver
-                String receiverJson = jedis.hget(USERS_KEY, toUserId);
-                if (receiverJson == null) {
-                    ctx.status(404).json(Map.of("error", "Receiver not found"));
+                if (!validTransferId(request.getTransactionId())) {
+                    Metrics.transfer("user", "INVALID");
+                    ctx.status(400).json(Map.of("error", INVALID_TRANSFER_ID));
                     return;
                 }
 
-                @SuppressWarnings("unchecked")
-                Map<String, Object> sender = gson.fromJson(senderJson, Map.class);
-                @SuppressWarnings("unchecked")
-                Map<String, Object> receiver = gson.fromJson(receiverJson, Map.class);
-
-                double senderBalance = ((Number) sender.get("balance")).doubleValue();
-                double receiverBalance = ((Number) receiver.get("balance")).doubleValue();
-
-                // Check balance
-                if (senderBalance < amount) {
-                    ctx.status(400).json(Map.of("error", "Insufficient balance"));
-                    return;
+                // Balance check, both updates and the transaction record happen
+                // atomically, or across cluster slots in phases that always
+                // complete or refund; a retry with the same id never moves money
+                // twice. Notifications are stored after responding
+                TransferResult result = store.transferBetweenUsers(fromUserId, toUserId, amount,
+                        request.getTransactionId() != null ? request.getTransactionId() : keyTransferId);
+                Metrics.transfer("user", outcome(result));
+                switch (result.getStatus()) {
+                    case "SENDER_NOT_FOUND" -> ctx.status(404).json(Map.of("error", "Sender not found"));
+                    case "RECEIVER_NOT_FOUND" -> ctx.status(404).json(Map.of("error", "Receiver not found"));
+                    case "INSUFFICIENT_BALANCE" -> ctx.status(400).json(Map.of("error", "Insufficient balance"));
+                    case "DUPLICATE_ID" -> ctx.status(409).json(Map.of("error", DUPLICATE_ID));
+                    case "ABORTED" -> ctx.status(409).json(Map.of("error", TRANSFER_ABORTED));
+                    default -> ctx.status(201).contentType(ContentType.APPLICATION_JSON)
+                            .result(result.getTransactionJson());
                 }
-
-                // Create transaction
-                Map<String, Object> transaction = new HashMap<>();
-                String txnId = UUID.randomUUID().toString();
-                transaction.put("id", txnId);
-                transaction.put("fromUserId", fromUserId);
-                transaction.put("toUserId", toUserId);
-                transaction.put("amount", amount);
-                transaction.put("timestamp", LocalDateTime.now().toString());
-                transaction.put("status", "completed");
-
-                // Update balances
-                sender.put("balance", senderBalance - amount);
-                receiver.put("balance", receiverBalance + amount);
-
-                // Save all changes
-                jedis.hset(USERS_KEY, fromUserId, gson.toJson(sender));
-                jedis.hset(USERS_KEY, toUserId, gson.toJson(receiver));
-                jedis.hset(TRANSACTIONS_KEY, txnId, gson.toJson(transaction));
-
-                // Create notifications
-                String notificationSender = String.format("%s sent ₹%.2f to %s",
-                        fromUserId, amount, toUserId);
-                String notificationReceiver = String.format("Received ₹%.2f from %s",
-                        amount, fromUserId);
-
-                jedis.lpush(NOTIFICATIONS_KEY + ":" + fromUserId,
-                        gson.toJson(
-                                Map.of("message", notificationSender, "timestamp", LocalDateTime.now().toString())));
-                jedis.lpush(NOTIFICATIONS_KEY + ":" + toUserId,
-                        gson.toJson(
-                                Map.of("message", notificationReceiver, "timestamp", LocalDateTime.now().toString())));
-
-                ctx.status(201).json(transaction);
-            }
+            });
         });
 
         // ===== ACCOUNT-SPECIFIC TRANSFER ENDPOINT =====
         app.post("/api/transfer-account", ctx -> {
-            Map<String, Object> body = gson.fromJson(ctx.body(), Map.class);
-            String fromAccountId = (String) body.get("fromAccountId");
-            String toAccountId = (String) body.get("toAccountId");
-            double amount = ((Number) body.get("amount")).doubleValue();
-
-            try (Jedis jedis = getRedisConnection()) {
-                // Get sender account
-                String fromAccJson = jedis.hget(ACCOUNTS_KEY, fromAccountId);
-                if (fromAccJson == null) {
-                    ctx.status(404).json(Map.of("error", "Sender account not found"));
+            Transaction request = JsonCodec.readTransaction(ctx.bodyAsBytes());
+            idempotent(ctx, "transfer-account", request.getFromAccountId(), keyTransferId -> {
+                String fromAccountId = request.getFromAccountId();
+                String toAccountId = request.getToAccountId();
+                long amount = request.getAmountMinor();
+
+                if (amount <= 0) {
+                    Metrics.transfer("account", "INVALID");
+                    ctx.status(400).json(Map.of("error", "Amount must be positive"));
                     return;
                 }
-
-                // Get receiver account
-                String toAccJson = jedis.hget(ACCOUNTS_KEY, toAccountId);
-                if (toAccJson == null) {
-                    ctx.status(404).json(Map.of("error", "Receiver account not found"));
+                if (!validTransferId(request.getTransactionId())) {
+                    Metrics.transfer("account", "INVALID");
+                    ctx.status(400).json(Map.of("error", INVALID_TRANSFER_ID));
                     return;
                 }
 
-                @SuppressWarnings("unchecked")
-                Map<String, Object> fromAccount = gson.fromJson(fromAccJson, Map.class);
-                @SuppressWarnings("unchecked")
-                Map<String, Object> toAccount = gson.fromJson(toAccJson, Map.class);
-
-                double fromBalance = ((Number) fromAccount.get("balance")).doubleValue();
-                double toBalance = ((Number) toAccount.get("balance")).doubleValue();
+                TransferResult result = store.transferBetweenAccounts(fromAccountId, toAccountId, amount,
+                        request.getTransactionId() != null ? request.getTransactionId() : keyTransferId);
+                Metrics.transfer("account", outcome(result));
+                switch (result.getStatus()) {
+                    case "SENDER_NOT_FOUND" -> ctx.status(404).json(Map.of("error", "Sender account not found"));
+                    case "RECEIVER_NOT_FOUND" -> ctx.status(404).json(Map.of("error", "Receiver account not found"));
+                    case "INSUFFICIENT_BALANCE" ->
+                        ctx.status(400).json(Map.of("error", "Insufficient balance in sender account"));
+                    case "DUPLICATE_ID" -> ctx.status(409).json(Map.of("error", DUPLICATE_ID));
+                    case "ABORTED" -> ctx.status(409).json(Map.of("error", TRANSFER_ABORTED));
+                    default -> ctx.status(201).contentType(ContentType.APPLICATION_JSON)
+                            .result(result.getTransactionJson());
+                }
+            });
+        });
 
-                // Check balance
-                if (fromBalance < amount) {
-                    ctx.status(400).json(Map.of("error", "Insufficient balance in sender account"));
+        // ===== BATCH TRANSFER ENDPOINT =====
+        app.post("/api/transfers/batch", ctx -> {
+            List<Transaction> transfers = JsonCodec.readTransactions(ctx.bodyAsBytes());
+            idempotent(ctx, "transfers-batch", senders(transfers), keyTransferId -> {
+                if (transfers.isEmpty() || transfers.size() > MAX_BATCH_SIZE) {
+                    ctx.status(400).json(Map.of("error", "A batch holds 1 to " + MAX_BATCH_SIZE + " transfers"));
                     return;
                 }
 
-                // Create transaction
-                Map<String, Object> transaction = new HashMap<>();
-                String txnId = UUID.randomUUID().toString();
-                transaction.put("id", txnId);
-                transaction.put("fromAccountId", fromAccountId);
-                transaction.put("toAccountId", toAccountId);
-                transaction.put("fromUserId", fromAccount.get("userId"));
-                transaction.put("toUserId", toAccount.get("userId"));
-                transaction.put("amount", amount);
-                transaction.put("timestamp", LocalDateTime.now().toString());
-                transaction.put("status", "completed");
-
-                // Update account balances
-                fromAccount.put("balance", fromBalance - amount);
-                toAccount.put("balance", toBalance + amount);
-
-                // Save all changes
-                jedis.hset(ACCOUNTS_KEY, fromAccountId, gson.toJson(fromAccount));
-                jedis.hset(ACCOUNTS_KEY, toAccountId, gson.toJson(toAccount));
-                jedis.hset(TRANSACTIONS_KEY, txnId, gson.toJson(transaction));
-
-                // Create notifications
-                String fromUserId = (String) fromAccount.get("userId");
-                String toUserId = (String) toAccount.get("userId");
-
-                String notificationSender = String.format("Sent: ₹%.2f to %s", amount, toUserId);
-                String notificationReceiver = String.format("Received: ₹%.2f from %s", amount, fromUserId);
-
-                jedis.lpush(NOTIFICATIONS_KEY + ":" + fromUserId,
-                        gson.toJson(
-                                Map.of("message", notificationSender, "timestamp", LocalDateTime.now().toString())));
-                jedis.lpush(NOTIFICATIONS_KEY + ":" + toUserId,
-                        gson.toJson(
-                                Map.of("message", notificationReceiver, "timestamp", LocalDateTime.now().toString())));
-
-                ctx.status(201).json(transaction);
-            }
+                // Validate everything first; only valid items reach the store
+                List<Map<String, Object>> results = new ArrayList<>(transfers.size());
+                List<Transaction> valid = new ArrayList<>();
+                List<Map<String, Object>> pending = new ArrayList<>();
+                for (int i = 0; i < transfers.size(); i++) {
+                    Map<String, Object> item = new LinkedHashMap<>();
+                    item.put("index", i);
+                    String error = batchItemError(transfers.get(i));
+                    // Every item gets its id here, so one that ends in ERROR can be retried with it
+                    if (error == null && transfers.get(i).getTransactionId() == null) {
+                        transfers.get(i).setTransactionId(
+                                keyTransferId != null ? keyTransferId + ":" + i : UUID.randomUUID().toString());
+                    }
+                    if (error != null) {
+                        Metrics.transfer(transfers.get(i).getFromAccountId() != null ? "account" : "user", "INVALID");
+                        item.put("status", "INVALID");
+                        item.put("error", error);
+                    } else {
+                        valid.add(transfers.get(i));
+                        pending.add(item);
+                    }
+                    results.add(item);
+                }
+
+                // One pipelined round trip on Redis; each transfer is still atomic on its own
+                List<TransferResult> outcomes = store.transferBatch(valid);
+                int succeeded = 0;
+                for (int i = 0; i < outcomes.size(); i++) {
+                    TransferResult outcome = outcomes.get(i);
+                    Map<String, Object> item = pending.get(i);
+                    Metrics.transfer(valid.get(i).getFromAccountId() != null ? "account" : "user", outcome(outcome));
+                    item.put("status", outcome.getStatus());
+                    if (outcome.isOk()) {
+                        item.put("transaction", new RawJson(outcome.getTransactionJson()));
+                        succeeded++;
+                    } else {
+                        item.put("error", transferError(outcome.getStatus(), valid.get(i).getFromAccountId() != null));
+                        if (TransferResult.ERROR.equals(outcome.getStatus())) {
+                            item.put("id", valid.get(i).getTransactionId());
+                        }
+                    }
+                }
+
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("succeeded", succeeded);
+                response.put("failed", transfers.size() - succeeded);
+                response.put("results", results);
+                ctx.json(response);
+            });
         });
 
         // ===== NOTIFICATIONS ENDPOINT =====
         app.get("/api/notifications/{userId}", ctx -> {
             String userId = ctx.pathParam("userId");
-            try (Jedis jedis = getRedisConnection()) {
-                List<String> notifs = jedis.lrange(NOTIFICATIONS_KEY + ":" + userId, 0, -1);
-                List<Map<String, Object>> notifications = new ArrayList<>();
-                for (String notifJson : notifs) {
-                    notifications.add(gson.fromJson(notifJson, Map.class));
+            String since = ctx.queryParam("since");
+            if (since != null) {
+                // Polling: only what arrived after the last sequence number the client saw
+                if (!since.matches("\\d+")) {
+                    ctx.status(400).json(Map.of("error", "Invalid since"));
+                    return;
+                }
+                ctx.json(store.notificationsSince(userId, Long.parseLong(since)));
+                return;
+            }
+            respondList(ctx, (cursor, limit) -> store.notifications(userId, cursor, limit));
+        });
+
+        app.get("/api/notifications/{userId}/unread",
+                ctx -> ctx.json(store.unreadNotifications(ctx.pathParam("userId"))));
+
+        app.post("/api/notifications/{userId}/read", ctx -> {
+            // Optional {"seq": n}; without it everything so far is marked read
+            Long seq = null;
+            if (!ctx.body().isBlank()) {
+                Object value = JsonCodec.readMap(ctx.body()).get("seq");
+                if (value != null && !(value instanceof Number)) {
+                    ctx.status(400).json(Map.of("error", "Invalid seq"));
+                    return;
                 }
-                ctx.json(notifications);
+                seq = value != null ? ((Number) value).longValue() : null;
             }
+            ctx.json(store.markNotificationsRead(ctx.pathParam("userId"), seq));
         });
 
         // ===== REPORTS ENDPOINT =====
         app.get("/api/reports/{userId}", ctx -> {
             String userId = ctx.pathParam("userId");
-            try (Jedis jedis = getRedisConnection()) {
-                // Get user
-                String userJson = jedis.hget(USERS_KEY, userId);
-                if (userJson == null) {
-                    ctx.status(404).json(Map.of("error", "User not found"));
+            String from = ctx.queryParam("from");
+            String to = ctx.queryParam("to");
+            String granularity = ctx.queryParam("granularity");
+            if (from != null || to != null || granularity != null) {
+                Rollups.Range range;
+                try {
+                    range = Rollups.range(from, to, granularity);
+                } catch (IllegalArgumentException e) {
+                    ctx.status(400).json(Map.of("error", e.getMessage()));
                     return;
                 }
-
-                Map<String, String> transactions = jedis.hgetAll(TRANSACTIONS_KEY);
-                List<Map<String, Object>> userTransactions = new ArrayList<>();
-                for (String txJson : transactions.values()) {
-                    Map<String, Object> tx = gson.fromJson(txJson, Map.class);
-                    if (userId.equals(tx.get("fromUserId")) || userId.equals(tx.get("toUserId"))) {
-                        userTransactions.add(tx);
-                    }
+                int top = Math.max(0, Math.min(ctx.queryParamAsClass("top", Integer.class)
+                        .getOrDefault(Rollups.DEFAULT_TOP), Rollups.MAX_TOP));
+                Map<String, Object> report = store.rangeReport(userId, range, top);
+                if (report == null) {
+                    ctx.status(404).json(Map.of("error", "User not found"));
+                    return;
                 }
+                ctx.json(report);
+                return;
+            }
+            // Newest first, one page at a time
+            int limit = Math.max(1, Math.min(ctx.queryParamAsClass("limit", Integer.class).getOrDefault(50), 500));
+            int offset = Math.max(0, ctx.queryParamAsClass("offset", Integer.class).getOrDefault(0));
+            Map<String, Object> report = store.report(userId, limit, offset);
+            if (report == null) {
+                ctx.status(404).json(Map.of("error", "User not found"));
+                return;
+            }
+            ctx.json(report);
+        });
 
-                double totalSent = 0;
-                double totalReceived = 0;
+        // ===== STATEMENTS ENDPOINT =====
+        app.get("/api/statements/{userId}", ctx -> {
+            String userId = ctx.pathParam("userId");
+            String format = ctx.queryParamAsClass("format", String.class).getOrDefault("ndjson");
+            if (!"ndjson".equalsIgnoreCase(format) && !"csv".equalsIgnoreCase(format)) {
+                ctx.status(400).json(Map.of("error", "format must be ndjson or csv"));
+                return;
+            }
+            LocalDateTime from;
+            LocalDateTime to;
+            try {
+                from = statementTime(ctx.queryParam("from"), false);
+                to = statementTime(ctx.queryParam("to"), true);
+            } catch (DateTimeParseException e) {
+                ctx.status(400).json(Map.of("error", "from and to must be dates (yyyy-MM-dd) or date-times"));
+                return;
+            }
+            Page<RawJson> first = store.statement(userId, from, to, Page.FIRST, STREAM_WINDOW);
+            if (first == null) {
+                ctx.status(404).json(Map.of("error", "User not found"));
+                return;
+            }
+            streamStatement(ctx, userId, from, to, "csv".equalsIgnoreCase(format), first);
+        });
+    }
 
-                for (Map<String, Object> tx : userTransactions) {
-                    double amount = ((Number) tx.get("amount")).doubleValue();
-                    if (userId.equals(tx.get("fromUserId"))) {
-                        totalSent += amount;
+    /**
+     * Writes every transaction of the statement, one window at a time, so
+     * memory stays flat however long the history is: NDJSON is the stored
+     * transaction JSON, one per line; CSV is one row per transaction from the
+     * user's side. Javalin gzips the stream when the client accepts it.
+     */
+    private static void streamStatement(Context ctx, String userId, LocalDateTime from, LocalDateTime to,
+            boolean csv, Page<RawJson> first) throws IOException {
+        ctx.contentType(csv ? "text/csv; charset=utf-8" : "application/x-ndjson");
+        ctx.header("Content-Disposition",
+                "attachment; filename=\"statement-" + userId + (csv ? ".csv" : ".ndjson") + "\"");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(ctx.outputStream(), StandardCharsets.UTF_8),
+                1 << 16)) {
+            if (csv) {
+                out.write(STATEMENT_CSV_HEADER);
+            }
+            Page<RawJson> page = first;
+            while (page != null) {
+                for (RawJson row : page.getItems()) {
+                    if (csv) {
+                        writeCsvRow(out, userId, row);
                     } else {
-                        totalReceived += amount;
+                        out.write(row.getJson());
+                        out.write('\n');
                     }
                 }
+                out.flush();
+                String next = page.getNextCursor();
+                page = next == null ? null : store.statement(userId, from, to, next, STREAM_WINDOW);
+            }
+        }
+    }
 
-                Map<String, Object> report = new HashMap<>();
-                report.put("userId", userId);
-                report.put("totalTransactions", userTransactions.size());
-                report.put("totalSent", totalSent);
-                report.put("totalReceived", totalReceived);
-                report.put("currentBalance", gson.fromJson(userJson, Map.class).get("balance"));
-                report.put("transactions", userTransactions);
+    private static void writeCsvRow(Writer out, String userId, RawJson row) throws IOException {
+        Transaction t = JsonCodec.readTransaction(row.getJson().getBytes(StandardCharsets.UTF_8));
+        boolean sent = userId.equals(t.getFromUserId());
+        String[] fields = {
+            t.getTransactionId(),
+            t.getTimestamp() != null ? t.getTimestamp().toString() : null,
+            sent ? "sent" : "received",
+            sent ? t.getToUserId() : t.getFromUserId(),
+            t.getFromAccountId(),
+            t.getToAccountId(),
+            Money.format(t.getAmountMinor()),
+            t.getStatus()
+        };
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeCsvField(out, fields[i]);
+        }
+        out.write("\r\n");
+    }
 
-                ctx.json(report);
+    // RFC 4180: quoted only when it has to be, with quotes doubled
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    // A date is the start (or, for to, the end) of that day; a date-time is taken as is
+    private static LocalDateTime statementTime(String value, boolean end) {
+        if (value == null) {
+            return null;
+        }
+        if (value.length() == 10) {
+            LocalDate day = LocalDate.parse(value);
+            return end ? day.atTime(LocalTime.MAX) : day.atStartOfDay();
+        }
+        return LocalDateTime.parse(value);
+    }
+
+    private static String batchItemError(Transaction transfer) {
+        boolean byUser = transfer.getFromUserId() != null || transfer.getToUserId() != null;
+        boolean byAccount = transfer.getFromAccountId() != null || transfer.getToAccountId() != null;
+        if (byUser && byAccount) {
+            return "Give either user ids or account ids, not both";
+        }
+        if (byAccount && (transfer.getFromAccountId() == null || transfer.getToAccountId() == null)) {
+            return "fromAccountId and toAccountId are required";
+        }
+        if (!byAccount && (transfer.getFromUserId() == null || transfer.getToUserId() == null)) {
+            return "fromUserId and toUserId are required";
+        }
+        if (transfer.getAmountMinor() <= 0) {
+            return "Amount must be positive";
+        }
+        if (!validTransferId(transfer.getTransactionId())) {
+            return INVALID_TRANSFER_ID;
+        }
+        return null;
+    }
+
+    /**
+     * Runs a transfer handler at most once per Idempotency-Key, route and
+     * sender (the user or account id the money leaves, as in the body), so
+     * two callers choosing the same key never meet. A repeat of the request
+     * gets the stored response back, marked Idempotent-Replayed, without
+     * touching balances; the same key with a different body is refused.
+     * Checking the key is one round trip, storing the response one more.
+     *
+     * The handler also gets a transaction id derived from the scoped key
+     * (null without one), so a request that runs again after its claim was
+     * lost still moves money only once.
+     */
+    private static void idempotent(Context ctx, String route, String sender, IdempotentHandler handler)
+            throws Exception {
+        String key = ctx.header(IDEMPOTENCY_KEY);
+        if (key == null) {
+            handler.handle(null);
+            return;
+        }
+        if (!key.matches("[\\x21-\\x7E]{1,100}")) {
+            ctx.status(400).json(Map.of("error", IDEMPOTENCY_KEY + " must be 1-100 printable ASCII characters"));
+            return;
+        }
+
+        IdempotencyStore idempotency = store.idempotency();
+        String scoped = route + ":" + (sender != null ? sender : "") + ":" + key;
+        String fingerprint = HexFormat.of().formatHex(sha256(ctx.bodyAsBytes()));
+        IdempotencyStore.Entry earlier = idempotency.claim(scoped, fingerprint);
+        if (earlier != null) {
+            if (!earlier.getFingerprint().equals(fingerprint)) {
+                ctx.status(422).json(Map.of("error", IDEMPOTENCY_KEY + " was already used for a different request"));
+            } else if (earlier.inProgress()) {
+                ctx.status(409).json(Map.of("error", "A request with this " + IDEMPOTENCY_KEY + " is in progress"));
+            } else {
+                ctx.status(earlier.getStatus()).header("Idempotent-Replayed", "true")
+                        .contentType(ContentType.APPLICATION_JSON).result(earlier.getBody());
             }
-        });
+            return;
+        }
+
+        try {
+            handler.handle(UUID.nameUUIDFromBytes(scoped.getBytes(StandardCharsets.UTF_8)).toString());
+        } catch (Exception e) {
+            // Nothing to replay; let a retry run it again
+            idempotency.release(scoped, fingerprint);
+            throw e;
+        }
+        String body = ctx.result();
+        idempotency.complete(scoped,
+                new IdempotencyStore.Entry(fingerprint, ctx.statusCode(), body != null ? body : ""));
+    }
+
+    /**
+     * Who a batch's Idempotency-Key is scoped to: its one sender, or a digest
+     * of all of them in order when it pays out of several.
+     */
+    private static String senders(List<Transaction> transfers) throws NoSuchAlgorithmException {
+        Set<String> senders = new LinkedHashSet<>();
+        for (Transaction transfer : transfers) {
+            senders.add(String.valueOf(
+                    transfer.getFromAccountId() != null ? transfer.getFromAccountId() : transfer.getFromUserId()));
+        }
+        if (senders.size() <= 1) {
+            return senders.isEmpty() ? null : senders.iterator().next();
+        }
+        return HexFormat.of().formatHex(sha256(String.join("\n", senders).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+
+    /** A transfer route's body, given the transaction id its Idempotency-Key stands for. */
+    @FunctionalInterface
+    private interface IdempotentHandler {
+        void handle(String keyTransferId) throws Exception;
+    }
+
+    // A client-chosen transaction id; absent means the server picks one
+    private static boolean validTransferId(String id) {
+        return id == null || id.matches("[A-Za-z0-9._:-]{1,100}");
+    }
+
+    // How a transfer is counted in wipay_transfers_total
+    private static String outcome(TransferResult result) {
+        return result.isRepeated() ? "REPEATED" : result.getStatus();
+    }
+
+    // The route pattern a request matched, so concrete ids do not each get a series
+    private static String route(Context ctx) {
+        String path = ctx.endpointHandlerPath();
+        // Javalin puts a description here when nothing matched
+        return path.startsWith("/") ? path : "unmatched";
+    }
+
+    // Same messages as the single transfer endpoints
+    private static String transferError(String status, boolean byAccount) {
+        return switch (status) {
+            case "SENDER_NOT_FOUND" -> byAccount ? "Sender account not found" : "Sender not found";
+            case "RECEIVER_NOT_FOUND" -> byAccount ? "Receiver account not found" : "Receiver not found";
+            case "INSUFFICIENT_BALANCE" -> byAccount ? "Insufficient balance in sender account" : "Insufficient balance";
+            case "DUPLICATE_ID" -> DUPLICATE_ID;
+            case "ABORTED" -> TRANSFER_ABORTED;
+            case "ERROR" -> "Transfer may not have gone through; repeat it with this id to find out";
+            default -> status;
+        };
+    }
+
+    private static List<Map<String, Object>> contacts(List<User> users) {
+        List<Map<String, Object>> contacts = new ArrayList<>(users.size());
+        for (User user : users) {
+            Map<String, Object> contact = new HashMap<>();
+            contact.put("id", user.getUserId());
+            contact.put("name", user.getFullName());
+            contact.put("paymentId", user.getUserId());
+            contacts.add(contact);
+        }
+        return contacts;
+    }
+
+    /**
+     * With limit and/or cursor, responds with one page:
+     * {"items": [...], "nextCursor": "..."}. Without them, streams the whole
+     * list as a plain JSON array, one window at a time, so memory stays flat
+     * however large the collection is.
+     */
+    private static void respondList(Context ctx, BiFunction<String, Integer, Page<?>> pager) throws IOException {
+        String cursor = ctx.queryParam("cursor");
+        Integer limit = ctx.queryParamAsClass("limit", Integer.class).allowNullable().get();
+        if (cursor != null && !cursor.matches("\\d+")) {
+            ctx.status(400).json(Map.of("error", "Invalid cursor"));
+            return;
+        }
+        if (cursor != null || limit != null) {
+            int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+            ctx.json(pager.apply(cursor == null ? Page.FIRST : cursor, pageSize));
+            return;
+        }
+
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        try (JsonGenerator out = JsonCodec.generator(ctx.outputStream())) {
+            out.writeStartArray();
+            String next = Page.FIRST;
+            do {
+                Page<?> page = pager.apply(next, STREAM_WINDOW);
+                for (Object item : page.getItems()) {
+                    JsonCodec.writeValue(out, item);
+                }
+                out.flush();
+                next = page.getNextCursor();
+            } while (next != null);
+            out.writeEndArray();
+        }
     }
 }
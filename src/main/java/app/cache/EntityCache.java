@@ -0,0 +1,232 @@
+package app.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import app.model.Account;
+import app.model.User;
+import app.redis.EntityHashes;
+import app.redis.RedisKeys;
+import app.util.Env;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Read-through cache of decoded users and accounts in front of their Redis
+ * hashes, bounded by WIPAY_CACHE_MAX_SIZE entries per type and
+ * WIPAY_CACHE_TTL_MS since load.
+ *
+ * Every write to a user or account hash, including the balance updates in the
+ * transfer scripts, publishes "user:{id}" or "account:{id}" on
+ * wipay:cache:invalidations. Each instance subscribes and drops the entry, so
+ * all instances stay coherent; the TTL bounds staleness if a message is lost.
+ *
+ * Account hashes live in their owner's slot, so reading one needs its owner
+ * first. Owners come from the account directory and never change, so they are
+ * cached without a TTL or invalidation.
+ */
+public class EntityCache {
+
+    private static final String USER_PREFIX = "user:";
+    private static final String ACCOUNT_PREFIX = "account:";
+    private static final long RESUBSCRIBE_DELAY_MS = 1000;
+
+    private final UnifiedJedis redis;
+    private final Cache<String, User> users;
+    private final Cache<String, Account> accounts;
+    private final Cache<String, String> owners;
+    private final LongAdder invalidations = new LongAdder();
+
+    private volatile boolean running;
+    private volatile JedisPubSub subscription;
+
+    public EntityCache(UnifiedJedis redis, long maxSize, Duration ttl) {
+        this.redis = redis;
+        this.users = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).recordStats().build();
+        this.accounts = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).recordStats().build();
+        this.owners = Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    public static EntityCache fromEnv(UnifiedJedis redis) {
+        return new EntityCache(redis, Env.getInt("WIPAY_CACHE_MAX_SIZE", 10_000),
+                Duration.ofMillis(Env.getInt("WIPAY_CACHE_TTL_MS", 30_000)));
+    }
+
+    // ===== READS =====
+
+    /** The user, or null if there is no such user. Misses are not cached. */
+    public User user(String userId) {
+        return this.users.get(userId, id -> {
+            Map<String, String> hash = this.redis.hgetAll(RedisKeys.user(id));
+            return hash.isEmpty() ? null : EntityHashes.toUser(hash);
+        });
+    }
+
+    /** Users that exist among the ids, in id order; misses load in one pipeline. */
+    public List<User> users(Collection<String> userIds) {
+        return ordered(userIds, this.users.getAll(userIds,
+                missing -> EntityHashes.fetchMap(this.redis, missing, RedisKeys::user, EntityHashes::toUser)));
+    }
+
+    public List<Account> accounts(Collection<String> accountIds) {
+        return ordered(accountIds, this.accounts.getAll(accountIds, missing -> {
+            Map<String, String> owners = owners(missing);
+            return EntityHashes.fetchMap(this.redis, owners.keySet(),
+                    id -> RedisKeys.account(owners.get(id), id), EntityHashes::toAccount);
+        }));
+    }
+
+    /** The account's owner, or null if there is no such account. */
+    public String owner(String accountId) {
+        return this.owners.get(accountId, id -> this.redis.get(RedisKeys.accountOwner(id)));
+    }
+
+    /** Owners of the accounts that exist among the ids; misses load in one pipeline. */
+    public Map<String, String> owners(Collection<? extends String> accountIds) {
+        return this.owners.getAll(accountIds, missing -> {
+            Map<String, Response<String>> responses = new LinkedHashMap<>();
+            try (AbstractPipeline pipeline = this.redis.pipelined()) {
+                for (String id : missing) {
+                    responses.put(id, pipeline.get(RedisKeys.accountOwner(id)));
+                }
+                pipeline.sync();
+            }
+            Map<String, String> found = new LinkedHashMap<>();
+            responses.forEach((id, owner) -> {
+                if (owner.get() != null) {
+                    found.put(id, owner.get());
+                }
+            });
+            return found;
+        });
+    }
+
+    /** Remembers a new account's owner, so the first read skips the directory. */
+    public void accountCreated(String accountId, String ownerUserId) {
+        this.owners.put(accountId, ownerUserId);
+    }
+
+    private static <T> List<T> ordered(Collection<String> ids, Map<String, T> found) {
+        List<T> result = new ArrayList<>(found.size());
+        for (String id : ids) {
+            T value = found.get(id);
+            if (value != null) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    // ===== INVALIDATION =====
+
+    /**
+     * Drops the user here and tells every other instance to do the same. Call
+     * after writing the user's hash.
+     */
+    public void userChanged(String userId) {
+        invalidate(USER_PREFIX + userId);
+        this.redis.publish(RedisKeys.CACHE_INVALIDATIONS, USER_PREFIX + userId);
+    }
+
+    public void accountChanged(String accountId) {
+        invalidate(ACCOUNT_PREFIX + accountId);
+        this.redis.publish(RedisKeys.CACHE_INVALIDATIONS, ACCOUNT_PREFIX + accountId);
+    }
+
+    private void invalidate(String message) {
+        this.invalidations.increment();
+        if (message.startsWith(USER_PREFIX)) {
+            this.users.invalidate(message.substring(USER_PREFIX.length()));
+        } else if (message.startsWith(ACCOUNT_PREFIX)) {
+            this.accounts.invalidate(message.substring(ACCOUNT_PREFIX.length()));
+        }
+    }
+
+    /**
+     * Subscribes to invalidations on a background thread, resubscribing if the
+     * connection drops. Everything is cleared on each (re)subscribe, since
+     * messages sent while unsubscribed are lost.
+     */
+    public void listen() {
+        this.running = true;
+        Thread thread = new Thread(() -> {
+            while (this.running) {
+                JedisPubSub pubSub = new JedisPubSub() {
+                    @Override
+                    public void onSubscribe(String channel, int subscribedChannels) {
+                        users.invalidateAll();
+                        accounts.invalidateAll();
+                    }
+
+                    @Override
+                    public void onMessage(String channel, String message) {
+                        invalidate(message);
+                    }
+                };
+                this.subscription = pubSub;
+                try {
+                    this.redis.subscribe(pubSub, RedisKeys.CACHE_INVALIDATIONS);
+                } catch (JedisException e) {
+                    if (this.running) {
+                        System.err.println("Cache invalidation subscription lost, resubscribing: " + e.getMessage());
+                        sleep(RESUBSCRIBE_DELAY_MS);
+                    }
+                }
+            }
+        }, "cache-invalidation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        this.running = false;
+        JedisPubSub pubSub = this.subscription;
+        if (pubSub != null && pubSub.isSubscribed()) {
+            pubSub.unsubscribe();
+        }
+    }
+
+    // ===== METRICS =====
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", stats(this.users));
+        stats.put("accounts", stats(this.accounts));
+        stats.put("accountOwners", stats(this.owners));
+        stats.put("invalidations", this.invalidations.sum());
+        return stats;
+    }
+
+    private static Map<String, Object> stats(Cache<?, ?> cache) {
+        CacheStats stats = cache.stats();
+        Map<String, Object> view = new LinkedHashMap<>();
+        view.put("size", cache.estimatedSize());
+        view.put("hits", stats.hitCount());
+        view.put("misses", stats.missCount());
+        view.put("hitRate", stats.hitRate());
+        view.put("evictions", stats.evictionCount());
+        view.put("loadFailures", stats.loadFailureCount());
+        view.put("meanLoadMs", stats.averageLoadPenalty() / 1_000_000.0);
+        return view;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
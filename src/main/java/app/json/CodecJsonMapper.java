@@ -0,0 +1,60 @@
+package app.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+import io.javalin.json.JsonMapper;
+
+/**
+ * Plugs JsonCodec into Javalin so ctx.json(...) and ctx.bodyAsClass(...) use
+ * the same codec as the rest of the app instead of Jackson databind.
+ */
+public class CodecJsonMapper implements JsonMapper {
+
+    @Override
+    public String toJsonString(Object obj, Type type) {
+        return JsonCodec.write(obj);
+    }
+
+    @Override
+    public void writeToOutputStream(Stream<?> stream, OutputStream outputStream) {
+        try (JsonGenerator g = JsonCodec.generator(outputStream)) {
+            g.writeStartArray();
+            Iterator<?> items = stream.iterator();
+            while (items.hasNext()) {
+                JsonCodec.writeValue(g, items.next());
+            }
+            g.writeEndArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T fromJsonString(String json, Type targetType) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (targetType == User.class) {
+                return (T) JsonCodec.readUser(bytes);
+            } else if (targetType == Account.class) {
+                return (T) JsonCodec.readAccount(bytes);
+            } else if (targetType == Transaction.class) {
+                return (T) JsonCodec.readTransaction(bytes);
+            }
+            return (T) JsonCodec.readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
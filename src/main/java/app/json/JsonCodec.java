@@ -0,0 +1,399 @@
+package app.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+
+import app.model.Account;
+import app.model.Bank;
+import app.model.Transaction;
+import app.model.User;
+import app.store.Page;
+import app.util.Money;
+
+/**
+ * The one JSON codec used for request bodies, responses and legacy data.
+ *
+ * Every model has a hand-written reader and writer on top of the Jackson
+ * streaming API, so nothing goes through reflection or an intermediate
+ * Map. The factory is shared, and its parsers and generators reuse
+ * per-thread buffers from Jackson's BufferRecycler.
+ */
+public class JsonCodec {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    // ===== READING =====
+
+    /**
+     * Amounts and balances are read exactly; one with more than two decimals,
+     * or too large for a long, throws NumberFormatException.
+     */
+    public static User readUser(byte[] json) throws IOException {
+        return readUser(json, false);
+    }
+
+    /**
+     * Like readUser, for user JSON stored while balances were doubles: the
+     * balance is rounded to the nearest paisa instead of rejected.
+     */
+    public static User readLegacyUser(byte[] json) throws IOException {
+        return readUser(json, true);
+    }
+
+    private static User readUser(byte[] json, boolean legacy) throws IOException {
+        try (JsonParser p = openObject(json)) {
+            User user = new User();
+            user.setCreatedAt(null);
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                p.nextToken();
+                switch (field) {
+                    case "id" -> user.setUserId(p.getValueAsString());
+                    case "firstName" -> user.setFirstName(p.getValueAsString());
+                    case "lastName" -> user.setLastName(p.getValueAsString());
+                    case "name" -> user.setName(p.getValueAsString());
+                    case "email" -> user.setEmail(p.getValueAsString());
+                    case "balance" -> user.setBalanceMinor(readMoney(p, legacy));
+                    case "createdAt" -> user.setCreatedAt(readTime(p));
+                    default -> p.skipChildren();
+                }
+            }
+            return user;
+        }
+    }
+
+    public static Account readAccount(byte[] json) throws IOException {
+        return readAccount(json, false);
+    }
+
+    public static Account readLegacyAccount(byte[] json) throws IOException {
+        return readAccount(json, true);
+    }
+
+    private static Account readAccount(byte[] json, boolean legacy) throws IOException {
+        try (JsonParser p = openObject(json)) {
+            Account account = new Account();
+            account.setCreatedAt(null);
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                p.nextToken();
+                switch (field) {
+                    case "id" -> account.setAccountId(p.getValueAsString());
+                    case "userId" -> account.setOwner(userRef(p.getValueAsString()));
+                    case "accountNumber" -> account.setAccountNumber(p.getValueAsString());
+                    case "bankName" -> account.setBank(bankRef(p.getValueAsString()));
+                    case "balance" -> account.setBalanceMinor(readMoney(p, legacy));
+                    case "accountType" -> account.setAccountType(p.getValueAsString());
+                    case "createdAt" -> account.setCreatedAt(readTime(p));
+                    default -> p.skipChildren();
+                }
+            }
+            return account;
+        }
+    }
+
+    public static Transaction readTransaction(byte[] json) throws IOException {
+        try (JsonParser p = openObject(json)) {
+            return readTransactionFields(p);
+        }
+    }
+
+    /**
+     * A JSON array of transaction objects, e.g. the body of a batch transfer.
+     */
+    public static List<Transaction> readTransactions(byte[] json) throws IOException {
+        try (JsonParser p = factory.createParser(json)) {
+            if (p.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(p, "Expected a JSON array");
+            }
+            List<Transaction> transactions = new ArrayList<>();
+            while (p.nextToken() == JsonToken.START_OBJECT) {
+                transactions.add(readTransactionFields(p));
+            }
+            if (p.currentToken() != JsonToken.END_ARRAY) {
+                throw new JsonParseException(p, "Expected an array of JSON objects");
+            }
+            return transactions;
+        }
+    }
+
+    private static Transaction readTransactionFields(JsonParser p) throws IOException {
+        Transaction transaction = new Transaction();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            p.nextToken();
+            switch (field) {
+                case "id" -> transaction.setTransactionId(p.getValueAsString());
+                case "fromUserId" -> transaction.setFromUserId(p.getValueAsString());
+                case "toUserId" -> transaction.setToUserId(p.getValueAsString());
+                case "fromAccountId" -> transaction.setFromAccountId(p.getValueAsString());
+                case "toAccountId" -> transaction.setToAccountId(p.getValueAsString());
+                case "amount" -> transaction.setAmountMinor(readMoney(p, false));
+                case "timestamp" -> transaction.setTimestamp(readTime(p));
+                case "status" -> transaction.setStatus(p.getValueAsString());
+                case "description" -> transaction.setDescription(p.getValueAsString());
+                case "transactionType" -> transaction.setTransactionType(p.getValueAsString());
+                default -> p.skipChildren();
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Untyped read into Map / List / String / Number / Boolean, for data whose
+     * shape is not one of the models (legacy blobs, ad-hoc bodies).
+     */
+    public static Object readValue(String json) throws IOException {
+        try (JsonParser p = factory.createParser(json)) {
+            p.nextToken();
+            return readAny(p);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> readMap(String json) throws IOException {
+        Object value = readValue(json);
+        if (!(value instanceof Map)) {
+            throw new JsonParseException(null, "Expected a JSON object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static Object readAny(JsonParser p) throws IOException {
+        JsonToken token = p.currentToken();
+        if (token == null) {
+            return null;
+        }
+        switch (token) {
+            case START_OBJECT: {
+                Map<String, Object> map = new LinkedHashMap<>();
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.currentName();
+                    p.nextToken();
+                    map.put(field, readAny(p));
+                }
+                return map;
+            }
+            case START_ARRAY: {
+                List<Object> list = new ArrayList<>();
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(readAny(p));
+                }
+                return list;
+            }
+            case VALUE_STRING:
+                return p.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return p.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    private static JsonParser openObject(byte[] json) throws IOException {
+        JsonParser p = factory.createParser(json);
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+            p.close();
+            throw new JsonParseException(null, "Expected a JSON object");
+        }
+        return p;
+    }
+
+    // The number's text as written, so nothing is lost to a double; a quoted amount is accepted too
+    private static long readMoney(JsonParser p, boolean legacy) throws IOException {
+        if (p.currentToken() == JsonToken.VALUE_NULL) {
+            return 0;
+        }
+        String text = p.getValueAsString();
+        if (text == null) {
+            throw new NumberFormatException("Amount must be a number");
+        }
+        return legacy ? Money.parseRounded(text) : Money.parse(text);
+    }
+
+    // A JsonParseException, like any other malformed field, so the API answers 400
+    private static LocalDateTime readTime(JsonParser p) throws IOException {
+        String text = p.getValueAsString();
+        if (text == null) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new JsonParseException(p, "Invalid date-time for " + p.currentName() + ": " + text, e);
+        }
+    }
+
+    private static User userRef(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        User user = new User();
+        user.setUserId(userId);
+        return user;
+    }
+
+    private static Bank bankRef(String bankName) {
+        if (bankName == null) {
+            return null;
+        }
+        Bank bank = new Bank();
+        bank.setBankName(bankName);
+        return bank;
+    }
+
+    // ===== WRITING =====
+
+    public static String write(Object value) {
+        SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+        try {
+            try (JsonGenerator g = factory.createGenerator(out)) {
+                writeValue(g, value);
+            }
+            return out.getAndClear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An amount in paise as a value for a Map response, written as exact
+     * rupees rather than going through a double.
+     */
+    public static RawJson money(long minor) {
+        return new RawJson(Money.format(minor));
+    }
+
+    public static JsonGenerator generator(OutputStream out) throws IOException {
+        return factory.createGenerator(out);
+    }
+
+    public static void writeValue(JsonGenerator g, Object value) throws IOException {
+        if (value == null) {
+            g.writeNull();
+        } else if (value instanceof String text) {
+            g.writeString(text);
+        } else if (value instanceof RawJson raw) {
+            g.writeRawValue(raw.getJson());
+        } else if (value instanceof Double || value instanceof Float) {
+            g.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal decimal) {
+            g.writeNumber(decimal);
+        } else if (value instanceof BigInteger integer) {
+            g.writeNumber(integer);
+        } else if (value instanceof Number number) {
+            g.writeNumber(number.longValue());
+        } else if (value instanceof Boolean bool) {
+            g.writeBoolean(bool);
+        } else if (value instanceof User user) {
+            writeUser(g, user);
+        } else if (value instanceof Account account) {
+            writeAccount(g, account);
+        } else if (value instanceof Transaction transaction) {
+            writeTransaction(g, transaction);
+        } else if (value instanceof Page<?> page) {
+            g.writeStartObject();
+            g.writeFieldName("items");
+            writeValue(g, page.getItems());
+            writeString(g, "nextCursor", page.getNextCursor());
+            g.writeEndObject();
+        } else if (value instanceof Map<?, ?> map) {
+            g.writeStartObject();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                g.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(g, entry.getValue());
+            }
+            g.writeEndObject();
+        } else if (value instanceof Iterable<?> items) {
+            g.writeStartArray();
+            for (Object item : items) {
+                writeValue(g, item);
+            }
+            g.writeEndArray();
+        } else if (value instanceof Object[] items) {
+            g.writeStartArray();
+            for (Object item : items) {
+                writeValue(g, item);
+            }
+            g.writeEndArray();
+        } else {
+            // LocalDateTime, enums and anything else without a writer
+            g.writeString(value.toString());
+        }
+    }
+
+    public static void writeUser(JsonGenerator g, User user) throws IOException {
+        g.writeStartObject();
+        writeString(g, "id", user.getUserId());
+        writeString(g, "firstName", user.getFirstName());
+        writeString(g, "lastName", user.getLastName());
+        writeMoney(g, "balance", user.getBalanceMinor());
+        writeTime(g, "createdAt", user.getCreatedAt());
+        g.writeEndObject();
+    }
+
+    public static void writeAccount(JsonGenerator g, Account account) throws IOException {
+        g.writeStartObject();
+        writeString(g, "id", account.getAccountId());
+        writeString(g, "userId", account.getOwnerUserId());
+        writeString(g, "accountNumber", account.getAccountNumber());
+        writeString(g, "bankName", account.getBankName());
+        writeMoney(g, "balance", account.getBalanceMinor());
+        writeTime(g, "createdAt", account.getCreatedAt());
+        g.writeEndObject();
+    }
+
+    public static void writeTransaction(JsonGenerator g, Transaction transaction) throws IOException {
+        g.writeStartObject();
+        writeString(g, "id", transaction.getTransactionId());
+        writeString(g, "fromAccountId", transaction.getFromAccountId());
+        writeString(g, "toAccountId", transaction.getToAccountId());
+        writeString(g, "fromUserId", transaction.getFromUserId());
+        writeString(g, "toUserId", transaction.getToUserId());
+        writeMoney(g, "amount", transaction.getAmountMinor());
+        writeTime(g, "timestamp", transaction.getTimestamp());
+        writeString(g, "status", transaction.getStatus());
+        writeString(g, "description", transaction.getDescription());
+        g.writeEndObject();
+    }
+
+    // Absent values are left out rather than written as null
+    private static void writeString(JsonGenerator g, String field, String value) throws IOException {
+        if (value != null) {
+            g.writeStringField(field, value);
+        }
+    }
+
+    // Rupees with two decimals, written as a number
+    private static void writeMoney(JsonGenerator g, String field, long minor) throws IOException {
+        g.writeFieldName(field);
+        g.writeNumber(Money.format(minor));
+    }
+
+    private static void writeTime(JsonGenerator g, String field, LocalDateTime value) throws IOException {
+        if (value != null) {
+            g.writeStringField(field, value.toString());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package app.json;
+
+/**
+ * A value that is already valid JSON, such as a transaction record or a
+ * notification read from Redis. The codec copies it into the output as-is
+ * instead of parsing and re-serializing it.
+ */
+public class RawJson {
+    private final String json;
+
+    public RawJson(String json) {
+        this.json = json;
+    }
+
+    public String getJson() {
+        return this.json;
+    }
+
+    @Override
+    public String toString() {
+        return this.json;
+    }
+}
@@ -0,0 +1,101 @@
+package app.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution in HDR-style buckets: every power of two of
+ * nanoseconds is split into 8 equal buckets, so a bucket is at most 12.5%
+ * wide and percentiles come out within that of the truth, from nanoseconds to
+ * about a minute. Recording is one atomic increment plus a striped add, with
+ * no locks, so it can sit on every request.
+ *
+ * Readers take a snapshot of the counts; it is not one atomic cut across all
+ * buckets, which only matters for values recorded while it is taken.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Values of 2^MAX_BITS ns (about 69 s) and up land in the last bucket
+    private static final int MAX_BITS = 36;
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        this.counts.incrementAndGet(index(nanos));
+        this.sumNanos.add(Math.max(nanos, 0));
+    }
+
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = this.counts.get(i);
+        }
+        return copy;
+    }
+
+    public long sumNanos() {
+        return this.sumNanos.sum();
+    }
+
+    static int index(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(nanos);
+        if (bits > MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = bits - SUB_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /** First value past bucket i, in nanoseconds. */
+    static long upperBound(int i) {
+        if (i < SUB_BUCKETS) {
+            return i + 1;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + i % SUB_BUCKETS + 1) << shift;
+    }
+
+    /** Values in a snapshot below {@code nanos}, which must be a power of two. */
+    static long countBelow(long[] snapshot, long nanos) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= nanos; i++) {
+            count += snapshot[i];
+        }
+        return count;
+    }
+
+    static long total(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * The value at quantile q (0..1) of a snapshot, as the top of its bucket
+     * in nanoseconds, so it never understates; 0 when nothing was recorded.
+     */
+    static long quantile(long[] snapshot, double q) {
+        long total = total(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,229 @@
+package app.metrics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide request, Redis and transfer metrics, rendered for Prometheus
+ * by {@link #prometheus()} and served on GET /metrics.
+ *
+ * - wipay_http_request_duration_seconds: histogram per method and route (the
+ *   route pattern, e.g. /api/users/{userId}, not the concrete path)
+ * - wipay_http_requests_total: responses per method, route and status
+ * - wipay_redis_command_duration_seconds: histogram per Redis command, with
+ *   EVALSHA split by script name (single-node Redis only; pipelined commands
+ *   are not timed one by one)
+ * - wipay_transfers_total: transfers per kind (user or account) and outcome:
+ *   OK, REPEATED (an id that already went through), INVALID, or the failure
+ *   status, e.g. INSUFFICIENT_BALANCE
+ * - wipay_notification_backlog, wipay_notifications_dropped_total: the Redis
+ *   store's notification queue, read from the NotificationWorker on each scrape
+ *
+ * Each histogram also reports p50, p90, p99 and p999 since startup as the
+ * _quantile_seconds gauge, from its fine-grained buckets; the Prometheus
+ * buckets are the powers of two of nanoseconds from about 4 µs to 17 s.
+ *
+ * WIPAY_METRICS=false turns recording off; /metrics is then empty.
+ */
+public class Metrics {
+
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getenv("WIPAY_METRICS"));
+
+    private static final int FIRST_BUCKET_BITS = 12;
+    private static final int LAST_BUCKET_BITS = 34;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<Labels, LatencyHistogram> REQUESTS = new ConcurrentHashMap<>();
+    private static final Map<Labels, LongAdder> RESPONSES = new ConcurrentHashMap<>();
+    private static final Map<Labels, LatencyHistogram> REDIS_COMMANDS = new ConcurrentHashMap<>();
+    private static final Map<Labels, LongAdder> TRANSFERS = new ConcurrentHashMap<>();
+    // Name -> a value kept elsewhere, read when /metrics is served
+    private static final Map<String, Sampled> SAMPLED = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static void request(String method, String route, int status, long nanos) {
+        if (!ENABLED) {
+            return;
+        }
+        histogram(REQUESTS, new Labels("method", method, "route", route)).record(nanos);
+        counter(RESPONSES, new Labels("method", method, "route", route, "status", String.valueOf(status)))
+                .increment();
+    }
+
+    public static void redisCommand(String command, long nanos) {
+        if (ENABLED) {
+            histogram(REDIS_COMMANDS, new Labels("command", command)).record(nanos);
+        }
+    }
+
+    public static void transfer(String kind, String outcome) {
+        if (ENABLED) {
+            counter(TRANSFERS, new Labels("kind", kind, "outcome", outcome)).increment();
+        }
+    }
+
+    /**
+     * Reports a value kept elsewhere, read on every scrape: a gauge, or a
+     * counter if it only ever grows. Registering a name again replaces it.
+     */
+    public static void sampled(String name, String type, String help, LongSupplier value) {
+        if (ENABLED) {
+            SAMPLED.put(name, new Sampled(type, help, value));
+        }
+    }
+
+    /** Everything recorded so far, in the Prometheus text exposition format. */
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder(16_384);
+        writeHistograms(out, "wipay_http_request_duration_seconds", "Time to handle a request", REQUESTS);
+        writeCounters(out, "wipay_http_requests_total", "Responses sent", RESPONSES);
+        writeHistograms(out, "wipay_redis_command_duration_seconds", "Time for one Redis command round trip",
+                REDIS_COMMANDS);
+        writeCounters(out, "wipay_transfers_total", "Transfers attempted, by outcome", TRANSFERS);
+        new TreeMap<>(SAMPLED).forEach((name, sampled) -> {
+            out.append("# HELP ").append(name).append(' ').append(sampled.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(sampled.type).append('\n');
+            out.append(name).append(' ').append(sampled.value.getAsLong()).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static LatencyHistogram histogram(Map<Labels, LatencyHistogram> family, Labels labels) {
+        LatencyHistogram histogram = family.get(labels);
+        return histogram != null ? histogram : family.computeIfAbsent(labels, l -> new LatencyHistogram());
+    }
+
+    private static LongAdder counter(Map<Labels, LongAdder> family, Labels labels) {
+        LongAdder counter = family.get(labels);
+        return counter != null ? counter : family.computeIfAbsent(labels, l -> new LongAdder());
+    }
+
+    private static void writeHistograms(StringBuilder out, String name, String help,
+            Map<Labels, LatencyHistogram> family) {
+        if (family.isEmpty()) {
+            return;
+        }
+        Map<Labels, long[]> snapshots = new TreeMap<>();
+        Map<Labels, Long> sums = new TreeMap<>();
+        family.forEach((labels, histogram) -> {
+            snapshots.put(labels, histogram.snapshot());
+            sums.put(labels, histogram.sumNanos());
+        });
+
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        snapshots.forEach((labels, snapshot) -> {
+            for (int bits = FIRST_BUCKET_BITS; bits <= LAST_BUCKET_BITS; bits++) {
+                long bound = 1L << bits;
+                sample(out, name + "_bucket", labels, "le", seconds(bound),
+                        LatencyHistogram.countBelow(snapshot, bound));
+            }
+            long total = LatencyHistogram.total(snapshot);
+            sample(out, name + "_bucket", labels, "le", "+Inf", total);
+            sample(out, name + "_sum", labels, null, null, seconds(sums.get(labels)));
+            sample(out, name + "_count", labels, null, null, total);
+        });
+
+        String quantiles = name.replace("_seconds", "_quantile_seconds");
+        out.append("# HELP ").append(quantiles).append(' ').append(help).append(", quantiles since startup\n");
+        out.append("# TYPE ").append(quantiles).append(" gauge\n");
+        snapshots.forEach((labels, snapshot) -> {
+            for (double q : QUANTILES) {
+                sample(out, quantiles, labels, "quantile", String.valueOf(q),
+                        seconds(LatencyHistogram.quantile(snapshot, q)));
+            }
+        });
+    }
+
+    private static void writeCounters(StringBuilder out, String name, String help, Map<Labels, LongAdder> family) {
+        if (family.isEmpty()) {
+            return;
+        }
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        new TreeMap<>(family).forEach((labels, counter) -> sample(out, name, labels, null, null, counter.sum()));
+    }
+
+    private static void sample(StringBuilder out, String name, Labels labels, String extraName, String extraValue,
+            Object value) {
+        out.append(name).append('{');
+        labels.appendTo(out);
+        if (extraName != null) {
+            out.append(',').append(extraName).append("=\"").append(extraValue).append('"');
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    // Nanoseconds as seconds; exact, since every bound is a whole number of nanoseconds
+    private static String seconds(long nanos) {
+        return new BigDecimal(nanos).movePointLeft(9).stripTrailingZeros().toPlainString();
+    }
+
+    private static final class Sampled {
+        private final String type;
+        private final String help;
+        private final LongSupplier value;
+
+        Sampled(String type, String help, LongSupplier value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /** Label names and values, in the order given; compared by value so it can key a map. */
+    private static final class Labels implements Comparable<Labels> {
+        private final String[] pairs;
+        private final int hash;
+
+        Labels(String... pairs) {
+            this.pairs = pairs;
+            this.hash = Arrays.hashCode(pairs);
+        }
+
+        void appendTo(StringBuilder out) {
+            for (int i = 0; i < this.pairs.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(this.pairs[i]).append("=\"");
+                escape(out, this.pairs[i + 1]);
+                out.append('"');
+            }
+        }
+
+        private static void escape(StringBuilder out, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\' -> out.append("\\\\");
+                    case '"' -> out.append("\\\"");
+                    case '\n' -> out.append("\\n");
+                    default -> out.append(c);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Labels labels && Arrays.equals(this.pairs, labels.pairs);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public int compareTo(Labels other) {
+            return Arrays.compare(this.pairs, other.pairs);
+        }
+    }
+}
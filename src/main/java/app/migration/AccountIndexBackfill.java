@@ -0,0 +1,57 @@
+package app.migration;
+
+import java.io.IOException;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * Builds the per-user account index (wipay:accounts:byUser:{userId}) for
+ * accounts created before the index existed.
+ *
+ * mvn exec:java -Dexec.mainClass=app.migration.AccountIndexBackfill [-Dexec.args=--force]
+ */
+public class AccountIndexBackfill extends Migration {
+
+    private static final int BATCH = 500;
+
+    public AccountIndexBackfill() {
+        super("accounts-by-user");
+    }
+
+    public static void main(String[] args) {
+        runFromCommandLine(new AccountIndexBackfill(), args);
+    }
+
+    /**
+     * Walks the accounts hash with HSCAN so no single call loads the whole
+     * dataset, and writes index entries in pipelined batches. SADD is
+     * idempotent, so rerunning is safe.
+     */
+    @Override
+    protected long run(UnifiedJedis redis) throws IOException {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<Map.Entry<String, String>> page = redis.hscan(LegacyKeys.ACCOUNTS, cursor, params);
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                for (Map.Entry<String, String> entry : page.getResult()) {
+                    Map<String, Object> account = JsonCodec.readMap(entry.getValue());
+                    Object userId = account.get("userId");
+                    if (userId != null) {
+                        pipeline.sadd(LegacyKeys.accountsByUser(userId.toString()), entry.getKey());
+                        count++;
+                    }
+                }
+                pipeline.sync();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+}
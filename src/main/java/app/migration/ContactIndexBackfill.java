@@ -0,0 +1,59 @@
+package app.migration;
+
+import java.util.Map;
+
+import app.model.User;
+import app.redis.Contacts;
+import app.redis.EntityHashes;
+import app.redis.RedisKeys;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * Builds the contact search index (wipay:contacts:*) for users created
+ * before it existed.
+ *
+ * mvn exec:java -Dexec.mainClass=app.migration.ContactIndexBackfill [-Dexec.args=--force]
+ */
+public class ContactIndexBackfill extends Migration {
+
+    private static final int BATCH = 500;
+
+    public ContactIndexBackfill() {
+        super("contact-index");
+    }
+
+    public static void main(String[] args) {
+        runFromCommandLine(new ContactIndexBackfill(), args);
+    }
+
+    /**
+     * Walks every user id shard with SSCAN, loads each page of users in one
+     * pipeline and writes their entries in another. ZADD is idempotent, so
+     * rerunning is safe.
+     */
+    @Override
+    protected long run(UnifiedJedis redis) {
+        long count = 0;
+        ScanParams params = new ScanParams().count(BATCH);
+        for (int shard = 0; shard < RedisKeys.ID_SHARDS; shard++) {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = redis.sscan(RedisKeys.userIds(shard), cursor, params);
+                Map<String, User> users = EntityHashes.fetchMap(redis, page.getResult(), RedisKeys::user,
+                        EntityHashes::toUser);
+                try (AbstractPipeline pipeline = redis.pipelined()) {
+                    for (User user : users.values()) {
+                        Contacts.index(pipeline, user);
+                        count++;
+                    }
+                    pipeline.sync();
+                }
+                cursor = page.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,152 @@
+package app.migration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.model.Account;
+import app.model.User;
+import app.redis.EntityHashes;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * Converts the JSON blobs in wipay:users / wipay:accounts into one hash per
+ * entity (wipay:user:{id}, wipay:account:{id}) with the balance in minor units,
+ * and converts report totals from floating-point major units to integer minor
+ * units.
+ *
+ * The legacy hashes are renamed to *:pre-hash-layout afterwards so a rerun
+ * cannot overwrite live balances with stale ones.
+ *
+ * mvn exec:java -Dexec.mainClass=app.migration.HashLayoutMigration [-Dexec.args=--force]
+ */
+public class HashLayoutMigration extends Migration {
+
+    private static final int BATCH = 500;
+    private static final String BACKUP_SUFFIX = ":pre-hash-layout";
+
+    // Works on the digits as text: a Lua number is a double, which HINCRBY
+    // would get as "1e+14" and which drops paise from about 10^13 rupees up.
+    // HINCRBYFLOAT never wrote an exponent; should one turn up anyway, it goes
+    // through a double printed without one.
+    private static final String CONVERT_TOTALS = String.join("\n",
+            "local function increment(digits)",
+            "  local i = #digits",
+            "  while i > 0 and digits:sub(i, i) == '9' do",
+            "    i = i - 1",
+            "  end",
+            "  if i == 0 then",
+            "    return '1' .. string.rep('0', #digits)",
+            "  end",
+            "  return digits:sub(1, i - 1) .. string.char(digits:byte(i) + 1) .. string.rep('0', #digits - i)",
+            "end",
+            "local function toMinor(major)",
+            "  local whole, fraction = major:match('^(%d+)%.?(%d*)$')",
+            "  if not whole then",
+            "    return string.format('%.0f', math.floor(tonumber(major) * 100 + 0.5))",
+            "  end",
+            "  local minor = (whole .. (fraction .. '00'):sub(1, 2)):gsub('^0+', '')",
+            "  if minor == '' then",
+            "    minor = '0'",
+            "  end",
+            "  if fraction:sub(3, 3) >= '5' then",
+            "    minor = increment(minor)",
+            "  end",
+            "  return minor",
+            "end",
+            "for i, field in ipairs({'totalSent', 'totalReceived'}) do",
+            "  local major = redis.call('HGET', KEYS[1], field)",
+            "  if major then",
+            "    redis.call('HINCRBY', KEYS[1], ARGV[i], toMinor(major))",
+            "    redis.call('HDEL', KEYS[1], field)",
+            "  end",
+            "end",
+            "return 0");
+
+    public HashLayoutMigration() {
+        super("hash-layout");
+    }
+
+    public static void main(String[] args) {
+        runFromCommandLine(new HashLayoutMigration(), args);
+    }
+
+    @Override
+    protected long run(UnifiedJedis redis) throws IOException {
+        long count = migrateUsers(redis) + migrateAccounts(redis);
+        for (String legacy : List.of(LegacyKeys.USERS, LegacyKeys.ACCOUNTS)) {
+            if (redis.exists(legacy)) {
+                redis.rename(legacy, legacy + BACKUP_SUFFIX);
+            }
+        }
+        return count;
+    }
+
+    private long migrateUsers(UnifiedJedis redis) throws IOException {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<Map.Entry<String, String>> page = redis.hscan(LegacyKeys.USERS, cursor, params);
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                List<String> ids = new ArrayList<>();
+                for (Map.Entry<String, String> entry : page.getResult()) {
+                    User user = JsonCodec.readLegacyUser(bytes(entry.getValue()));
+                    String userId = entry.getKey();
+                    user.setUserId(userId);
+                    pipeline.hset(LegacyKeys.user(userId), EntityHashes.userFields(user));
+                    pipeline.eval(CONVERT_TOTALS, List.of(LegacyKeys.reportTotals(userId)),
+                            List.of("sentMinor", "receivedMinor"));
+                    ids.add(userId);
+                }
+                if (!ids.isEmpty()) {
+                    pipeline.sadd(LegacyKeys.USER_IDS, ids.toArray(new String[0]));
+                }
+                pipeline.sync();
+                count += ids.size();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+
+    private long migrateAccounts(UnifiedJedis redis) throws IOException {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<Map.Entry<String, String>> page = redis.hscan(LegacyKeys.ACCOUNTS, cursor, params);
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                List<String> ids = new ArrayList<>();
+                for (Map.Entry<String, String> entry : page.getResult()) {
+                    Account account = JsonCodec.readLegacyAccount(bytes(entry.getValue()));
+                    String accountId = entry.getKey();
+                    String userId = account.getOwnerUserId();
+                    account.setAccountId(accountId);
+                    pipeline.hset(LegacyKeys.account(accountId), EntityHashes.accountFields(account));
+                    if (userId != null) {
+                        pipeline.sadd(LegacyKeys.accountsByUser(userId), accountId);
+                    }
+                    ids.add(accountId);
+                }
+                if (!ids.isEmpty()) {
+                    pipeline.sadd(LegacyKeys.ACCOUNT_IDS, ids.toArray(new String[0]));
+                }
+                pipeline.sync();
+                count += ids.size();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+package app.migration;
+
+/**
+ * Key names from before the keyspace was hash-tagged per user. The older
+ * migrations run against these, so they still do what they did on the data
+ * of their time; ShardedKeyLayoutMigration then moves the result into the
+ * layout in RedisKeys.
+ */
+class LegacyKeys {
+    // Hashes of Gson-serialized users/accounts
+    static final String USERS = "wipay:users";
+    static final String ACCOUNTS = "wipay:accounts";
+
+    static final String USER_IDS = "wipay:user:ids";
+    static final String ACCOUNT_IDS = "wipay:account:ids";
+
+    // One hash of every transaction id -> JSON
+    static final String TRANSACTIONS = "wipay:transactions";
+
+    static String user(String userId) {
+        return "wipay:user:" + userId;
+    }
+
+    static String account(String accountId) {
+        return "wipay:account:" + accountId;
+    }
+
+    static String accountsByUser(String userId) {
+        return ACCOUNTS + ":byUser:" + userId;
+    }
+
+    static String transactionsByUser(String userId) {
+        return TRANSACTIONS + ":byUser:" + userId;
+    }
+
+    static String reportTotals(String userId) {
+        return "wipay:reports:" + userId;
+    }
+
+    static String notifications(String userId) {
+        return "wipay:notifications:" + userId;
+    }
+
+    static String inbox(String userId) {
+        return "wipay:inbox:" + userId;
+    }
+
+    static String notificationArchive(String userId) {
+        return "wipay:inbox:archive:" + userId;
+    }
+}
@@ -0,0 +1,158 @@
+package app.migration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import app.redis.RedisKeys;
+import app.redis.RedisPool;
+import app.util.Env;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * A one-time data job. Completion is recorded in wipay:migrations so the job
+ * runs at most once per database unless forced from the command line.
+ *
+ * Jobs only run under wipay:migrations:lock, taken with SET NX EX, so API
+ * instances starting together and a job started by hand never run side by
+ * side: the others wait for the lock, then find the jobs marked done. The
+ * lock expires after WIPAY_MIGRATION_LOCK_S in case its holder dies; it is
+ * renewed before each job, so no single job may take longer than that.
+ */
+public abstract class Migration {
+
+    private static final String LOCK = RedisKeys.MIGRATIONS + ":lock";
+    private static final int LOCK_SECONDS = Env.getInt("WIPAY_MIGRATION_LOCK_S", 600);
+    private static final long LOCK_POLL_MS = 500;
+
+    // Renews or releases the lock only for the holder that took it
+    private static final String RENEW = String.join("\n",
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then",
+            "  return 0",
+            "end",
+            "return redis.call('EXPIRE', KEYS[1], ARGV[2])");
+    private static final String RELEASE = String.join("\n",
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then",
+            "  return 0",
+            "end",
+            "return redis.call('DEL', KEYS[1])");
+
+    private final String name;
+
+    protected Migration(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Does the work and returns how many records it touched. Must be safe to
+     * rerun, since --force and crashed runs both repeat it.
+     */
+    protected abstract long run(UnifiedJedis redis) throws IOException;
+
+    public boolean isDone(UnifiedJedis redis) {
+        return redis.hexists(RedisKeys.MIGRATIONS, name);
+    }
+
+    private void complete(UnifiedJedis redis) {
+        long count;
+        try {
+            count = run(redis);
+        } catch (IOException e) {
+            // A stored record that no longer parses; stop before marking the job done
+            throw new UncheckedIOException("Migration " + name + " failed", e);
+        }
+        redis.hset(RedisKeys.MIGRATIONS, name, LocalDateTime.now().toString());
+        System.out.println("Migration " + name + " done (" + count + " records)");
+    }
+
+    /**
+     * Every migration, in the order they must run. Called at startup before
+     * the server takes traffic.
+     */
+    public static List<Migration> all() {
+        return List.of(
+                new AccountIndexBackfill(),
+                new TransactionIndexBackfill(),
+                new HashLayoutMigration(),
+                new ShardedKeyLayoutMigration(),
+                new ContactIndexBackfill(),
+                new RollupBackfill());
+    }
+
+    /**
+     * Runs every job not marked done yet. Once they all are, returns without
+     * touching the lock.
+     */
+    public static void runPending(UnifiedJedis redis) {
+        if (all().stream().allMatch(migration -> migration.isDone(redis))) {
+            return;
+        }
+        String token = lock(redis);
+        try {
+            // Checked again under the lock: whoever held it before may have run them
+            for (Migration migration : all()) {
+                if (!migration.isDone(redis)) {
+                    renew(redis, token);
+                    migration.complete(redis);
+                }
+            }
+        } finally {
+            unlock(redis, token);
+        }
+    }
+
+    static void runFromCommandLine(Migration migration, String[] args) {
+        boolean force = args.length > 0 && "--force".equals(args[0]);
+        try (UnifiedJedis redis = RedisPool.fromEnv()) {
+            String token = lock(redis);
+            try {
+                if (force || !migration.isDone(redis)) {
+                    migration.complete(redis);
+                } else {
+                    System.out.println("Migration " + migration.getName() + " already done, use --force to rerun");
+                }
+            } finally {
+                unlock(redis, token);
+            }
+        }
+    }
+
+    // Waits for the lock and returns the token that holds it
+    private static String lock(UnifiedJedis redis) {
+        String token = UUID.randomUUID().toString();
+        SetParams params = SetParams.setParams().nx().ex(LOCK_SECONDS);
+        boolean waited = false;
+        while (redis.set(LOCK, token, params) == null) {
+            if (!waited) {
+                System.out.println("Waiting for migrations running elsewhere (" + LOCK + ")");
+                waited = true;
+            }
+            try {
+                Thread.sleep(LOCK_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for " + LOCK, e);
+            }
+        }
+        return token;
+    }
+
+    private static void renew(UnifiedJedis redis, String token) {
+        Object renewed = redis.eval(RENEW, List.of(LOCK), List.of(token, String.valueOf(LOCK_SECONDS)));
+        if (!Long.valueOf(1).equals(renewed)) {
+            // Someone else may be running jobs now; stop rather than race them
+            throw new IllegalStateException(LOCK + " expired while migrations were running");
+        }
+    }
+
+    private static void unlock(UnifiedJedis redis, String token) {
+        redis.eval(RELEASE, List.of(LOCK), List.of(token));
+    }
+}
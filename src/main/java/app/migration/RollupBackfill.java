@@ -0,0 +1,95 @@
+package app.migration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.model.Transaction;
+import app.redis.RedisKeys;
+import app.redis.Rollups;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * Builds the day and month report rollups (wipay:{u:userId}:rollup:{period})
+ * for transactions recorded before they existed.
+ *
+ * mvn exec:java -Dexec.mainClass=app.migration.RollupBackfill [-Dexec.args=--force]
+ */
+public class RollupBackfill extends Migration {
+
+    private static final int BATCH = 500;
+
+    public RollupBackfill() {
+        super("report-rollups");
+    }
+
+    public static void main(String[] args) {
+        runFromCommandLine(new RollupBackfill(), args);
+    }
+
+    /**
+     * Recomputes each user's buckets from their whole transaction hash and
+     * replaces the stored ones, so rerunning is safe. A transfer that lands
+     * while its user is being rebuilt can be lost from the buckets, so this
+     * runs before the server takes traffic.
+     */
+    @Override
+    protected long run(UnifiedJedis redis) throws IOException {
+        long count = 0;
+        ScanParams params = new ScanParams().count(BATCH);
+        for (int shard = 0; shard < RedisKeys.ID_SHARDS; shard++) {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = redis.sscan(RedisKeys.userIds(shard), cursor, params);
+                for (String userId : page.getResult()) {
+                    count += rebuild(redis, userId);
+                }
+                cursor = page.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        }
+        return count;
+    }
+
+    private static long rebuild(UnifiedJedis redis, String userId) throws IOException {
+        Map<String, Map<String, Long>> buckets = new HashMap<>();
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<Map.Entry<String, String>> page = redis.hscan(RedisKeys.transactions(userId), cursor, params);
+            for (Map.Entry<String, String> entry : page.getResult()) {
+                Transaction txn = JsonCodec.readTransaction(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                LocalDateTime at = txn.getTimestamp();
+                if (at == null) {
+                    continue;
+                }
+                boolean sent = userId.equals(txn.getFromUserId());
+                String peer = sent ? txn.getToUserId() : txn.getFromUserId();
+                for (String period : new String[] {Rollups.day(at), Rollups.month(at)}) {
+                    Rollups.add(buckets.computeIfAbsent(period, p -> new HashMap<>()), sent, txn.getAmountMinor(),
+                            peer);
+                }
+                count++;
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+        try (AbstractPipeline pipeline = redis.pipelined()) {
+            buckets.forEach((period, fields) -> {
+                Map<String, String> hash = new HashMap<>();
+                fields.forEach((field, value) -> hash.put(field, String.valueOf(value)));
+                String key = RedisKeys.rollup(userId, period);
+                pipeline.del(key);
+                pipeline.hset(key, hash);
+            });
+            pipeline.sync();
+        }
+        return count;
+    }
+}
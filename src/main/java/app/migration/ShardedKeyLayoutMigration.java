@@ -0,0 +1,150 @@
+package app.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.redis.RedisKeys;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * Moves the keyspace into the hash-tagged layout of RedisKeys: each user's
+ * keys are renamed into the user's slot, accounts move into their owner's
+ * slot and get a directory entry, ids go into the sharded id sets, and the
+ * one wipay:transactions hash is split into a transaction hash per user (a
+ * transaction is stored with both parties).
+ *
+ * RENAME cannot move a key between slots on a cluster, so this runs against
+ * the single node holding the old layout, before its data is moved into a
+ * cluster. The legacy id sets and transactions hash are renamed to
+ * *:pre-sharded-keys afterwards, so a rerun finds nothing left to move.
+ *
+ * mvn exec:java -Dexec.mainClass=app.migration.ShardedKeyLayoutMigration [-Dexec.args=--force]
+ */
+public class ShardedKeyLayoutMigration extends Migration {
+
+    private static final int BATCH = 500;
+    private static final String BACKUP_SUFFIX = ":pre-sharded-keys";
+
+    private static final String MOVE = String.join("\n",
+            "if redis.call('EXISTS', KEYS[1]) == 1 then",
+            "  redis.call('RENAME', KEYS[1], KEYS[2])",
+            "end",
+            "return 0");
+
+    public ShardedKeyLayoutMigration() {
+        super("sharded-keys");
+    }
+
+    public static void main(String[] args) {
+        runFromCommandLine(new ShardedKeyLayoutMigration(), args);
+    }
+
+    @Override
+    protected long run(UnifiedJedis redis) throws IOException {
+        long count = migrateUsers(redis) + migrateAccounts(redis) + migrateTransactions(redis);
+        for (String legacy : List.of(LegacyKeys.USER_IDS, LegacyKeys.ACCOUNT_IDS, LegacyKeys.TRANSACTIONS)) {
+            if (redis.exists(legacy)) {
+                redis.rename(legacy, legacy + BACKUP_SUFFIX);
+            }
+        }
+        return count;
+    }
+
+    private long migrateUsers(UnifiedJedis redis) {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<String> page = redis.sscan(LegacyKeys.USER_IDS, cursor, params);
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                for (String userId : page.getResult()) {
+                    move(pipeline, LegacyKeys.user(userId), RedisKeys.user(userId));
+                    move(pipeline, LegacyKeys.accountsByUser(userId), RedisKeys.accountsByUser(userId));
+                    move(pipeline, LegacyKeys.transactionsByUser(userId), RedisKeys.transactionsByUser(userId));
+                    move(pipeline, LegacyKeys.reportTotals(userId), RedisKeys.reportTotals(userId));
+                    move(pipeline, LegacyKeys.notifications(userId), RedisKeys.notifications(userId));
+                    move(pipeline, LegacyKeys.inbox(userId), RedisKeys.inbox(userId));
+                    move(pipeline, LegacyKeys.notificationArchive(userId), RedisKeys.notificationArchive(userId));
+                    pipeline.sadd(RedisKeys.userIds(RedisKeys.idShard(userId)), userId);
+                    count++;
+                }
+                pipeline.sync();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+
+    private long migrateAccounts(UnifiedJedis redis) {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<String> page = redis.sscan(LegacyKeys.ACCOUNT_IDS, cursor, params);
+            List<String> accountIds = page.getResult();
+            List<Response<String>> owners = new ArrayList<>(accountIds.size());
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                for (String accountId : accountIds) {
+                    owners.add(pipeline.hget(LegacyKeys.account(accountId), "userId"));
+                }
+                pipeline.sync();
+            }
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                for (int i = 0; i < accountIds.size(); i++) {
+                    String accountId = accountIds.get(i);
+                    String ownerUserId = owners.get(i).get();
+                    if (ownerUserId == null) {
+                        // Already moved by an earlier, interrupted run
+                        ownerUserId = redis.get(RedisKeys.accountOwner(accountId));
+                        if (ownerUserId == null) {
+                            continue;
+                        }
+                    }
+                    move(pipeline, LegacyKeys.account(accountId), RedisKeys.account(ownerUserId, accountId));
+                    pipeline.set(RedisKeys.accountOwner(accountId), ownerUserId);
+                    pipeline.sadd(RedisKeys.accountIds(RedisKeys.idShard(accountId)), accountId);
+                    count++;
+                }
+                pipeline.sync();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+
+    private long migrateTransactions(UnifiedJedis redis) throws IOException {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<Map.Entry<String, String>> page = redis.hscan(LegacyKeys.TRANSACTIONS, cursor, params);
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                for (Map.Entry<String, String> entry : page.getResult()) {
+                    Map<String, Object> tx = JsonCodec.readMap(entry.getValue());
+                    for (String party : new String[] { "fromUserId", "toUserId" }) {
+                        Object userId = tx.get(party);
+                        if (userId != null) {
+                            pipeline.hset(RedisKeys.transactions(userId.toString()), entry.getKey(),
+                                    entry.getValue());
+                        }
+                    }
+                    count++;
+                }
+                pipeline.sync();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+
+    private static void move(AbstractPipeline pipeline, String from, String to) {
+        pipeline.eval(MOVE, List.of(from, to), List.of());
+    }
+}
@@ -0,0 +1,92 @@
+package app.migration;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.util.Money;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * Builds the per-user transaction indexes (wipay:transactions:byUser:{userId})
+ * and report totals (wipay:reports:{userId}) for transactions recorded before
+ * they existed.
+ *
+ * mvn exec:java -Dexec.mainClass=app.migration.TransactionIndexBackfill [-Dexec.args=--force]
+ */
+public class TransactionIndexBackfill extends Migration {
+
+    private static final int BATCH = 500;
+
+    // Totals only move when the index entry is new, so reruns and transfers
+    // recorded while the job is running are never counted twice
+    private static final String INDEX_ONE = String.join("\n",
+            "if redis.call('ZADD', KEYS[1], 'NX', ARGV[1], ARGV[2]) == 1 then",
+            "  redis.call('HINCRBY', KEYS[2], ARGV[3], ARGV[4])",
+            "  redis.call('HINCRBY', KEYS[2], 'totalTransactions', 1)",
+            "end",
+            "return 0");
+
+    public TransactionIndexBackfill() {
+        super("transactions-by-user");
+    }
+
+    public static void main(String[] args) {
+        runFromCommandLine(new TransactionIndexBackfill(), args);
+    }
+
+    @Override
+    protected long run(UnifiedJedis redis) throws IOException {
+        long count = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().count(BATCH);
+        do {
+            ScanResult<Map.Entry<String, String>> page = redis.hscan(LegacyKeys.TRANSACTIONS, cursor, params);
+            try (AbstractPipeline pipeline = redis.pipelined()) {
+                for (Map.Entry<String, String> entry : page.getResult()) {
+                    Map<String, Object> tx = JsonCodec.readMap(entry.getValue());
+                    Object fromUserId = tx.get("fromUserId");
+                    Object toUserId = tx.get("toUserId");
+                    if (fromUserId == null || toUserId == null || tx.get("amount") == null) {
+                        continue;
+                    }
+                    String txnId = entry.getKey();
+                    String score = String.valueOf(epochMillis(tx.get("timestamp")));
+                    String amount = String.valueOf(Money.parseRounded(tx.get("amount").toString()));
+
+                    pipeline.eval(INDEX_ONE,
+                            List.of(LegacyKeys.transactionsByUser(fromUserId.toString()),
+                                    LegacyKeys.reportTotals(fromUserId.toString())),
+                            List.of(score, txnId, "sentMinor", amount));
+                    if (!fromUserId.equals(toUserId)) {
+                        pipeline.eval(INDEX_ONE,
+                                List.of(LegacyKeys.transactionsByUser(toUserId.toString()),
+                                        LegacyKeys.reportTotals(toUserId.toString())),
+                                List.of(score, txnId, "receivedMinor", amount));
+                    }
+                    count++;
+                }
+                pipeline.sync();
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return count;
+    }
+
+    private static long epochMillis(Object timestamp) {
+        if (timestamp == null) {
+            return 0;
+        }
+        try {
+            return LocalDateTime.parse(timestamp.toString()).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
@@ -3,10 +3,13 @@ package app.model;
 import java.time.LocalDateTime;
 import java.util.Objects;
 
+import app.util.Money;
+
 public class Account {
+    private String accountId;
     private String accountNumber;
     private User owner;
-    private double balance;
+    private long balanceMinor;
     private Bank bank;
     private LocalDateTime createdAt;
     private boolean isActive;
@@ -18,11 +21,11 @@ public class Account {
         this.accountType = "SAVINGS";
     }
 
-    public Account(String accountNumber, User owner, Bank bank, double initialBalance) {
+    public Account(String accountNumber, User owner, Bank bank, long initialBalanceMinor) {
         this.accountNumber = accountNumber;
         this.owner = owner;
         this.bank = bank;
-        this.balance = Math.max(0, initialBalance); // Ensure non-negative balance
+        this.balanceMinor = Math.max(0, initialBalanceMinor); // Ensure non-negative balance
         this.createdAt = LocalDateTime.now();
         this.isActive = true;
         this.accountType = "SAVINGS";
@@ -30,6 +33,15 @@ public class Account {
 
     // Getter and Setter
 
+    // 0- accountId
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(String accountId) {
+        this.accountId = accountId;
+    }
+
     // 1- accountNumber
     public String getAccountNumber() {
         return accountNumber;
@@ -57,13 +69,13 @@ public class Account {
         this.bank = bank;
     }
 
-    // 4- Balance
-    public double getBalance() {
-        return this.balance;
+    // 4- Balance, in paise
+    public synchronized long getBalanceMinor() {
+        return this.balanceMinor;
     }
 
-    public void setBalance(double balance) {
-        this.balance = Math.max(0, balance);
+    public synchronized void setBalanceMinor(long balanceMinor) {
+        this.balanceMinor = Math.max(0, balanceMinor);
     }
 
     // 5- Additional properties
@@ -71,6 +83,10 @@ public class Account {
         return this.createdAt;
     }
 
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
     public boolean isActive() {
         return this.isActive;
     }
@@ -87,25 +103,26 @@ public class Account {
         this.accountType = accountType;
     }
 
-    // Business logic methods
-    public boolean deposit(double amount) {
-        if (amount > 0 && this.isActive) {
-            this.balance += amount;
+    // Business logic methods; synchronized so a check-then-update cannot interleave
+    // Amounts are in paise; a deposit that would overflow throws ArithmeticException
+    public synchronized boolean deposit(long amountMinor) {
+        if (amountMinor > 0 && this.isActive) {
+            this.balanceMinor = Math.addExact(this.balanceMinor, amountMinor);
             return true;
         }
         return false;
     }
 
-    public boolean withdraw(double amount) {
-        if (amount > 0 && amount <= this.balance && this.isActive) {
-            this.balance -= amount;
+    public synchronized boolean withdraw(long amountMinor) {
+        if (amountMinor > 0 && amountMinor <= this.balanceMinor && this.isActive) {
+            this.balanceMinor -= amountMinor;
             return true;
         }
         return false;
     }
 
-    public boolean canWithdraw(double amount) {
-        return this.isActive && amount > 0 && this.balance >= amount;
+    public synchronized boolean canWithdraw(long amountMinor) {
+        return this.isActive && amountMinor > 0 && this.balanceMinor >= amountMinor;
     }
 
     // Utility methods for API
@@ -117,6 +134,10 @@ public class Account {
         return this.bank != null ? this.bank.getIfscCode() : null;
     }
 
+    public String getBankName() {
+        return this.bank != null ? this.bank.getBankName() : null;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
@@ -137,7 +158,7 @@ public class Account {
         return "Account{" +
                 "accountNumber='" + accountNumber + '\'' +
                 ", ownerName='" + (owner != null ? owner.getName() : "N/A") + '\'' +
-                ", balance=" + balance +
+                ", balance=" + Money.format(balanceMinor) +
                 ", bankName='" + (bank != null ? bank.getBankName() : "N/A") + '\'' +
                 ", accountType='" + accountType + '\'' +
                 ", isActive=" + isActive +
@@ -3,15 +3,21 @@ package app.model;
 import java.time.LocalDateTime;
 import java.util.Objects;
 
+import app.util.Money;
+
 public class Transaction {
     private String transactionId;
     private String fromAccountNumber;
     private String toAccountNumber;
-    private double amount;
+    private long amountMinor;
     private LocalDateTime timestamp;
     private String status; // SUCCESS, FAILED, PENDING
     private String description;
     private String transactionType; // TRANSFER, DEPOSIT, WITHDRAWAL
+    private String fromUserId;
+    private String toUserId;
+    private String fromAccountId;
+    private String toAccountId;
 
     public Transaction() {
         this.timestamp = LocalDateTime.now();
@@ -20,11 +26,11 @@ public class Transaction {
     }
 
     public Transaction(String transactionId, String fromAccountNumber, String toAccountNumber,
-            double amount, LocalDateTime timestamp, String status) {
+            long amountMinor, LocalDateTime timestamp, String status) {
         this.transactionId = transactionId;
         this.fromAccountNumber = fromAccountNumber;
         this.toAccountNumber = toAccountNumber;
-        this.amount = amount;
+        this.amountMinor = amountMinor;
         this.timestamp = timestamp != null ? timestamp : LocalDateTime.now();
         this.status = status != null ? status : "PENDING";
         this.transactionType = "TRANSFER";
@@ -59,13 +65,13 @@ public class Transaction {
         this.transactionId = transactionId;
     }
 
-    // 4- Amount
-    public double getAmount() {
-        return this.amount;
+    // 4- Amount, in paise
+    public long getAmountMinor() {
+        return this.amountMinor;
     }
 
-    public void setAmount(double amount) {
-        this.amount = amount;
+    public void setAmountMinor(long amountMinor) {
+        this.amountMinor = amountMinor;
     }
 
     // 5- timestamp
@@ -104,6 +110,40 @@ public class Transaction {
         this.transactionType = transactionType;
     }
 
+    // 9- fromUserId / toUserId
+    public String getFromUserId() {
+        return this.fromUserId;
+    }
+
+    public void setFromUserId(String fromUserId) {
+        this.fromUserId = fromUserId;
+    }
+
+    public String getToUserId() {
+        return this.toUserId;
+    }
+
+    public void setToUserId(String toUserId) {
+        this.toUserId = toUserId;
+    }
+
+    // 10- fromAccountId / toAccountId
+    public String getFromAccountId() {
+        return this.fromAccountId;
+    }
+
+    public void setFromAccountId(String fromAccountId) {
+        this.fromAccountId = fromAccountId;
+    }
+
+    public String getToAccountId() {
+        return this.toAccountId;
+    }
+
+    public void setToAccountId(String toAccountId) {
+        this.toAccountId = toAccountId;
+    }
+
     // Utility methods
     public boolean isSuccessful() {
         return "SUCCESS".equals(this.status);
@@ -143,7 +183,7 @@ public class Transaction {
                 "transactionId='" + transactionId + '\'' +
                 ", from='" + fromAccountNumber + '\'' +
                 ", to='" + toAccountNumber + '\'' +
-                ", amount=" + amount +
+                ", amount=" + Money.format(amountMinor) +
                 ", timestamp=" + timestamp +
                 ", status='" + status + '\'' +
                 ", type='" + transactionType + '\'' +
@@ -10,6 +10,9 @@ public class User {
     private String password;
     private LocalDateTime createdAt;
     private boolean isActive;
+    private String firstName;
+    private String lastName;
+    private long balanceMinor;
 
     public User() {
         this.createdAt = LocalDateTime.now();
@@ -81,7 +84,38 @@ public class User {
         this.isActive = isActive;
     }
 
+    // 7- firstName
+    public String getFirstName() {
+        return this.firstName;
+    }
+
+    public void setFirstName(String firstName) {
+        this.firstName = firstName;
+    }
+
+    // 8- lastName
+    public String getLastName() {
+        return this.lastName;
+    }
+
+    public void setLastName(String lastName) {
+        this.lastName = lastName;
+    }
+
+    // 9- balance, in paise
+    public long getBalanceMinor() {
+        return this.balanceMinor;
+    }
+
+    public void setBalanceMinor(long balanceMinor) {
+        this.balanceMinor = balanceMinor;
+    }
+
     // Utility methods for API responses
+    public String getFullName() {
+        return this.firstName + " " + this.lastName;
+    }
+
     public boolean authenticate(String password) {
         return this.password != null && this.password.equals(password);
     }
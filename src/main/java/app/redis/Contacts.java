@@ -0,0 +1,165 @@
+package app.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import app.model.User;
+import app.util.Env;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Contact search by prefix of first name, last name or payment id.
+ *
+ * Every user is indexed under a few terms: each word of the first and last
+ * name and the whole payment id, lowercased. An index entry is
+ * "term\0userId", so entries sort by term and a prefix is one contiguous
+ * range. In Redis the entries sit in lex-ordered sorted sets (all scores 0),
+ * one per first character of the term, so a search reads one range of one key
+ * with ZRANGEBYLEX and the index spreads over the cluster rather than landing
+ * in one slot. The in-memory store keeps the same entries in a sorted set.
+ *
+ * A search looks up its longest word, takes the first CANDIDATES entries of
+ * that range, loads those users and keeps the ones whose current names match
+ * every word of the query, so entries left behind by a replaced user are
+ * harmless. Exact words rank above prefixes and first names above last
+ * names, then {@link #ORDER} breaks ties.
+ */
+public class Contacts {
+
+    public static final int DEFAULT_LIMIT = 10;
+    public static final int MAX_LIMIT = 50;
+    // Index entries read per search; ranking sees no further than this
+    public static final int CANDIDATES = Env.getInt("WIPAY_CONTACT_CANDIDATES", 500);
+
+    /** Among equally good matches: shorter names first, then by name and id. */
+    public static final Comparator<User> ORDER = Comparator
+            .comparingInt((User user) -> user.getFullName().length())
+            .thenComparing(user -> user.getFullName().toLowerCase(Locale.ROOT))
+            .thenComparing(User::getUserId);
+
+    private static final char SEPARATOR = '\0';
+
+    private Contacts() {
+    }
+
+    /** The terms a user is found under. */
+    public static Set<String> terms(User user) {
+        Set<String> terms = new LinkedHashSet<>();
+        terms.addAll(words(user.getFirstName()));
+        terms.addAll(words(user.getLastName()));
+        terms.addAll(words(user.getUserId()));
+        return terms;
+    }
+
+    /** The words of a name or query, lowercased; empty if it has none. */
+    public static List<String> words(String text) {
+        if (text == null) {
+            return List.of();
+        }
+        String normal = text.toLowerCase(Locale.ROOT).replace(SEPARATOR, ' ').trim();
+        return normal.isEmpty() ? List.of() : Arrays.asList(normal.split("\\s+"));
+    }
+
+    /** The word of a query to read the index by: the longest, so the range is the narrowest. */
+    public static String lookupWord(List<String> words) {
+        return words.stream().max(Comparator.comparingInt(String::length)).orElseThrow();
+    }
+
+    public static String entry(String term, String userId) {
+        return term + SEPARATOR + userId;
+    }
+
+    public static String userIdOf(String entry) {
+        return entry.substring(entry.lastIndexOf(SEPARATOR) + 1);
+    }
+
+    /**
+     * Keeps the users matching every word and returns the best {@code limit}
+     * of them, best first.
+     */
+    public static List<User> rank(List<User> candidates, List<String> words, int limit) {
+        String lookup = lookupWord(words);
+        List<User> matches = new ArrayList<>();
+        for (User user : candidates) {
+            if (user != null && matchesAll(user, words)) {
+                matches.add(user);
+            }
+        }
+        matches.sort(Comparator.comparingInt((User user) -> score(user, lookup)).thenComparing(ORDER));
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    // 0 an exact first name or payment id, 1 an exact last name, then the same as prefixes
+    private static int score(User user, String word) {
+        List<String> first = words(user.getFirstName());
+        List<String> last = words(user.getLastName());
+        String paymentId = user.getUserId().toLowerCase(Locale.ROOT);
+        if (first.contains(word) || paymentId.equals(word)) {
+            return 0;
+        }
+        if (last.contains(word)) {
+            return 1;
+        }
+        if (startsWith(first, word)) {
+            return 2;
+        }
+        if (startsWith(last, word)) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static boolean matchesAll(User user, List<String> words) {
+        List<String> terms = new ArrayList<>(terms(user));
+        for (String word : words) {
+            if (!startsWith(terms, word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(List<String> terms, String prefix) {
+        for (String term : terms) {
+            if (term.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ===== REDIS INDEX =====
+
+    /** Adds the user's entries; ZADD of an existing entry changes nothing. */
+    public static void index(AbstractPipeline pipeline, User user) {
+        for (String term : terms(user)) {
+            pipeline.zadd(RedisKeys.contactIndex(term), 0, entry(term, user.getUserId()));
+        }
+    }
+
+    /** Ids of the users with a term starting with {@code word}, at most CANDIDATES of them. */
+    public static List<String> candidates(UnifiedJedis redis, String word) {
+        byte[] prefix = word.getBytes(StandardCharsets.UTF_8);
+        byte[] min = new byte[prefix.length + 1];
+        min[0] = '[';
+        System.arraycopy(prefix, 0, min, 1, prefix.length);
+        // 0xFF never occurs in UTF-8, so this bound is past every entry with the prefix
+        byte[] max = Arrays.copyOf(min, min.length + 1);
+        max[max.length - 1] = (byte) 0xFF;
+
+        List<byte[]> entries = redis.zrangeByLex(RedisKeys.contactIndex(word).getBytes(StandardCharsets.UTF_8),
+                min, max, 0, CANDIDATES);
+        Set<String> userIds = new LinkedHashSet<>();
+        for (byte[] entry : entries) {
+            userIds.add(userIdOf(new String(entry, StandardCharsets.UTF_8)));
+        }
+        return new ArrayList<>(userIds);
+    }
+}
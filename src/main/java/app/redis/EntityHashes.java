@@ -0,0 +1,125 @@
+package app.redis;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import app.model.Account;
+import app.model.Bank;
+import app.model.User;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Maps users and accounts to and from their Redis hashes. Each field is stored
+ * on its own, with the balance as an integer number of minor units so it can be
+ * changed in place with HINCRBY.
+ */
+public class EntityHashes {
+
+    public static Map<String, String> userFields(User user) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        putIfPresent(fields, "id", user.getUserId());
+        putIfPresent(fields, "firstName", user.getFirstName());
+        putIfPresent(fields, "lastName", user.getLastName());
+        fields.put("balance", String.valueOf(user.getBalanceMinor()));
+        putIfPresent(fields, "createdAt", user.getCreatedAt());
+        return fields;
+    }
+
+    public static Map<String, String> accountFields(Account account) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        putIfPresent(fields, "id", account.getAccountId());
+        putIfPresent(fields, "userId", account.getOwnerUserId());
+        putIfPresent(fields, "accountNumber", account.getAccountNumber());
+        putIfPresent(fields, "bankName", account.getBankName());
+        fields.put("balance", String.valueOf(account.getBalanceMinor()));
+        putIfPresent(fields, "createdAt", account.getCreatedAt());
+        return fields;
+    }
+
+    public static User toUser(Map<String, String> hash) {
+        User user = new User();
+        user.setUserId(hash.get("id"));
+        user.setFirstName(hash.get("firstName"));
+        user.setLastName(hash.get("lastName"));
+        user.setBalanceMinor(balance(hash));
+        user.setCreatedAt(time(hash.get("createdAt")));
+        return user;
+    }
+
+    public static Account toAccount(Map<String, String> hash) {
+        Account account = new Account();
+        account.setAccountId(hash.get("id"));
+        String userId = hash.get("userId");
+        if (userId != null) {
+            User owner = new User();
+            owner.setUserId(userId);
+            account.setOwner(owner);
+        }
+        account.setAccountNumber(hash.get("accountNumber"));
+        String bankName = hash.get("bankName");
+        if (bankName != null) {
+            Bank bank = new Bank();
+            bank.setBankName(bankName);
+            account.setBank(bank);
+        }
+        account.setBalanceMinor(balance(hash));
+        account.setCreatedAt(time(hash.get("createdAt")));
+        return account;
+    }
+
+    /**
+     * Reads many entity hashes in one pipelined round trip, skipping ids whose
+     * hash no longer exists.
+     */
+    public static <T> List<T> fetchAll(UnifiedJedis redis, Collection<? extends String> ids, Function<String, String> key,
+            Function<Map<String, String>, T> view) {
+        return new ArrayList<>(fetchMap(redis, ids, key, view).values());
+    }
+
+    /**
+     * Like fetchAll, keyed by id, in the order the ids were given.
+     */
+    public static <T> Map<String, T> fetchMap(UnifiedJedis redis, Collection<? extends String> ids,
+            Function<String, String> key, Function<Map<String, String>, T> view) {
+        Map<String, T> result = new LinkedHashMap<>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        Map<String, Response<Map<String, String>>> responses = new LinkedHashMap<>();
+        try (AbstractPipeline pipeline = redis.pipelined()) {
+            for (String id : ids) {
+                responses.put(id, pipeline.hgetAll(key.apply(id)));
+            }
+            pipeline.sync();
+        }
+        for (Map.Entry<String, Response<Map<String, String>>> response : responses.entrySet()) {
+            Map<String, String> hash = response.getValue().get();
+            if (!hash.isEmpty()) {
+                result.put(response.getKey(), view.apply(hash));
+            }
+        }
+        return result;
+    }
+
+    private static void putIfPresent(Map<String, String> fields, String name, Object value) {
+        if (value != null) {
+            fields.put(name, value.toString());
+        }
+    }
+
+    private static long balance(Map<String, String> hash) {
+        String balance = hash.get("balance");
+        return balance != null ? Long.parseLong(balance) : 0;
+    }
+
+    private static LocalDateTime time(String value) {
+        return value != null ? LocalDateTime.parse(value) : null;
+    }
+}
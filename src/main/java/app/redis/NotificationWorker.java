@@ -0,0 +1,235 @@
+package app.redis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import app.json.JsonCodec;
+import app.metrics.Metrics;
+import app.model.Transaction;
+import app.util.Env;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Stores transfer notifications off the request path.
+ *
+ * A transfer that went through hands its transaction JSON to
+ * {@link #transferCompleted}, which only queues it. One background thread
+ * takes whatever has queued up, up to WIPAY_NOTIFY_BATCH transfers at a time,
+ * formats both parties' messages and stores them with one pipelined notify.lua
+ * call each, so every inbox fills in the order the transfers were queued.
+ *
+ * The queue holds WIPAY_NOTIFY_QUEUE transfers. When it is full, their
+ * notifications are dropped and counted rather than make the transfer wait:
+ * notifications stay off the request path even when Redis falls behind. The
+ * backlog and the drops are on /metrics. A batch that fails is retried until
+ * it goes through, which can store a notification twice if Redis fails half
+ * way. Notifications still queued when the process dies are lost (the
+ * transactions themselves are already stored); close() drains the queue.
+ */
+public class NotificationWorker implements AutoCloseable {
+
+    private static final int QUEUE = Env.getInt("WIPAY_NOTIFY_QUEUE", 100_000);
+    private static final int BATCH = Env.getInt("WIPAY_NOTIFY_BATCH", 256);
+    private static final long RETRY_MILLIS = 1000;
+    private static final long CLOSE_MILLIS = 5000;
+    private static final long DROP_LOG_NANOS = 10_000_000_000L;
+
+    private static final RedisScript NOTIFY = RedisScript.fromResource("/lua/notify.lua");
+
+    private final UnifiedJedis redis;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE);
+    private final Thread thread;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // When drops were last logged, so a queue that stays full logs every 10s rather than every transfer
+    private volatile long dropLogged = System.nanoTime() - DROP_LOG_NANOS;
+    // Transfers taken off the queue whose notifications are not stored yet
+    private volatile int inFlight;
+    private volatile boolean closed;
+
+    public NotificationWorker(UnifiedJedis redis) {
+        this.redis = redis;
+        this.thread = new Thread(this::run, "notification-worker");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        Metrics.sampled("wipay_notification_backlog", "gauge",
+                "Transfers whose notifications are not stored yet", this::backlog);
+        Metrics.sampled("wipay_notifications_dropped_total", "counter",
+                "Transfers whose notifications were dropped because the queue was full", this.dropped::sum);
+    }
+
+    public static void preload(UnifiedJedis redis) {
+        NOTIFY.preload(redis);
+    }
+
+    /**
+     * Queues the notifications for a transfer that just went through. Never
+     * blocks: when the queue is full, they are dropped and counted.
+     */
+    public void transferCompleted(String transactionJson) {
+        if (this.queue.offer(transactionJson)) {
+            this.queued.increment();
+            return;
+        }
+        this.dropped.increment();
+        long now = System.nanoTime();
+        if (now - this.dropLogged >= DROP_LOG_NANOS) {
+            this.dropLogged = now;
+            System.err.println("Notification queue is full (" + QUEUE + "), " + this.dropped.sum()
+                    + " transfers' notifications dropped so far");
+        }
+    }
+
+    /** Transfers whose notifications are not stored yet. */
+    public long backlog() {
+        return this.queue.size() + this.inFlight;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("backlog", backlog());
+        stats.put("capacity", QUEUE);
+        stats.put("queued", this.queued.sum());
+        stats.put("stored", this.stored.sum());
+        stats.put("batches", this.batches.sum());
+        stats.put("retries", this.retries.sum());
+        stats.put("dropped", this.dropped.sum());
+        return stats;
+    }
+
+    /**
+     * Stops taking new work once the queue is empty, waiting up to a few
+     * seconds for what is left; call before closing the Redis client.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.thread.join(CLOSE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>(BATCH);
+        while (!this.closed || !this.queue.isEmpty()) {
+            try {
+                String first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                this.queue.drainTo(batch, BATCH - 1);
+                this.inFlight = batch.size();
+                storeQuietly(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+                this.inFlight = 0;
+            }
+        }
+    }
+
+    private void storeQuietly(List<String> batch) throws InterruptedException {
+        List<Notification> notifications = notifications(batch);
+        while (true) {
+            try {
+                store(notifications);
+                this.stored.add(notifications.size());
+                this.batches.increment();
+                return;
+            } catch (RuntimeException e) {
+                if (this.closed) {
+                    System.err.println("Dropping " + notifications.size() + " notifications on shutdown: " + e);
+                    return;
+                }
+                this.retries.increment();
+                System.err.println("Storing notifications failed, retrying: " + e);
+                Thread.sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    // Sender's then receiver's notification for each transfer, in queue order
+    private static List<Notification> notifications(List<String> batch) {
+        List<Notification> notifications = new ArrayList<>(batch.size() * 2);
+        for (String json : batch) {
+            Transaction txn;
+            try {
+                txn = JsonCodec.readTransaction(json.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Skipping notifications for unreadable transaction " + json + ": " + e);
+                continue;
+            }
+            boolean byAccount = txn.getFromAccountId() != null;
+            String timestamp = txn.getTimestamp().toString();
+            notifications.add(new Notification(txn.getFromUserId(), Notifications.sentMessage(byAccount,
+                    txn.getFromUserId(), txn.getToUserId(), txn.getAmountMinor()), timestamp));
+            notifications.add(new Notification(txn.getToUserId(), Notifications.receivedMessage(byAccount,
+                    txn.getFromUserId(), txn.getAmountMinor()), timestamp));
+        }
+        return notifications;
+    }
+
+    private void store(List<Notification> notifications) {
+        List<Response<Object>> replies = new ArrayList<>(notifications.size());
+        try (AbstractPipeline pipeline = this.redis.pipelined()) {
+            for (Notification notification : notifications) {
+                replies.add(NOTIFY.evalIn(pipeline, notification.keys(), notification.args()));
+            }
+            pipeline.sync();
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            try {
+                replies.get(i).get();
+            } catch (JedisNoScriptException e) {
+                // Script cache was flushed, so this one did not run; run it on its own
+                Notification notification = notifications.get(i);
+                NOTIFY.eval(this.redis, notification.keys(), notification.args());
+            } catch (JedisDataException e) {
+                // Retrying would not help this one, and would repeat the rest
+                System.err.println("Skipping notification for " + notifications.get(i).userId + ": " + e);
+            }
+        }
+    }
+
+    /** One message for one user's inbox. */
+    private static class Notification {
+        private final String userId;
+        private final String message;
+        private final String timestamp;
+
+        Notification(String userId, String message, String timestamp) {
+            this.userId = userId;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+
+        List<String> keys() {
+            return List.of(RedisKeys.notifications(this.userId), RedisKeys.inbox(this.userId),
+                    RedisKeys.notificationArchive(this.userId));
+        }
+
+        List<String> args() {
+            return List.of(this.message, this.timestamp, String.valueOf(Notifications.CAP),
+                    String.valueOf(Notifications.ARCHIVE_CAP));
+        }
+    }
+}
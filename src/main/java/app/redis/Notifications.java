@@ -0,0 +1,99 @@
+package app.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import app.json.RawJson;
+import app.util.Env;
+import app.util.Money;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Per-user notification inboxes.
+ *
+ * notify.lua numbers each user's notifications 1, 2, 3... and keeps
+ * only the newest WIPAY_NOTIFICATION_CAP of them in the inbox list; older ones
+ * move to a per-user archive stream capped at WIPAY_NOTIFICATION_ARCHIVE_CAP.
+ * The inbox hash holds the last number handed out and the read cursor, so the
+ * unread count is their difference and polling clients can ask for everything
+ * after the last number they saw. Transfers do not write them themselves;
+ * NotificationWorker stores them in the background.
+ */
+public class Notifications {
+
+    public static final int CAP = Env.getInt("WIPAY_NOTIFICATION_CAP", 100);
+    public static final int ARCHIVE_CAP = Env.getInt("WIPAY_NOTIFICATION_ARCHIVE_CAP", 1000);
+
+    private static final RedisScript SINCE = RedisScript.fromResource("/lua/notifications_since.lua");
+    private static final RedisScript MARK_READ = RedisScript.fromResource("/lua/notifications_read.lua");
+
+    public static void preload(UnifiedJedis redis) {
+        SINCE.preload(redis);
+        MARK_READ.preload(redis);
+    }
+
+    /**
+     * Notifications numbered after {@code since}, newest first, with the inbox
+     * state: {"items": [...], "lastSeq": n, "unread": n}. Poll again with
+     * since=lastSeq to get only what arrived in between.
+     */
+    public static Map<String, Object> since(UnifiedJedis redis, String userId, long since) {
+        List<?> reply = (List<?>) SINCE.eval(redis,
+                List.of(RedisKeys.notifications(userId), RedisKeys.inbox(userId)),
+                List.of(String.valueOf(since)));
+        List<RawJson> items = new ArrayList<>();
+        // An empty Lua table can come back as an empty map rather than a list
+        if (reply.get(2) instanceof List<?> values) {
+            for (Object json : values) {
+                items.add(new RawJson((String) json));
+            }
+        }
+        Map<String, Object> result = state((Long) reply.get(0), (Long) reply.get(1));
+        result.put("items", items);
+        return result;
+    }
+
+    public static Map<String, Object> unread(UnifiedJedis redis, String userId) {
+        List<String> meta = redis.hmget(RedisKeys.inbox(userId), "seq", "read");
+        return state(parse(meta.get(0)), parse(meta.get(1)));
+    }
+
+    /**
+     * Marks everything up to {@code seq} as read, or everything if seq is null.
+     */
+    public static Map<String, Object> markRead(UnifiedJedis redis, String userId, Long seq) {
+        List<?> reply = (List<?>) MARK_READ.eval(redis, List.of(RedisKeys.inbox(userId)),
+                List.of(seq == null ? "" : seq.toString()));
+        return state((Long) reply.get(0), (Long) reply.get(1));
+    }
+
+    /** What the sender of a transfer is told; both stores word it the same. */
+    public static String sentMessage(boolean byAccount, String fromUserId, String toUserId, long amountMinor) {
+        String major = Money.format(amountMinor);
+        return byAccount
+                ? "Sent: ₹" + major + " to " + toUserId
+                : fromUserId + " sent ₹" + major + " to " + toUserId;
+    }
+
+    /** What the receiver of a transfer is told. */
+    public static String receivedMessage(boolean byAccount, String fromUserId, long amountMinor) {
+        String major = Money.format(amountMinor);
+        return byAccount
+                ? "Received: ₹" + major + " from " + fromUserId
+                : "Received ₹" + major + " from " + fromUserId;
+    }
+
+    private static Map<String, Object> state(long lastSeq, long readSeq) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("lastSeq", lastSeq);
+        state.put("readSeq", readSeq);
+        state.put("unread", Math.max(0, lastSeq - readSeq));
+        return state;
+    }
+
+    private static long parse(String value) {
+        return value != null ? Long.parseLong(value) : 0;
+    }
+}
@@ -0,0 +1,124 @@
+package app.redis;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import app.store.Page;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.Tuple;
+
+/**
+ * Cursor-based windows over the id sets and lists behind the list endpoints,
+ * so no request has to read a whole collection at once.
+ */
+public class Paging {
+
+    private static final BigInteger SHARDS = BigInteger.valueOf(RedisKeys.ID_SHARDS);
+
+    /**
+     * SSCAN steps over an id set split into RedisKeys.ID_SHARDS shards, with
+     * the entities read in a single pipeline. The cursor packs the shard and
+     * its SSCAN cursor into one number, scanCursor * ID_SHARDS + shard ("0"
+     * to start); shards are walked in order until about {@code limit}
+     * ids are found. SSCAN treats the limit as a hint, so a page may hold a
+     * few more or fewer items.
+     */
+    public static <T> Page<T> setPage(UnifiedJedis redis, IntFunction<String> shardKey, String cursor, int limit,
+            Function<String, String> key, Function<Map<String, String>, T> view) {
+        return setPage(redis, shardKey, cursor, limit, ids -> EntityHashes.fetchAll(redis, ids, key, view));
+    }
+
+    /**
+     * Like the above, with the entities for the ids loaded by {@code fetch}
+     * (for example from a cache).
+     */
+    public static <T> Page<T> setPage(UnifiedJedis redis, IntFunction<String> shardKey, String cursor, int limit,
+            Function<List<String>, List<T>> fetch) {
+        BigInteger[] position = new BigInteger(cursor).divideAndRemainder(SHARDS);
+        String scanCursor = position[0].toString();
+        int shard = position[1].intValue();
+        List<String> ids = new ArrayList<>();
+        String next = null;
+        while (shard < RedisKeys.ID_SHARDS) {
+            ScanResult<String> scan = redis.sscan(shardKey.apply(shard), scanCursor,
+                    new ScanParams().count(limit - ids.size()));
+            ids.addAll(scan.getResult());
+            if (scan.isCompleteIteration()) {
+                shard++;
+                scanCursor = ScanParams.SCAN_POINTER_START;
+            } else {
+                scanCursor = scan.getCursor();
+            }
+            if (ids.size() >= limit) {
+                next = shard < RedisKeys.ID_SHARDS
+                        ? new BigInteger(scanCursor).multiply(SHARDS).add(BigInteger.valueOf(shard)).toString()
+                        : null;
+                break;
+            }
+        }
+        return new Page<>(fetch.apply(ids), next);
+    }
+
+    /**
+     * An LRANGE window; the cursor is the index of the first element.
+     */
+    public static <T> Page<T> listPage(UnifiedJedis redis, String listKey, String cursor, int limit,
+            Function<String, T> view) {
+        long start = Long.parseLong(cursor);
+        List<String> values = redis.lrange(listKey, start, start + limit - 1);
+        List<T> items = new ArrayList<>(values.size());
+        for (String value : values) {
+            items.add(view.apply(value));
+        }
+        return new Page<>(items, values.size() < limit ? null : String.valueOf(start + limit));
+    }
+
+    /**
+     * A window of a sorted set index between two scores, in score order,
+     * with each id's value read from {@code hashKey} in one HMGET. The cursor
+     * is "score:skip", the score to continue from and how many ids with that
+     * score were already returned ("0" to start at {@code min}), so each
+     * window is one ZRANGEBYSCORE however deep into the range it is and ids
+     * added meanwhile do not shift it.
+     */
+    public static <T> Page<T> scorePage(UnifiedJedis redis, String indexKey, String hashKey, long min, long max,
+            String cursor, int limit, Function<String, T> view) {
+        long from = min;
+        int skip = 0;
+        int split = cursor.indexOf(':');
+        if (split > 0) {
+            from = Long.parseLong(cursor.substring(0, split));
+            skip = Integer.parseInt(cursor.substring(split + 1));
+        }
+        List<Tuple> entries = redis.zrangeByScoreWithScores(indexKey, from, max, skip, limit);
+        List<T> items = new ArrayList<>(entries.size());
+        if (!entries.isEmpty()) {
+            String[] ids = new String[entries.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = entries.get(i).getElement();
+            }
+            for (String value : redis.hmget(hashKey, ids)) {
+                if (value != null) {
+                    items.add(view.apply(value));
+                }
+            }
+        }
+        if (entries.size() < limit) {
+            return new Page<>(items, null);
+        }
+        long last = (long) entries.get(entries.size() - 1).getScore();
+        int atLast = 0;
+        for (int i = entries.size() - 1; i >= 0 && (long) entries.get(i).getScore() == last; i--) {
+            atLast++;
+        }
+        // A window that never left the score it started at skips past all of it
+        int nextSkip = last == from && atLast == entries.size() ? skip + atLast : atLast;
+        return new Page<>(items, last + ":" + nextSkip);
+    }
+}
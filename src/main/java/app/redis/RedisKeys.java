@@ -0,0 +1,127 @@
+package app.redis;
+
+import app.util.Env;
+
+/**
+ * Redis key layout shared by the API and the migration jobs.
+ *
+ * Every key that belongs to one user carries the hash tag {u:userId}, so Redis
+ * Cluster keeps the user's hash, accounts, transactions, report totals and
+ * inbox in one slot, and a script that touches one user runs on one node.
+ * Users spread over the cluster by the CRC16 slot of their tag. Accounts are
+ * tagged with their owner, who is looked up from a directory key per account.
+ * The id sets behind the list endpoints are split into WIPAY_ID_SHARDS sets,
+ * which land in different slots, so no single key holds every id.
+ *
+ * On a single Redis node the tags change nothing but the key names.
+ */
+public class RedisKeys {
+    // Number of sets each id list is split into; changing it needs the sets rebuilt
+    public static final int ID_SHARDS = Env.getInt("WIPAY_ID_SHARDS", 16);
+
+    // Hash of migration name -> completion time, so one-time jobs stay one-time
+    public static final String MIGRATIONS = "wipay:migrations";
+
+    // Pub/sub channel carrying "user:{id}" / "account:{id}" whenever one changes
+    public static final String CACHE_INVALIDATIONS = "wipay:cache:invalidations";
+
+    // Hash tag that puts a key in the user's slot
+    public static String tag(String userId) {
+        return "{u:" + userId + "}";
+    }
+
+    // Lex-ordered sorted set of "term\0userId" contact search entries whose term starts with the same character
+    public static String contactIndex(String term) {
+        return "wipay:contacts:" + term.substring(0, Character.charCount(term.codePointAt(0)));
+    }
+
+    // Hash of one user's fields, balance in minor units
+    public static String user(String userId) {
+        return "wipay:" + tag(userId) + ":user";
+    }
+
+    // Hash of one account's fields, balance in minor units, in its owner's slot
+    public static String account(String ownerUserId, String accountId) {
+        return "wipay:" + tag(ownerUserId) + ":account:" + accountId;
+    }
+
+    // String holding the owner's user id, to find an account's slot from its id
+    public static String accountOwner(String accountId) {
+        return "wipay:account-owner:" + accountId;
+    }
+
+    // Set of account ids owned by a user
+    public static String accountsByUser(String userId) {
+        return "wipay:" + tag(userId) + ":accounts";
+    }
+
+    // Which of the ID_SHARDS sets an id is listed in
+    public static int idShard(String id) {
+        return Math.floorMod(id.hashCode(), ID_SHARDS);
+    }
+
+    // One shard of the set of every user id
+    public static String userIds(int shard) {
+        return "wipay:user-ids:" + shard;
+    }
+
+    // One shard of the set of every account id
+    public static String accountIds(int shard) {
+        return "wipay:account-ids:" + shard;
+    }
+
+    // Hash of transaction id -> JSON for every transaction the user sent or received
+    public static String transactions(String userId) {
+        return "wipay:" + tag(userId) + ":txns";
+    }
+
+    // Sorted set of transaction ids a user sent or received, scored by epoch millis
+    public static String transactionsByUser(String userId) {
+        return "wipay:" + tag(userId) + ":txns:byTime";
+    }
+
+    // Hash of running report totals: sentMinor, receivedMinor, totalTransactions
+    public static String reportTotals(String userId) {
+        return "wipay:" + tag(userId) + ":totals";
+    }
+
+    // Hash of one day's (2025-11-13) or month's (2025-11) report rollup; see Rollups
+    public static String rollup(String userId, String period) {
+        return "wipay:" + tag(userId) + ":rollup:" + period;
+    }
+
+    // List of a user's newest notifications, newest first, capped in length
+    public static String notifications(String userId) {
+        return "wipay:" + tag(userId) + ":inbox";
+    }
+
+    // Hash of inbox state: seq (last notification number), read (read cursor)
+    public static String inbox(String userId) {
+        return "wipay:" + tag(userId) + ":inbox:meta";
+    }
+
+    // Stream of notifications trimmed off the capped list
+    public static String notificationArchive(String userId) {
+        return "wipay:" + tag(userId) + ":inbox:archive";
+    }
+
+    // Hash of a cross-slot transfer's reservation (state PENDING, SUCCESS or FAILED), in the sender's slot
+    public static String transfer(String fromUserId, String transferId) {
+        return "wipay:" + tag(fromUserId) + ":transfer:" + transferId;
+    }
+
+    // String marking a cross-slot transfer the receiver must no longer be credited for, in its slot
+    public static String transferAbort(String toUserId, String transferId) {
+        return "wipay:" + tag(toUserId) + ":transfer-abort:" + transferId;
+    }
+
+    // String holding the response to a request sent with an Idempotency-Key ("route:key")
+    public static String idempotency(String key) {
+        return "wipay:idempotency:" + key;
+    }
+
+    // One shard of the sorted set of unsettled cross-slot transfers, "transferId|fromUserId" by start millis
+    public static String pendingTransfers(int shard) {
+        return "wipay:pending-transfers:" + shard;
+    }
+}
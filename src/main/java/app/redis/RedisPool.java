@@ -0,0 +1,176 @@
+package app.redis;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import app.metrics.Metrics;
+import app.util.Env;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Shared Redis connection pool, built once at startup from REDIS_URL, or a
+ * Redis Cluster client when REDIS_CLUSTER_NODES lists seed nodes
+ * ("host:port,host:port"). The cluster client discovers the other nodes,
+ * keeps one pool per node and routes each command by its key's slot;
+ * REDIS_URL then only supplies credentials and TLS.
+ *
+ * Pool sizing and eviction are read from environment variables so they can be
+ * tuned per deployment without a rebuild:
+ * REDIS_POOL_MAX_TOTAL, REDIS_POOL_MAX_IDLE, REDIS_POOL_MIN_IDLE,
+ * REDIS_POOL_MAX_WAIT_MS, REDIS_POOL_IDLE_EVICT_MS, REDIS_POOL_EVICT_INTERVAL_MS,
+ * REDIS_POOL_TEST_ON_BORROW and REDIS_TIMEOUT_MS.
+ *
+ * With virtual threads nothing caps how many handlers run at once, so the
+ * pool becomes the limit on concurrent Redis work and gets larger defaults;
+ * requests beyond it wait up to REDIS_POOL_MAX_WAIT_MS for a connection.
+ *
+ * Single-node connections time their commands for /metrics unless
+ * WIPAY_METRICS=false; the cluster client builds its own per-node pools, so
+ * its commands are not timed.
+ */
+public class RedisPool {
+
+    private static final int DEFAULT_PORT = 6379;
+
+    public static UnifiedJedis fromEnv() {
+        return fromEnv(false);
+    }
+
+    public static UnifiedJedis fromEnv(boolean virtualThreads) {
+        HostAndPort address = new HostAndPort("localhost", DEFAULT_PORT);
+        DefaultJedisClientConfig.Builder client = DefaultJedisClientConfig.builder()
+                .timeoutMillis(Env.getInt("REDIS_TIMEOUT_MS", 2000));
+
+        String redisUrl = System.getenv("REDIS_URL");
+        if (redisUrl != null && !redisUrl.isEmpty()) {
+            // Parse Railway Redis URL format: redis://:password@host:port
+            try {
+                URI uri = new URI(redisUrl);
+                address = new HostAndPort(uri.getHost(), uri.getPort() != -1 ? uri.getPort() : DEFAULT_PORT);
+                String userInfo = uri.getUserInfo();
+                if (userInfo != null) {
+                    int colon = userInfo.indexOf(':');
+                    String user = colon >= 0 ? userInfo.substring(0, colon) : null;
+                    String password = colon >= 0 ? userInfo.substring(colon + 1) : userInfo;
+                    if (user != null && !user.isEmpty()) {
+                        client.user(user);
+                    }
+                    if (!password.isEmpty()) {
+                        client.password(password);
+                    }
+                }
+                client.ssl("rediss".equals(uri.getScheme()));
+            } catch (Exception e) {
+                System.err.println("Failed to parse REDIS_URL, using localhost");
+            }
+        }
+
+        String clusterNodes = System.getenv("REDIS_CLUSTER_NODES");
+        if (clusterNodes != null && !clusterNodes.isBlank()) {
+            Set<HostAndPort> seeds = new HashSet<>();
+            for (String node : clusterNodes.split(",")) {
+                seeds.add(HostAndPort.from(node.trim()));
+            }
+            return new JedisCluster(seeds, client.build(), Env.getInt("REDIS_CLUSTER_MAX_ATTEMPTS", 5),
+                    poolConfigFromEnv(virtualThreads));
+        }
+        return create(address, client.build(), poolConfigFromEnv(virtualThreads));
+    }
+
+    public static JedisPooled create(HostAndPort address, JedisClientConfig client, ConnectionPoolConfig config) {
+        return create(address, client, config, Metrics.ENABLED);
+    }
+
+    /**
+     * A single-node pool; with {@code timed}, every command outside a
+     * pipeline is timed into Metrics (see TimedConnection).
+     */
+    public static JedisPooled create(HostAndPort address, JedisClientConfig client, ConnectionPoolConfig config,
+            boolean timed) {
+        if (timed) {
+            return new JedisPooled(config, new TimedConnection.Factory(address, client));
+        }
+        return new JedisPooled(config, address, client);
+    }
+
+    public static ConnectionPoolConfig poolConfigFromEnv() {
+        return poolConfigFromEnv(false);
+    }
+
+    public static ConnectionPoolConfig poolConfigFromEnv(boolean virtualThreads) {
+        ConnectionPoolConfig config = new ConnectionPoolConfig();
+        config.setMaxTotal(Env.getInt("REDIS_POOL_MAX_TOTAL", virtualThreads ? 128 : 32));
+        // Under virtual threads demand is bursty; keep connections open rather than churn them
+        config.setMaxIdle(Env.getInt("REDIS_POOL_MAX_IDLE", virtualThreads ? 128 : 16));
+        config.setMinIdle(Env.getInt("REDIS_POOL_MIN_IDLE", 2));
+
+        // Borrowers wait at most this long for a free connection, then fail fast
+        config.setBlockWhenExhausted(true);
+        config.setMaxWait(Duration.ofMillis(Env.getInt("REDIS_POOL_MAX_WAIT_MS", 2000)));
+
+        // Idle eviction and health checks run on the evictor thread, off the request path
+        config.setTimeBetweenEvictionRuns(Duration.ofMillis(Env.getInt("REDIS_POOL_EVICT_INTERVAL_MS", 30_000)));
+        config.setMinEvictableIdleDuration(Duration.ofMillis(Env.getInt("REDIS_POOL_IDLE_EVICT_MS", 60_000)));
+        config.setTestWhileIdle(true);
+        config.setTestOnBorrow(Boolean.parseBoolean(System.getenv("REDIS_POOL_TEST_ON_BORROW")));
+        config.setJmxEnabled(false);
+        return config;
+    }
+
+    /**
+     * Pool figures; for a cluster, the counts of all nodes' pools summed,
+     * wait times from the worst node, plus the node count.
+     */
+    public static Map<String, Object> stats(UnifiedJedis redis) {
+        if (redis instanceof JedisCluster cluster) {
+            Map<String, ConnectionPool> nodes = cluster.getClusterNodes();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("nodes", nodes.size());
+            for (ConnectionPool pool : nodes.values()) {
+                stats(pool).forEach((name, value) -> stats.merge(name, value,
+                        (a, b) -> name.endsWith("WaitMs") ? Math.max(toLong(a), toLong(b)) : sum(a, b)));
+            }
+            return stats;
+        }
+        return stats(((JedisPooled) redis).getPool());
+    }
+
+    private static Map<String, Object> stats(Pool<Connection> pool) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("active", pool.getNumActive());
+        stats.put("idle", pool.getNumIdle());
+        stats.put("waiting", pool.getNumWaiters());
+        stats.put("maxTotal", pool.getMaxTotal());
+        stats.put("created", pool.getCreatedCount());
+        stats.put("destroyed", pool.getDestroyedCount());
+        stats.put("borrowed", pool.getBorrowedCount());
+        stats.put("meanBorrowWaitMs", pool.getMeanBorrowWaitDuration().toMillis());
+        stats.put("maxBorrowWaitMs", pool.getMaxBorrowWaitDuration().toMillis());
+        return stats;
+    }
+
+    private static Object sum(Object a, Object b) {
+        if (a instanceof Integer x && b instanceof Integer y) {
+            return x + y;
+        }
+        return toLong(a) + toLong(b);
+    }
+
+    private static long toLong(Object value) {
+        return ((Number) value).longValue();
+    }
+
+}
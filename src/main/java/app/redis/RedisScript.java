@@ -0,0 +1,90 @@
+package app.redis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * A Lua script bundled under src/main/resources, invoked by SHA so only the
+ * digest crosses the wire on each call.
+ */
+public class RedisScript {
+    // SHA -> file name without .lua, so metrics can tell EVALSHA calls apart
+    private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final String sha;
+
+    private RedisScript(String source) {
+        this.source = source;
+        this.sha = sha1(source);
+    }
+
+    public static RedisScript fromResource(String path) {
+        try (InputStream in = RedisScript.class.getResourceAsStream(path)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing script " + path);
+            }
+            RedisScript script = new RedisScript(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            NAMES.put(script.sha, path.substring(path.lastIndexOf('/') + 1).replace(".lua", ""));
+            return script;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The bundled script with this SHA, e.g. "transfer_users", or null for an inline one. */
+    public static String nameOf(String sha) {
+        return NAMES.get(sha);
+    }
+
+    public String getSha() {
+        return this.sha;
+    }
+
+    public void preload(UnifiedJedis redis) {
+        redis.scriptLoad(source);
+    }
+
+    public Object eval(UnifiedJedis redis, List<String> keys, List<String> args) {
+        try {
+            return redis.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            // Script cache was flushed or this node restarted; EVAL caches it again
+            return redis.eval(source, keys, args);
+        }
+    }
+
+    /**
+     * Queues an EVALSHA on a pipeline. A NOSCRIPT error surfaces when the
+     * response is read; nothing ran in that case, so the caller can retry
+     * with {@link #eval}.
+     */
+    public Response<Object> evalIn(AbstractPipeline pipeline, List<String> keys, List<String> args) {
+        return pipeline.evalsha(sha, keys, args);
+    }
+
+    private static String sha1(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package app.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.json.RawJson;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Builds the per-user report from the transaction index and the running
+ * totals kept by the transfer scripts. Cost depends on the page size, not on
+ * how many transactions the user has.
+ */
+public class Reports {
+
+    /**
+     * One page of the user's transactions, newest first, plus their totals.
+     * Returns null if the user does not exist.
+     */
+    public static Map<String, Object> forUser(UnifiedJedis redis, String userId, int limit, int offset) {
+        String balance = redis.hget(RedisKeys.user(userId), "balance");
+        if (balance == null) {
+            return null;
+        }
+
+        List<String> txnIds = redis.zrevrange(RedisKeys.transactionsByUser(userId), offset, offset + limit - 1);
+        List<RawJson> userTransactions = new ArrayList<>();
+        if (!txnIds.isEmpty()) {
+            for (String txJson : redis.hmget(RedisKeys.transactions(userId), txnIds.toArray(new String[0]))) {
+                if (txJson != null) {
+                    userTransactions.add(new RawJson(txJson));
+                }
+            }
+        }
+
+        Map<String, String> totals = redis.hgetAll(RedisKeys.reportTotals(userId));
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("userId", userId);
+        report.put("totalTransactions", Long.parseLong(totals.getOrDefault("totalTransactions", "0")));
+        report.put("totalSent", JsonCodec.money(Long.parseLong(totals.getOrDefault("sentMinor", "0"))));
+        report.put("totalReceived", JsonCodec.money(Long.parseLong(totals.getOrDefault("receivedMinor", "0"))));
+        report.put("currentBalance", JsonCodec.money(Long.parseLong(balance)));
+        report.put("transactions", userTransactions);
+        report.put("limit", limit);
+        report.put("offset", offset);
+        return report;
+    }
+}
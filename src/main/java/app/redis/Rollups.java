@@ -0,0 +1,235 @@
+package app.redis;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Per-user report rollups by day and by month.
+ *
+ * Every transfer adds its amount to one day bucket and one month bucket of
+ * each party, in the same script that keeps the lifetime totals, so the
+ * buckets are exactly as current as the balances. A bucket is a hash:
+ * sentMinor, receivedMinor, sentCount, receivedCount, and per counterparty
+ * peer:{userId} (amount both ways, minor units) and peerCount:{userId}.
+ * Periods are local dates (2025-11-13) or months (2025-11) of the transfer's
+ * timestamp.
+ *
+ * A range report reads one bucket per day or month in the range and merges
+ * them, so it costs the same whatever the user's transaction volume; a
+ * bucket grows only with the number of distinct counterparties in its period.
+ * The in-memory store keeps the same fields in a map per bucket.
+ */
+public class Rollups {
+
+    public static final String DAY = "day";
+    public static final String MONTH = "month";
+    public static final int DEFAULT_TOP = 5;
+    public static final int MAX_TOP = 50;
+
+    private static final int MAX_DAYS = 366;
+    private static final int MAX_MONTHS = 120;
+    private static final String PEER = "peer:";
+    private static final String PEER_COUNT = "peerCount:";
+
+    private Rollups() {
+    }
+
+    public static String day(LocalDateTime at) {
+        return at.toLocalDate().toString();
+    }
+
+    public static String month(LocalDateTime at) {
+        return YearMonth.from(at).toString();
+    }
+
+    /** The local time of a transfer score (epoch millis), as the scripts store it. */
+    public static LocalDateTime at(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+
+    /** Adds one side of a transfer to a bucket, as the scripts' rollup() does. */
+    public static void add(Map<String, Long> bucket, boolean sent, long amountMinor, String peer) {
+        String side = sent ? "sent" : "received";
+        bucket.merge(side + "Minor", amountMinor, Long::sum);
+        bucket.merge(side + "Count", 1L, Long::sum);
+        bucket.merge(PEER + peer, amountMinor, Long::sum);
+        bucket.merge(PEER_COUNT + peer, 1L, Long::sum);
+    }
+
+    /**
+     * The range for from/to (yyyy-MM-dd, or yyyy-MM with months) and
+     * granularity, each of which may be null: by day, the 30 days up to
+     * today, by month, the 12 months up to this one. Month ranges cover whole
+     * months. Throws IllegalArgumentException with a message for the client.
+     */
+    public static Range range(String from, String to, String granularity) {
+        String unit = granularity == null ? DAY : granularity.toLowerCase();
+        if (!DAY.equals(unit) && !MONTH.equals(unit)) {
+            throw new IllegalArgumentException("granularity must be day or month");
+        }
+        boolean byMonth = MONTH.equals(unit);
+        LocalDate end = to == null ? LocalDate.now() : date(to, "to", true);
+        LocalDate start = from == null
+                ? (byMonth ? end.minusMonths(11).withDayOfMonth(1) : end.minusDays(29))
+                : date(from, "from", false);
+        if (byMonth) {
+            start = start.withDayOfMonth(1);
+            end = YearMonth.from(end).atEndOfMonth();
+        }
+        if (start.isAfter(end)) {
+            throw new IllegalArgumentException("from must not be after to");
+        }
+        long periods = byMonth ? ChronoUnit.MONTHS.between(start, end) + 1 : ChronoUnit.DAYS.between(start, end) + 1;
+        if (periods > (byMonth ? MAX_MONTHS : MAX_DAYS)) {
+            throw new IllegalArgumentException("Range too long: at most " + MAX_DAYS + " days or " + MAX_MONTHS
+                    + " months");
+        }
+        return new Range(start, end, unit);
+    }
+
+    private static LocalDate date(String value, String name, boolean endOfMonth) {
+        try {
+            if (value.length() == 7) {
+                YearMonth month = YearMonth.parse(value);
+                return endOfMonth ? month.atEndOfMonth() : month.atDay(1);
+            }
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be a date (yyyy-MM-dd) or month (yyyy-MM)");
+        }
+    }
+
+    /**
+     * The range report for a user from their buckets, one per period of the
+     * range and in the same order (empty for a period with no transfers).
+     */
+    public static Map<String, Object> report(String userId, Range range, List<Map<String, Long>> buckets, int top) {
+        long sent = 0;
+        long received = 0;
+        long sentCount = 0;
+        long receivedCount = 0;
+        Map<String, long[]> peers = new HashMap<>();
+        List<Map<String, Object>> periods = new ArrayList<>(buckets.size());
+        List<String> names = range.periods();
+        for (int i = 0; i < buckets.size(); i++) {
+            Map<String, Long> bucket = buckets.get(i);
+            long bucketSent = bucket.getOrDefault("sentMinor", 0L);
+            long bucketReceived = bucket.getOrDefault("receivedMinor", 0L);
+            long bucketSentCount = bucket.getOrDefault("sentCount", 0L);
+            long bucketReceivedCount = bucket.getOrDefault("receivedCount", 0L);
+            sent += bucketSent;
+            received += bucketReceived;
+            sentCount += bucketSentCount;
+            receivedCount += bucketReceivedCount;
+            bucket.forEach((field, value) -> {
+                if (field.startsWith(PEER)) {
+                    peers.computeIfAbsent(field.substring(PEER.length()), p -> new long[2])[0] += value;
+                } else if (field.startsWith(PEER_COUNT)) {
+                    peers.computeIfAbsent(field.substring(PEER_COUNT.length()), p -> new long[2])[1] += value;
+                }
+            });
+
+            Map<String, Object> period = new LinkedHashMap<>();
+            period.put("period", names.get(i));
+            period.put("sent", JsonCodec.money(bucketSent));
+            period.put("received", JsonCodec.money(bucketReceived));
+            period.put("sentCount", bucketSentCount);
+            period.put("receivedCount", bucketReceivedCount);
+            periods.add(period);
+        }
+
+        List<Map<String, Object>> counterparties = new ArrayList<>();
+        peers.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, long[]> peer) -> -peer.getValue()[0])
+                        .thenComparing(Map.Entry::getKey))
+                .limit(top)
+                .forEach(peer -> {
+                    Map<String, Object> counterparty = new LinkedHashMap<>();
+                    counterparty.put("userId", peer.getKey());
+                    counterparty.put("volume", JsonCodec.money(peer.getValue()[0]));
+                    counterparty.put("transactions", peer.getValue()[1]);
+                    counterparties.add(counterparty);
+                });
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("userId", userId);
+        report.put("from", range.start.toString());
+        report.put("to", range.end.toString());
+        report.put("granularity", range.granularity);
+        report.put("totalSent", JsonCodec.money(sent));
+        report.put("totalReceived", JsonCodec.money(received));
+        report.put("sentCount", sentCount);
+        report.put("receivedCount", receivedCount);
+        report.put("periods", periods);
+        report.put("topCounterparties", counterparties);
+        return report;
+    }
+
+    /** The range report from the user's bucket hashes, or null if the user does not exist. */
+    public static Map<String, Object> forUser(UnifiedJedis redis, String userId, Range range, int top) {
+        Response<Boolean> exists;
+        List<Response<Map<String, String>>> replies = new ArrayList<>();
+        try (AbstractPipeline pipeline = redis.pipelined()) {
+            exists = pipeline.exists(RedisKeys.user(userId));
+            for (String period : range.periods()) {
+                replies.add(pipeline.hgetAll(RedisKeys.rollup(userId, period)));
+            }
+            pipeline.sync();
+        }
+        if (!exists.get()) {
+            return null;
+        }
+        List<Map<String, Long>> buckets = new ArrayList<>(replies.size());
+        for (Response<Map<String, String>> reply : replies) {
+            Map<String, Long> bucket = new HashMap<>();
+            reply.get().forEach((field, value) -> bucket.put(field, Long.parseLong(value)));
+            buckets.add(bucket);
+        }
+        return report(userId, range, buckets, top);
+    }
+
+    /** Inclusive dates and the size of the periods they are split into. */
+    public static class Range {
+        private final LocalDate start;
+        private final LocalDate end;
+        private final String granularity;
+
+        Range(LocalDate start, LocalDate end, String granularity) {
+            this.start = start;
+            this.end = end;
+            this.granularity = granularity;
+        }
+
+        /** The bucket names, oldest first. */
+        public List<String> periods() {
+            List<String> periods = new ArrayList<>();
+            if (MONTH.equals(this.granularity)) {
+                YearMonth last = YearMonth.from(this.end);
+                for (YearMonth m = YearMonth.from(this.start); !m.isAfter(last); m = m.plusMonths(1)) {
+                    periods.add(m.toString());
+                }
+            } else {
+                for (LocalDate d = this.start; !d.isAfter(this.end); d = d.plusDays(1)) {
+                    periods.add(d.toString());
+                }
+            }
+            return periods;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package app.redis;
+
+import java.util.Iterator;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+
+import app.metrics.Metrics;
+import redis.clients.jedis.CommandArguments;
+import redis.clients.jedis.CommandObject;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionFactory;
+import redis.clients.jedis.DefaultJedisSocketFactory;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.args.Rawable;
+import redis.clients.jedis.commands.ProtocolCommand;
+
+/**
+ * A pooled connection that records how long each command takes, from send
+ * to reply, in Metrics. EVALSHA is recorded as "EVALSHA name" for bundled
+ * scripts. Pipelines bypass this path, so their commands are not timed.
+ */
+class TimedConnection extends Connection {
+
+    TimedConnection(HostAndPort address, JedisClientConfig config) {
+        super(new DefaultJedisSocketFactory(address, config), config);
+    }
+
+    @Override
+    public <T> T executeCommand(CommandObject<T> command) {
+        long start = System.nanoTime();
+        try {
+            return super.executeCommand(command);
+        } finally {
+            Metrics.redisCommand(name(command.getArguments()), System.nanoTime() - start);
+        }
+    }
+
+    private static String name(CommandArguments args) {
+        ProtocolCommand command = args.getCommand();
+        String name = command instanceof Enum<?> constant ? constant.name() : new String(command.getRaw());
+        if ("EVALSHA".equals(name)) {
+            Iterator<Rawable> values = args.iterator();
+            values.next();
+            String script = values.hasNext() ? RedisScript.nameOf(new String(values.next().getRaw())) : null;
+            if (script != null) {
+                return "EVALSHA " + script;
+            }
+        }
+        return name;
+    }
+
+    /** Makes the pool's connections TimedConnections; everything else as Jedis does it. */
+    static class Factory extends ConnectionFactory {
+        private final HostAndPort address;
+        private final JedisClientConfig config;
+
+        Factory(HostAndPort address, JedisClientConfig config) {
+            super(address, config);
+            this.address = address;
+            this.config = config;
+        }
+
+        @Override
+        public PooledObject<Connection> makeObject() {
+            return new DefaultPooledObject<>(new TimedConnection(this.address, this.config));
+        }
+    }
+}
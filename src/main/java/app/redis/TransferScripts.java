@@ -0,0 +1,253 @@
+package app.redis;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import app.model.Transaction;
+import app.store.TransferResult;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Transfers run as one server-side script each: the balance check, both
+ * balance updates, the transaction record and the report indexes happen in a
+ * single atomic round trip. Notifications are not part of it; the caller
+ * queues them on a NotificationWorker for transfers that went through.
+ *
+ * A script declares every key it touches. On a single node that is all it
+ * takes; on a cluster, a script can only run when all its keys share a slot,
+ * so a transfer between users (or account owners) in different slots runs as
+ * TwoPhaseTransfers instead.
+ *
+ * The transaction id doubles as an idempotency key, scoped to the sender:
+ * repeating a transfer with an id that already went through returns the
+ * stored transaction, as a repeated result, and moves no money.
+ */
+public class TransferScripts {
+
+    private static final RedisScript BETWEEN_USERS = RedisScript.fromResource("/lua/transfer_users.lua");
+    private static final RedisScript BETWEEN_ACCOUNTS = RedisScript.fromResource("/lua/transfer_accounts.lua");
+
+    public static void preload(UnifiedJedis redis) {
+        BETWEEN_USERS.preload(redis);
+        BETWEEN_ACCOUNTS.preload(redis);
+        TwoPhaseTransfers.preload(redis);
+    }
+
+    public static TransferResult betweenUsers(UnifiedJedis redis, String fromUserId, String toUserId, long amountMinor,
+            String txnId, LocalDateTime at) {
+        if (TwoPhaseTransfers.needed(redis, fromUserId, toUserId)) {
+            return TwoPhaseTransfers.transfer(redis, "user", fromUserId, fromUserId, toUserId, toUserId, amountMinor,
+                    txnId, at);
+        }
+        return usersCall(fromUserId, toUserId, amountMinor, txnId, at).run(redis);
+    }
+
+    /**
+     * Owners come from the account directory; a null owner means the account
+     * does not exist.
+     */
+    public static TransferResult betweenAccounts(UnifiedJedis redis, String fromAccountId, String fromOwner,
+            String toAccountId, String toOwner, long amountMinor, String txnId, LocalDateTime at) {
+        TransferResult missing = missingAccount(fromOwner, toOwner);
+        if (missing != null) {
+            return missing;
+        }
+        if (TwoPhaseTransfers.needed(redis, fromOwner, toOwner)) {
+            return TwoPhaseTransfers.transfer(redis, "account", fromAccountId, fromOwner, toAccountId, toOwner,
+                    amountMinor, txnId, at);
+        }
+        return accountsCall(fromAccountId, fromOwner, toAccountId, toOwner, amountMinor, txnId, at).run(redis);
+    }
+
+    /**
+     * Runs many transfers in pipelined round trips. Each is still its own
+     * atomic script call, applied in list order, and one failing does not stop
+     * the rest. Items must already be validated: both user ids or both account
+     * ids, and a positive amount. {@code owners} maps account ids to their
+     * owners, as found in the account directory. Items without an id get a
+     * new one.
+     *
+     * Items that need TwoPhaseTransfers cannot be pipelined; the calls queued
+     * before one are sent first, so the list order holds. Every item gets a
+     * result: one the store failed on (a lost connection, a script error) is
+     * ERROR rather than failing the whole batch after others went through.
+     */
+    public static List<TransferResult> batch(UnifiedJedis redis, List<Transaction> transfers,
+            Map<String, String> owners) {
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        List<Call> calls = new ArrayList<>();
+        List<Integer> queued = new ArrayList<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            Transaction transfer = transfers.get(i);
+            long amountMinor = transfer.getAmountMinor();
+            String txnId = transfer.getTransactionId() != null ? transfer.getTransactionId()
+                    : UUID.randomUUID().toString();
+            LocalDateTime at = LocalDateTime.now();
+            results.add(null);
+            if (transfer.getFromAccountId() != null) {
+                String fromOwner = owners.get(transfer.getFromAccountId());
+                String toOwner = owners.get(transfer.getToAccountId());
+                TransferResult missing = missingAccount(fromOwner, toOwner);
+                if (missing != null) {
+                    results.set(i, missing);
+                } else if (TwoPhaseTransfers.needed(redis, fromOwner, toOwner)) {
+                    pipeline(redis, calls, queued, results);
+                    results.set(i, guarded(() -> TwoPhaseTransfers.transfer(redis, "account",
+                            transfer.getFromAccountId(), fromOwner, transfer.getToAccountId(), toOwner, amountMinor,
+                            txnId, at)));
+                } else {
+                    calls.add(accountsCall(transfer.getFromAccountId(), fromOwner, transfer.getToAccountId(), toOwner,
+                            amountMinor, txnId, at));
+                    queued.add(i);
+                }
+            } else if (TwoPhaseTransfers.needed(redis, transfer.getFromUserId(), transfer.getToUserId())) {
+                pipeline(redis, calls, queued, results);
+                results.set(i, guarded(() -> TwoPhaseTransfers.transfer(redis, "user", transfer.getFromUserId(),
+                        transfer.getFromUserId(), transfer.getToUserId(), transfer.getToUserId(), amountMinor, txnId,
+                        at)));
+            } else {
+                calls.add(usersCall(transfer.getFromUserId(), transfer.getToUserId(), amountMinor, txnId, at));
+                queued.add(i);
+            }
+        }
+        pipeline(redis, calls, queued, results);
+        return results;
+    }
+
+    // Sends the queued calls in one round trip, sets the result of each at its index, then empties the queue
+    private static void pipeline(UnifiedJedis redis, List<Call> calls, List<Integer> queued,
+            List<TransferResult> results) {
+        if (calls.isEmpty()) {
+            return;
+        }
+        List<Response<Object>> replies = new ArrayList<>(calls.size());
+        try (AbstractPipeline pipeline = redis.pipelined()) {
+            for (Call call : calls) {
+                replies.add(call.script.evalIn(pipeline, call.keys, call.args));
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            // Cut off part way: any of these may have run, and only a retry with the same id can tell
+            System.err.println("Batch pipeline failed: " + e);
+            replies.clear();
+        }
+        for (int k = 0; k < calls.size(); k++) {
+            results.set(queued.get(k), replies.isEmpty()
+                    ? TransferResult.failed(TransferResult.ERROR) : reply(redis, calls.get(k), replies.get(k)));
+        }
+        calls.clear();
+        queued.clear();
+    }
+
+    // A pipelined call's result; ERROR when the script failed, which may have been after some of its writes
+    private static TransferResult reply(UnifiedJedis redis, Call call, Response<Object> reply) {
+        try {
+            return result(reply.get());
+        } catch (JedisNoScriptException e) {
+            // Script cache was flushed, so this item did not run; run it on its own
+            return guarded(() -> call.run(redis));
+        } catch (JedisException e) {
+            System.err.println("Batch transfer failed: " + e);
+            return TransferResult.failed(TransferResult.ERROR);
+        }
+    }
+
+    // Runs one item of a batch on its own; ERROR if the store failed on it
+    private static TransferResult guarded(Supplier<TransferResult> transfer) {
+        try {
+            return transfer.get();
+        } catch (JedisException e) {
+            System.err.println("Batch transfer failed: " + e);
+            return TransferResult.failed(TransferResult.ERROR);
+        }
+    }
+
+    private static TransferResult missingAccount(String fromOwner, String toOwner) {
+        if (fromOwner == null) {
+            return TransferResult.failed(TransferResult.SENDER_NOT_FOUND);
+        }
+        if (toOwner == null) {
+            return TransferResult.failed(TransferResult.RECEIVER_NOT_FOUND);
+        }
+        return null;
+    }
+
+    private static Call usersCall(String fromUserId, String toUserId, long amountMinor, String txnId,
+            LocalDateTime at) {
+        List<String> keys = new ArrayList<>(12);
+        keys.add(RedisKeys.user(fromUserId));
+        keys.add(RedisKeys.user(toUserId));
+        addUserKeys(keys, fromUserId, toUserId, at);
+        List<String> args = List.of(
+                fromUserId, toUserId, String.valueOf(amountMinor),
+                txnId, at.toString(), String.valueOf(epochMillis(at)),
+                RedisKeys.CACHE_INVALIDATIONS);
+        return new Call(BETWEEN_USERS, keys, args);
+    }
+
+    private static Call accountsCall(String fromAccountId, String fromOwner, String toAccountId, String toOwner,
+            long amountMinor, String txnId, LocalDateTime at) {
+        List<String> keys = new ArrayList<>(12);
+        keys.add(RedisKeys.account(fromOwner, fromAccountId));
+        keys.add(RedisKeys.account(toOwner, toAccountId));
+        addUserKeys(keys, fromOwner, toOwner, at);
+        List<String> args = List.of(
+                fromAccountId, toAccountId, String.valueOf(amountMinor),
+                txnId, at.toString(), String.valueOf(epochMillis(at)),
+                RedisKeys.CACHE_INVALIDATIONS, fromOwner, toOwner);
+        return new Call(BETWEEN_ACCOUNTS, keys, args);
+    }
+
+    // The per-user keys both scripts take, sender's then receiver's of each kind
+    private static void addUserKeys(List<String> keys, String fromUserId, String toUserId, LocalDateTime at) {
+        keys.add(RedisKeys.transactions(fromUserId));
+        keys.add(RedisKeys.transactions(toUserId));
+        keys.add(RedisKeys.transactionsByUser(fromUserId));
+        keys.add(RedisKeys.transactionsByUser(toUserId));
+        keys.add(RedisKeys.reportTotals(fromUserId));
+        keys.add(RedisKeys.reportTotals(toUserId));
+        keys.add(RedisKeys.rollup(fromUserId, Rollups.day(at)));
+        keys.add(RedisKeys.rollup(fromUserId, Rollups.month(at)));
+        keys.add(RedisKeys.rollup(toUserId, Rollups.day(at)));
+        keys.add(RedisKeys.rollup(toUserId, Rollups.month(at)));
+    }
+
+    public static long epochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /** One script invocation, ready to run directly or inside a pipeline. */
+    private static class Call {
+        private final RedisScript script;
+        private final List<String> keys;
+        private final List<String> args;
+
+        Call(RedisScript script, List<String> keys, List<String> args) {
+            this.script = script;
+            this.keys = keys;
+            this.args = args;
+        }
+
+        TransferResult run(UnifiedJedis redis) {
+            return result(this.script.eval(redis, this.keys, this.args));
+        }
+    }
+
+    private static TransferResult result(Object reply) {
+        List<?> values = (List<?>) reply;
+        String status = (String) values.get(0);
+        if ("DONE".equals(status)) {
+            return TransferResult.repeated((String) values.get(1));
+        }
+        return new TransferResult(status, values.size() > 1 ? (String) values.get(1) : null);
+    }
+}
@@ -0,0 +1,265 @@
+package app.redis;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import app.store.TransferResult;
+import app.util.Env;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * Transfers between parties in different cluster slots, which no one script
+ * can reach. They run in three steps, each an atomic script on one slot:
+ *
+ * 1. reserve, on the sender's slot: check and debit the sender and record a
+ *    PENDING reservation holding everything the later steps need;
+ * 2. credit, on the receiver's slot: credit the receiver and record its side,
+ *    unless an abort marker is already there;
+ * 3. finish, on the sender's slot: settle the reservation as SUCCESS, or as
+ *    FAILED with the sender refunded.
+ *
+ * The receiver's slot decides the outcome: it either holds the credit (this
+ * sender's transaction in the receiver's transactions) or an abort marker,
+ * and the scripts never write one when the other is there. No lock spans the
+ * two slots, and every step can be repeated, so a retry with the same
+ * transaction id picks up where an earlier attempt stopped and never debits
+ * twice.
+ *
+ * Before reserving, the transfer is listed in a pending set (sharded by
+ * transaction id); it is removed once settled. The recovery sweeper settles
+ * whatever stays listed past WIPAY_TRANSFER_STUCK_S: it aborts at the
+ * receiver unless the credit is there, then finishes accordingly, so a
+ * transfer whose process died is completed or refunded, never left half
+ * done. Several API instances may sweep at once.
+ *
+ * On a single node every transfer fits one script, so this only runs on a
+ * cluster, or everywhere with WIPAY_TWO_PHASE=always.
+ */
+public class TwoPhaseTransfers {
+
+    // Settled reservations and abort markers are kept this long, so late retries see the same outcome
+    private static final int KEEP_SECONDS = Env.getInt("WIPAY_TRANSFER_KEEP_S", 86_400);
+    private static final boolean ALWAYS = "always".equalsIgnoreCase(System.getenv("WIPAY_TWO_PHASE"));
+    private static final int SWEEP_BATCH = 100;
+
+    private static final RedisScript RESERVE = RedisScript.fromResource("/lua/transfer_reserve.lua");
+    private static final RedisScript CREDIT = RedisScript.fromResource("/lua/transfer_credit.lua");
+    private static final RedisScript FINISH = RedisScript.fromResource("/lua/transfer_finish.lua");
+
+    // KEYS: abort marker, receiver (owner) txn hash
+    // ARGV: txnId, seconds the marker is kept, sender (owner) user id
+    // Returns CREDITED, or the status of the (possibly new) abort marker
+    private static final String FENCE = String.join("\n",
+            "local held = redis.call('HGET', KEYS[2], ARGV[1])",
+            "if held and cjson.decode(held).fromUserId == ARGV[3] then",
+            "  return 'CREDITED'",
+            "end",
+            "redis.call('SET', KEYS[1], 'ABORTED', 'NX', 'EX', ARGV[2])",
+            "return redis.call('GET', KEYS[1])");
+
+    private static final String SUCCESS = "SUCCESS";
+    private static final String FAILED = "FAILED";
+
+    public static void preload(UnifiedJedis redis) {
+        RESERVE.preload(redis);
+        CREDIT.preload(redis);
+        FINISH.preload(redis);
+    }
+
+    /** Whether a transfer between these users' (or account owners') slots has to run in phases. */
+    static boolean needed(UnifiedJedis redis, String fromUserId, String toUserId) {
+        if (Objects.equals(fromUserId, toUserId)) {
+            return false;
+        }
+        return ALWAYS || redis instanceof JedisCluster
+                && JedisClusterCRC16.getSlot(RedisKeys.tag(fromUserId))
+                        != JedisClusterCRC16.getSlot(RedisKeys.tag(toUserId));
+    }
+
+    /**
+     * Runs a transfer between two users (kind "user") or two accounts (kind
+     * "account", with their owners) from start to end, or resumes one an
+     * earlier attempt with this transaction id left PENDING.
+     */
+    static TransferResult transfer(UnifiedJedis redis, String kind, String fromId, String fromUserId, String toId,
+            String toUserId, long amountMinor, String txnId, LocalDateTime at) {
+        String pending = RedisKeys.pendingTransfers(RedisKeys.idShard(txnId));
+        String member = txnId + "|" + fromUserId;
+        // Listed before anything is reserved, so the sweeper sees every reservation
+        redis.zadd(pending, System.currentTimeMillis(), member);
+
+        String timestamp = at.toString();
+        long score = TransferScripts.epochMillis(at);
+        List<?> reply = (List<?>) RESERVE.eval(redis,
+                List.of(party(kind, fromUserId, fromId), RedisKeys.transfer(fromUserId, txnId),
+                        RedisKeys.transactions(fromUserId)),
+                List.of(kind, fromId, toId, fromUserId, toUserId, String.valueOf(amountMinor), txnId, timestamp,
+                        String.valueOf(score), RedisKeys.CACHE_INVALIDATIONS));
+        String status = (String) reply.get(0);
+        TransferResult result = switch (status) {
+            case "PENDING" -> settle(redis, new Reservation(kind, fromId, fromUserId, toId, toUserId, amountMinor,
+                    txnId, (String) reply.get(1), score));
+            case "RESUME" -> resume(redis, fromUserId, txnId, false);
+            case "DONE" -> TransferResult.repeated((String) reply.get(1));
+            default -> TransferResult.failed(status);
+        };
+        redis.zrem(pending, member);
+        return result;
+    }
+
+    /**
+     * Settles every transfer listed as pending since before olderThanMillis
+     * (epoch millis): its process died or lost Redis half way. Returns the
+     * outcomes, OK for completed and a failure status for refunded ones; OK
+     * is repeated when the transfer had already been settled.
+     */
+    public static List<TransferResult> recoverStuck(UnifiedJedis redis, long olderThanMillis) {
+        List<TransferResult> recovered = new ArrayList<>();
+        for (int shard = 0; shard < RedisKeys.ID_SHARDS; shard++) {
+            String pending = RedisKeys.pendingTransfers(shard);
+            List<String> stuck;
+            do {
+                stuck = redis.zrangeByScore(pending, Double.NEGATIVE_INFINITY, olderThanMillis, 0, SWEEP_BATCH);
+                for (String member : stuck) {
+                    int split = member.indexOf('|');
+                    recovered.add(resume(redis, member.substring(split + 1), member.substring(0, split), true));
+                    redis.zrem(pending, member);
+                }
+            } while (stuck.size() == SWEEP_BATCH);
+        }
+        return recovered;
+    }
+
+    /** Transfers listed as pending right now, including ones running normally. */
+    public static long pendingCount(UnifiedJedis redis) {
+        List<Response<Long>> counts = new ArrayList<>(RedisKeys.ID_SHARDS);
+        try (AbstractPipeline pipeline = redis.pipelined()) {
+            for (int shard = 0; shard < RedisKeys.ID_SHARDS; shard++) {
+                counts.add(pipeline.zcard(RedisKeys.pendingTransfers(shard)));
+            }
+            pipeline.sync();
+        }
+        long total = 0;
+        for (Response<Long> count : counts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Settles a reservation from what it recorded. A retry credits the
+     * receiver as the first attempt would have; the sweeper instead fences
+     * the receiver off unless the credit already happened.
+     */
+    private static TransferResult resume(UnifiedJedis redis, String fromUserId, String txnId, boolean abort) {
+        Map<String, String> fields = redis.hgetAll(RedisKeys.transfer(fromUserId, txnId));
+        if (fields.isEmpty()) {
+            // Never reserved (or settled and expired); make sure a late reserve is refused
+            return finish(redis, RedisKeys.user(fromUserId), fromUserId, txnId, LocalDateTime.now(), FAILED,
+                    TransferResult.ABORTED);
+        }
+        String state = fields.get("state");
+        if (SUCCESS.equals(state)) {
+            return TransferResult.repeated(fields.get("txn"));
+        }
+        if (FAILED.equals(state)) {
+            return TransferResult.failed(fields.get("reason"));
+        }
+        Reservation r = Reservation.from(fields, fromUserId, txnId);
+        if (!abort) {
+            return settle(redis, r);
+        }
+        Object fence = redis.eval(FENCE,
+                List.of(RedisKeys.transferAbort(r.toUserId, txnId), RedisKeys.transactions(r.toUserId)),
+                List.of(txnId, String.valueOf(KEEP_SECONDS), fromUserId));
+        return "CREDITED".equals(fence) ? finish(redis, r, SUCCESS, "") : finish(redis, r, FAILED, (String) fence);
+    }
+
+    // Credits the receiver, then settles the reservation by how that went
+    private static TransferResult settle(UnifiedJedis redis, Reservation r) {
+        LocalDateTime at = Rollups.at(r.score);
+        List<String> keys = List.of(
+                party(r.kind, r.toUserId, r.toId),
+                RedisKeys.transferAbort(r.toUserId, r.txnId),
+                RedisKeys.transactions(r.toUserId),
+                RedisKeys.transactionsByUser(r.toUserId),
+                RedisKeys.reportTotals(r.toUserId),
+                RedisKeys.rollup(r.toUserId, Rollups.day(at)),
+                RedisKeys.rollup(r.toUserId, Rollups.month(at)));
+        List<String> args = List.of(
+                r.kind, r.toId, String.valueOf(r.amountMinor), r.txnId, r.txnJson, String.valueOf(r.score),
+                RedisKeys.CACHE_INVALIDATIONS, String.valueOf(KEEP_SECONDS), r.fromUserId);
+        String status = (String) ((List<?>) CREDIT.eval(redis, keys, args)).get(0);
+        return TransferResult.OK.equals(status) ? finish(redis, r, SUCCESS, "") : finish(redis, r, FAILED, status);
+    }
+
+    private static TransferResult finish(UnifiedJedis redis, Reservation r, String outcome, String reason) {
+        return finish(redis, party(r.kind, r.fromUserId, r.fromId), r.fromUserId, r.txnId, Rollups.at(r.score),
+                outcome, reason);
+    }
+
+    // at is the transfer's time, which picks the sender's rollup buckets
+    private static TransferResult finish(UnifiedJedis redis, String senderKey, String fromUserId, String txnId,
+            LocalDateTime at, String outcome, String reason) {
+        List<String> keys = List.of(
+                senderKey,
+                RedisKeys.transfer(fromUserId, txnId),
+                RedisKeys.transactions(fromUserId),
+                RedisKeys.transactionsByUser(fromUserId),
+                RedisKeys.reportTotals(fromUserId),
+                RedisKeys.rollup(fromUserId, Rollups.day(at)),
+                RedisKeys.rollup(fromUserId, Rollups.month(at)));
+        List<String> args = List.of(
+                outcome, reason, txnId, RedisKeys.CACHE_INVALIDATIONS, String.valueOf(KEEP_SECONDS));
+        List<?> reply = (List<?>) FINISH.eval(redis, keys, args);
+        return switch ((String) reply.get(0)) {
+            case "SETTLED" -> TransferResult.ok((String) reply.get(1));
+            case SUCCESS -> TransferResult.repeated((String) reply.get(1));
+            default -> TransferResult.failed((String) reply.get(1));
+        };
+    }
+
+    // The hash holding a party's balance
+    private static String party(String kind, String ownerUserId, String id) {
+        return "account".equals(kind) ? RedisKeys.account(ownerUserId, id) : RedisKeys.user(id);
+    }
+
+    /** What the later steps need, as the reserve script recorded it. */
+    private static class Reservation {
+        private final String kind;
+        private final String fromId;
+        private final String fromUserId;
+        private final String toId;
+        private final String toUserId;
+        private final long amountMinor;
+        private final String txnId;
+        private final String txnJson;
+        private final long score;
+
+        Reservation(String kind, String fromId, String fromUserId, String toId, String toUserId, long amountMinor,
+                String txnId, String txnJson, long score) {
+            this.kind = kind;
+            this.fromId = fromId;
+            this.fromUserId = fromUserId;
+            this.toId = toId;
+            this.toUserId = toUserId;
+            this.amountMinor = amountMinor;
+            this.txnId = txnId;
+            this.txnJson = txnJson;
+            this.score = score;
+        }
+
+        static Reservation from(Map<String, String> fields, String fromUserId, String txnId) {
+            return new Reservation(fields.get("kind"), fields.get("from"), fromUserId, fields.get("to"),
+                    fields.get("toUserId"), Long.parseLong(fields.get("amount")), txnId, fields.get("txn"),
+                    Long.parseLong(fields.get("score")));
+        }
+    }
+}
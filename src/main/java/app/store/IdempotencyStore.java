@@ -0,0 +1,79 @@
+package app.store;
+
+import app.util.Env;
+
+/**
+ * Remembers the response to each request sent with an Idempotency-Key, so a
+ * client retrying after a timeout gets the original response back instead of
+ * running the request again.
+ *
+ * A key is first claimed with a short lease (WIPAY_IDEMPOTENCY_CLAIM_S) and,
+ * once the response exists, stored with it for WIPAY_IDEMPOTENCY_TTL_S. If the
+ * process dies in between, the lease runs out and a retry runs the request
+ * again; transfers stay safe then because the key also picks their
+ * transaction id.
+ */
+public interface IdempotencyStore {
+
+    int TTL_SECONDS = Env.getInt("WIPAY_IDEMPOTENCY_TTL_S", 86_400);
+    int CLAIM_SECONDS = Env.getInt("WIPAY_IDEMPOTENCY_CLAIM_S", 60);
+
+    /**
+     * Claims the key for a request with this fingerprint, in one round trip.
+     * Returns null if the caller now holds the key and should run the
+     * request, or else what the key already holds: a claim still in
+     * progress, or a stored response.
+     */
+    Entry claim(String key, String fingerprint);
+
+    /** Stores the response under a key this caller claimed. */
+    void complete(String key, Entry response);
+
+    /** Gives up a claim without a response (the request failed), so a retry runs it. */
+    void release(String key, String fingerprint);
+
+    /** A claim (status 0) or a stored response, with the fingerprint of the request it belongs to. */
+    class Entry {
+        private final String fingerprint;
+        private final int status;
+        private final String body;
+
+        public Entry(String fingerprint, int status, String body) {
+            this.fingerprint = fingerprint;
+            this.status = status;
+            this.body = body;
+        }
+
+        static Entry claim(String fingerprint) {
+            return new Entry(fingerprint, 0, "");
+        }
+
+        public String getFingerprint() {
+            return this.fingerprint;
+        }
+
+        public int getStatus() {
+            return this.status;
+        }
+
+        public String getBody() {
+            return this.body;
+        }
+
+        public boolean inProgress() {
+            return this.status == 0;
+        }
+
+        // "status\nfingerprint\nbody"; the fingerprint is hex, so the first two newlines split it
+        String encode() {
+            return this.status + "\n" + this.fingerprint + "\n" + this.body;
+        }
+
+        static Entry decode(String value) {
+            int first = value.indexOf('\n');
+            int second = value.indexOf('\n', first + 1);
+            return new Entry(value.substring(first + 1, second), Integer.parseInt(value.substring(0, first)),
+                    value.substring(second + 1));
+        }
+    }
+}
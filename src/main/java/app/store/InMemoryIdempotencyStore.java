@@ -0,0 +1,54 @@
+package app.store;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import app.util.Env;
+
+/**
+ * Idempotency keys for the in-memory store: the newest
+ * WIPAY_MEMORY_IDEMPOTENCY_KEYS, not journaled. After a restart a retry runs
+ * again, but a transfer still finds its transaction id among the ones the
+ * store replayed.
+ */
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+
+    private final Cache<String, Entry> entries = Caffeine.newBuilder()
+            .maximumSize(Env.getInt("WIPAY_MEMORY_IDEMPOTENCY_KEYS", 100_000))
+            .expireAfter(new Expiry<String, Entry>() {
+                @Override
+                public long expireAfterCreate(String key, Entry entry, long now) {
+                    return TimeUnit.SECONDS.toNanos(entry.inProgress() ? CLAIM_SECONDS : TTL_SECONDS);
+                }
+
+                @Override
+                public long expireAfterUpdate(String key, Entry entry, long now, long remaining) {
+                    return expireAfterCreate(key, entry, now);
+                }
+
+                @Override
+                public long expireAfterRead(String key, Entry entry, long now, long remaining) {
+                    return remaining;
+                }
+            })
+            .build();
+
+    @Override
+    public Entry claim(String key, String fingerprint) {
+        return this.entries.asMap().putIfAbsent(key, Entry.claim(fingerprint));
+    }
+
+    @Override
+    public void complete(String key, Entry response) {
+        this.entries.put(key, response);
+    }
+
+    @Override
+    public void release(String key, String fingerprint) {
+        this.entries.asMap().computeIfPresent(key,
+                (k, held) -> held.inProgress() && held.getFingerprint().equals(fingerprint) ? null : held);
+    }
+}
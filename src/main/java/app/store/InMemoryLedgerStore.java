@@ -0,0 +1,1000 @@
+package app.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import app.json.JsonCodec;
+import app.json.RawJson;
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+import app.redis.Contacts;
+import app.redis.Notifications;
+import app.redis.Rollups;
+import app.store.MemoryRecords.AccountRecord;
+import app.store.MemoryRecords.Activity;
+import app.store.MemoryRecords.Party;
+import app.store.MemoryRecords.UserRecord;
+import app.util.Env;
+
+/**
+ * Keeps the whole ledger in the JVM, for single-node deployments and for
+ * measuring the engine without a network hop. Without WIPAY_JOURNAL_DIR nothing
+ * survives a restart; with it, every write goes to a WriteAheadLog first and
+ * the store is rebuilt on startup from the newest snapshot plus the log after
+ * it.
+ *
+ * Balances are plain longs in minor units. Every user and account hashes to
+ * one of WIPAY_MEMORY_STRIPES locks; a transfer takes the stripes of everything
+ * it touches (both parties and, for accounts, both owners) in index order, so
+ * transfers on disjoint parties run in parallel and none can deadlock. A
+ * user's transaction history (all of it, as in Redis), totals, report rollups
+ * and inbox are guarded by that user's stripe.
+ *
+ * Transfers, notifications and reports behave like the Redis store: same
+ * statuses, same transaction JSON, same notification messages, caps and
+ * sequence numbers. Notifications are written with the transfer here, not
+ * queued as on Redis: they are part of the journaled state, and adding them
+ * in memory costs next to nothing. The newest WIPAY_MEMORY_TRANSFER_IDS transaction ids are
+ * remembered on both sides, so a transfer repeated with one of them returns
+ * the original transaction, and another transfer reusing one is refused, as
+ * the scripts do.
+ *
+ * Journal records are appended while the stripes are held, before the change
+ * is applied, so two writes to the same party are logged in the order they
+ * were applied. The caller then releases the stripes and waits for the group
+ * commit, so other transfers are not held up by the fsync.
+ *
+ * Every user, account and activity remembers the LSN of the last record
+ * applied to it. Snapshots are taken every WIPAY_SNAPSHOT_INTERVAL_S by
+ * copying one entity at a time under its own stripe, so transfers keep running
+ * and the snapshot is fuzzy: an entity may already include records after the
+ * snapshot's LSN. Replay from that LSN skips, per entity, what it already
+ * holds. Transfer records carry both balances after the transfer; replay
+ * checks that it arrives at the same ones.
+ *
+ * This class does the locking and ordering. The per-entity records live in
+ * MemoryRecords, the journal payloads in MemoryJournal, the snapshot body in
+ * MemorySnapshots and the report building in MemoryReports.
+ */
+public class InMemoryLedgerStore implements LedgerStore {
+
+    private static final String USER = "user:";
+    private static final String ACCOUNT = "account:";
+
+    private static final int TRANSFER_IDS = Env.getInt("WIPAY_MEMORY_TRANSFER_IDS", 100_000);
+    private static final int SNAPSHOTS_KEPT = 2;
+
+    private final ReentrantLock[] stripes;
+    private final Map<String, UserRecord> users = new ConcurrentHashMap<>();
+    private final Map<String, AccountRecord> accounts = new ConcurrentHashMap<>();
+    private final Map<String, Activity> activity = new ConcurrentHashMap<>();
+    private final IdList userIds = new IdList();
+    private final IdList accountIds = new IdList();
+    private final Map<String, Set<String>> accountsByUser = new ConcurrentHashMap<>();
+    // "term\0userId" entries, as in the Redis contact index
+    private final NavigableSet<String> contacts = new ConcurrentSkipListSet<>();
+    // "userId|transactionId" -> the transfer with that id in the user's history, sent or received; one id
+    // namespace for both sides, as in the Redis transaction hashes
+    private final Cache<String, TransferId> transferIds = Caffeine.newBuilder().maximumSize(TRANSFER_IDS).build();
+    private final IdempotencyStore idempotency = new InMemoryIdempotencyStore();
+
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder replayMismatches = new LongAdder();
+
+    private final Path journalDir;
+    // Null when the store is not journaled, and while it is being replayed
+    private final WriteAheadLog journal;
+    private final ScheduledExecutorService snapshotter;
+    private final Map<String, Object> recovery = new LinkedHashMap<>();
+    private volatile Map<String, Object> lastSnapshot = Map.of();
+    private long snapshotLsn;
+
+    public InMemoryLedgerStore(int stripes) {
+        this(stripes, null, 0);
+    }
+
+    /**
+     * With a journal directory, restores the newest snapshot there, replays
+     * the log after it and journals every write from then on. With a
+     * positive interval, snapshots are also taken in the background.
+     */
+    public InMemoryLedgerStore(int stripes, Path journalDir, long snapshotSeconds) {
+        // Power of two so the stripe is a mask of the hash
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.journalDir = journalDir;
+        if (journalDir == null) {
+            this.journal = null;
+            this.snapshotter = null;
+            return;
+        }
+
+        long started = System.nanoTime();
+        try {
+            this.snapshotLsn = Snapshots.loadLatest(journalDir, this::readSnapshot);
+            long restored = System.nanoTime();
+            this.journal = WriteAheadLog.fromEnv(journalDir, this.snapshotLsn, this::replay);
+            this.recovery.put("snapshotLsn", this.snapshotLsn);
+            this.recovery.put("snapshotMs", (restored - started) / 1_000_000);
+            this.recovery.put("replayMs", (System.nanoTime() - restored) / 1_000_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (this.replayMismatches.sum() > 0) {
+            System.err.println("Journal replay disagreed with " + this.replayMismatches.sum()
+                    + " recorded balances; the recorded ones were kept");
+        }
+
+        if (snapshotSeconds > 0) {
+            this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ledger-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, snapshotSeconds, snapshotSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            this.snapshotter = null;
+        }
+    }
+
+    public static InMemoryLedgerStore fromEnv() {
+        String journalDir = System.getenv("WIPAY_JOURNAL_DIR");
+        return new InMemoryLedgerStore(Env.getInt("WIPAY_MEMORY_STRIPES", 64),
+                journalDir != null ? Path.of(journalDir) : null,
+                Env.getInt("WIPAY_SNAPSHOT_INTERVAL_S", 300));
+    }
+
+    // ===== USERS =====
+
+    @Override
+    public void createUser(User user) {
+        long lsn;
+        int[] held = lock(USER + user.getUserId());
+        try {
+            lsn = log(WriteAheadLog.USER, MemoryJournal.user(user));
+            putUser(user, lsn);
+        } finally {
+            unlock(held);
+        }
+        commit(lsn);
+    }
+
+    private void putUser(User user, long lsn) {
+        UserRecord existing = this.users.get(user.getUserId());
+        if (existing == null || MemoryJournal.applies(existing, lsn)) {
+            UserRecord record = new UserRecord(user);
+            record.lsn = lsn;
+            this.users.put(record.id, record);
+            this.userIds.add(record.id);
+            if (existing != null) {
+                for (String term : Contacts.terms(existing.toUser())) {
+                    this.contacts.remove(Contacts.entry(term, existing.id));
+                }
+            }
+            indexContact(user);
+        }
+    }
+
+    private void indexContact(User user) {
+        for (String term : Contacts.terms(user)) {
+            this.contacts.add(Contacts.entry(term, user.getUserId()));
+        }
+    }
+
+    @Override
+    public User user(String userId) {
+        int[] held = lock(USER + userId);
+        try {
+            UserRecord record = this.users.get(userId);
+            return record != null ? record.toUser() : null;
+        } finally {
+            unlock(held);
+        }
+    }
+
+    @Override
+    public Page<User> users(String cursor, int limit) {
+        return this.userIds.page(cursor, limit, this::user);
+    }
+
+    @Override
+    public List<User> searchContacts(String query, int limit) {
+        List<String> words = Contacts.words(query);
+        if (words.isEmpty()) {
+            return List.of();
+        }
+        String word = Contacts.lookupWord(words);
+        Set<String> userIds = new LinkedHashSet<>();
+        Iterator<String> entries = this.contacts.subSet(word, true, word + Character.MAX_VALUE, false).iterator();
+        for (int i = 0; i < Contacts.CANDIDATES && entries.hasNext(); i++) {
+            userIds.add(Contacts.userIdOf(entries.next()));
+        }
+        List<User> candidates = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            candidates.add(user(userId));
+        }
+        return Contacts.rank(candidates, words, limit);
+    }
+
+    // ===== ACCOUNTS =====
+
+    @Override
+    public void createAccount(Account account) {
+        long lsn;
+        int[] held = lock(ACCOUNT + account.getAccountId(), USER + account.getOwnerUserId());
+        try {
+            lsn = log(WriteAheadLog.ACCOUNT, MemoryJournal.account(account));
+            putAccount(account, lsn);
+        } finally {
+            unlock(held);
+        }
+        commit(lsn);
+    }
+
+    private void putAccount(Account account, long lsn) {
+        AccountRecord record = new AccountRecord(account);
+        AccountRecord existing = this.accounts.get(record.id);
+        if (existing == null || MemoryJournal.applies(existing, lsn)) {
+            record.lsn = lsn;
+            this.accounts.put(record.id, record);
+            this.accountIds.add(record.id);
+            this.accountsByUser.computeIfAbsent(String.valueOf(record.ownerUserId),
+                    id -> ConcurrentHashMap.newKeySet()).add(record.id);
+        }
+        // Same as the Redis store: the owner's balance becomes the account's
+        UserRecord owner = this.users.get(record.ownerUserId);
+        if (owner != null && MemoryJournal.applies(owner, lsn)) {
+            owner.balance = record.balance;
+            owner.lsn = lsn;
+        }
+    }
+
+    @Override
+    public Page<Account> accounts(String cursor, int limit) {
+        return this.accountIds.page(cursor, limit, this::account);
+    }
+
+    @Override
+    public List<Account> accountsOf(String userId) {
+        List<Account> result = new ArrayList<>();
+        for (String accountId : this.accountsByUser.getOrDefault(userId, Set.of())) {
+            Account account = account(accountId);
+            if (account != null) {
+                result.add(account);
+            }
+        }
+        return result;
+    }
+
+    private Account account(String accountId) {
+        int[] held = lock(ACCOUNT + accountId);
+        try {
+            AccountRecord record = this.accounts.get(accountId);
+            return record != null ? record.toAccount() : null;
+        } finally {
+            unlock(held);
+        }
+    }
+
+    // ===== TRANSFERS =====
+
+    @Override
+    public TransferResult transferBetweenUsers(String fromUserId, String toUserId, long amountMinor,
+            String transferId) {
+        Transfer transfer;
+        int[] held = lock(USER + fromUserId, USER + toUserId);
+        try {
+            transfer = betweenUsers(fromUserId, toUserId, amountMinor, transferId);
+        } finally {
+            unlock(held);
+        }
+        commit(transfer.lsn);
+        return transfer.result;
+    }
+
+    @Override
+    public TransferResult transferBetweenAccounts(String fromAccountId, String toAccountId, long amountMinor,
+            String transferId) {
+        // An account's owner never changes, so the owners' stripes can be
+        // chosen before any lock is held
+        Transfer transfer;
+        int[] held = lock(ACCOUNT + fromAccountId, ACCOUNT + toAccountId,
+                USER + ownerOf(fromAccountId), USER + ownerOf(toAccountId));
+        try {
+            transfer = betweenAccounts(fromAccountId, toAccountId, amountMinor, transferId);
+        } finally {
+            unlock(held);
+        }
+        commit(transfer.lsn);
+        return transfer.result;
+    }
+
+    // Caller holds both users' stripes
+    private Transfer betweenUsers(String fromUserId, String toUserId, long amountMinor, String transferId) {
+        Transfer done = done(fromUserId, transferId);
+        if (done != null) {
+            return done;
+        }
+        UserRecord from = this.users.get(fromUserId);
+        if (from == null) {
+            return new Transfer(TransferResult.failed(TransferResult.SENDER_NOT_FOUND), 0);
+        }
+        UserRecord to = this.users.get(toUserId);
+        if (to == null) {
+            return new Transfer(TransferResult.failed(TransferResult.RECEIVER_NOT_FOUND), 0);
+        }
+        if (from.balance < amountMinor) {
+            return new Transfer(TransferResult.failed(TransferResult.INSUFFICIENT_BALANCE), 0);
+        }
+        TransferId claimed = claim(fromUserId, toUserId, transferId);
+        if (claimed == null) {
+            return new Transfer(TransferResult.failed(TransferResult.DUPLICATE_ID), 0);
+        }
+
+        LocalDateTime at = LocalDateTime.now();
+        Transaction transaction = transaction(amountMinor, at, transferId);
+        transaction.setFromUserId(fromUserId);
+        transaction.setToUserId(toUserId);
+        return complete(from, to, transaction, amountMinor, at, claimed);
+    }
+
+    // Caller holds both accounts' and both owners' stripes
+    private Transfer betweenAccounts(String fromAccountId, String toAccountId, long amountMinor, String transferId) {
+        AccountRecord from = this.accounts.get(fromAccountId);
+        if (from == null) {
+            return new Transfer(TransferResult.failed(TransferResult.SENDER_NOT_FOUND), 0);
+        }
+        Transfer done = done(from.ownerUserId, transferId);
+        if (done != null) {
+            return done;
+        }
+        AccountRecord to = this.accounts.get(toAccountId);
+        if (to == null) {
+            return new Transfer(TransferResult.failed(TransferResult.RECEIVER_NOT_FOUND), 0);
+        }
+        if (from.balance < amountMinor) {
+            return new Transfer(TransferResult.failed(TransferResult.INSUFFICIENT_BALANCE), 0);
+        }
+        TransferId claimed = claim(from.ownerUserId, to.ownerUserId, transferId);
+        if (claimed == null) {
+            return new Transfer(TransferResult.failed(TransferResult.DUPLICATE_ID), 0);
+        }
+
+        LocalDateTime at = LocalDateTime.now();
+        Transaction transaction = transaction(amountMinor, at, transferId);
+        transaction.setFromAccountId(fromAccountId);
+        transaction.setToAccountId(toAccountId);
+        transaction.setFromUserId(from.ownerUserId);
+        transaction.setToUserId(to.ownerUserId);
+        return complete(from, to, transaction, amountMinor, at, claimed);
+    }
+
+    /**
+     * The earlier transfer with this id from this sender, if it went through,
+     * as a repeated result like the scripts' DONE, or DUPLICATE_ID when the id
+     * belongs to a transfer this user received.
+     */
+    private Transfer done(String fromUserId, String transferId) {
+        TransferId earlier = transferId != null ? this.transferIds.getIfPresent(fromUserId + "|" + transferId) : null;
+        if (earlier == null) {
+            return null;
+        }
+        return new Transfer(earlier.fromUserId.equals(fromUserId) && earlier.json != null
+                ? TransferResult.repeated(earlier.json) : TransferResult.failed(TransferResult.DUPLICATE_ID), 0);
+    }
+
+    /**
+     * Reserves a client-chosen id in both users' histories, or returns null
+     * when either already has it. Returns a marker for release() if the
+     * transfer fails after all; with no id there is nothing to reserve.
+     */
+    private TransferId claim(String fromUserId, String toUserId, String transferId) {
+        TransferId claimed = new TransferId(fromUserId, null);
+        if (transferId == null) {
+            return claimed;
+        }
+        Map<String, TransferId> ids = this.transferIds.asMap();
+        if (ids.putIfAbsent(fromUserId + "|" + transferId, claimed) != null) {
+            return null;
+        }
+        if (!toUserId.equals(fromUserId) && ids.putIfAbsent(toUserId + "|" + transferId, claimed) != null) {
+            ids.remove(fromUserId + "|" + transferId, claimed);
+            return null;
+        }
+        return claimed;
+    }
+
+    private void release(Transaction transaction, TransferId claimed) {
+        Map<String, TransferId> ids = this.transferIds.asMap();
+        ids.remove(transaction.getFromUserId() + "|" + transaction.getTransactionId(), claimed);
+        ids.remove(transaction.getToUserId() + "|" + transaction.getTransactionId(), claimed);
+    }
+
+    // Logs the checked transfer, then applies it
+    private Transfer complete(Party from, Party to, Transaction transaction, long amountMinor, LocalDateTime at,
+            TransferId claimed) {
+        long fromAfter = from == to ? from.balance : from.balance - amountMinor;
+        String json = JsonCodec.write(transaction);
+        long toAfter;
+        long lsn;
+        try {
+            // Checked before anything is logged, so an overflow leaves no trace
+            toAfter = from == to ? to.balance : Math.addExact(to.balance, amountMinor);
+            lsn = log(WriteAheadLog.TRANSFER, MemoryJournal.transfer(fromAfter, toAfter, json));
+        } catch (RuntimeException e) {
+            release(transaction, claimed);
+            throw e;
+        }
+        apply(from, to, fromAfter, toAfter, transaction, json, amountMinor, at, lsn);
+        return new Transfer(TransferResult.ok(json), lsn);
+    }
+
+    /**
+     * Sets both balances and records both users' side of the transfer,
+     * skipping whatever already holds this LSN or a later one. Caller holds
+     * the stripes of both parties and both users.
+     */
+    private void apply(Party from, Party to, long fromAfter, long toAfter, Transaction transaction, String json,
+            long amountMinor, LocalDateTime at, long lsn) {
+        if (MemoryJournal.applies(from, lsn)) {
+            from.balance = fromAfter;
+            from.lsn = lsn;
+        }
+        if (MemoryJournal.applies(to, lsn)) {
+            // Journals from before hot-account buffering was removed may hold
+            // credits logged without the receiver's balance
+            to.balance = toAfter == MemoryJournal.BUFFERED ? to.balance + amountMinor : toAfter;
+            to.lsn = lsn;
+        }
+
+        String fromUserId = transaction.getFromUserId();
+        String toUserId = transaction.getToUserId();
+        if (fromUserId == null || toUserId == null) {
+            return;
+        }
+        TransferId id = new TransferId(fromUserId, json);
+        this.transferIds.put(fromUserId + "|" + transaction.getTransactionId(), id);
+        this.transferIds.put(toUserId + "|" + transaction.getTransactionId(), id);
+        boolean byAccount = transaction.getFromAccountId() != null;
+        Activity sender = activity(fromUserId);
+        Activity receiver = activity(toUserId);
+        // Decided before either is stamped, since a self-transfer is one Activity
+        boolean sent = MemoryJournal.applies(sender, lsn);
+        boolean received = MemoryJournal.applies(receiver, lsn);
+        if (sent) {
+            sender.add(json);
+            sender.sentMinor += amountMinor;
+            sender.totalTransactions++;
+            sender.rollup(at, true, amountMinor, toUserId);
+            sender.notify(Notifications.sentMessage(byAccount, fromUserId, toUserId, amountMinor), at);
+        }
+        if (received && sender != receiver) {
+            receiver.add(json);
+            receiver.receivedMinor += amountMinor;
+            receiver.totalTransactions++;
+            receiver.rollup(at, false, amountMinor, fromUserId);
+        }
+        if (received) {
+            receiver.notify(Notifications.receivedMessage(byAccount, fromUserId, amountMinor), at);
+        }
+        if (sent) {
+            sender.lsn = lsn;
+        }
+        if (received) {
+            receiver.lsn = lsn;
+        }
+        this.transfers.increment();
+    }
+
+    @Override
+    public List<TransferResult> transferBatch(List<Transaction> transfers) {
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        for (Transaction transfer : transfers) {
+            long amountMinor = transfer.getAmountMinor();
+            try {
+                results.add(transfer.getFromAccountId() != null
+                        ? transferBetweenAccounts(transfer.getFromAccountId(), transfer.getToAccountId(), amountMinor,
+                                transfer.getTransactionId())
+                        : transferBetweenUsers(transfer.getFromUserId(), transfer.getToUserId(), amountMinor,
+                                transfer.getTransactionId()));
+            } catch (RuntimeException e) {
+                // The items before it went through, so the batch still answers for each
+                System.err.println("Batch transfer failed: " + e);
+                results.add(TransferResult.failed(TransferResult.ERROR));
+            }
+        }
+        return results;
+    }
+
+    private String ownerOf(String accountId) {
+        AccountRecord record = this.accounts.get(accountId);
+        return record != null ? record.ownerUserId : null;
+    }
+
+    private static Transaction transaction(long amountMinor, LocalDateTime at, String transferId) {
+        Transaction transaction = new Transaction();
+        transaction.setTransactionId(transferId != null ? transferId : UUID.randomUUID().toString());
+        transaction.setAmountMinor(amountMinor);
+        transaction.setTimestamp(at);
+        transaction.setStatus("completed");
+        return transaction;
+    }
+
+    private Activity activity(String userId) {
+        return this.activity.computeIfAbsent(userId, id -> new Activity());
+    }
+
+    // ===== JOURNAL =====
+
+    // Caller holds the stripes of everything the record touches
+    private long log(byte type, byte[] payload) {
+        return this.journal != null ? this.journal.append(type, payload) : 0;
+    }
+
+    // Called without any stripe held
+    private void commit(long lsn) {
+        if (lsn > 0) {
+            this.journal.awaitDurable(lsn);
+        }
+    }
+
+    // Runs single-threaded from the constructor, before the journal is set
+    private void replay(long lsn, byte type, ByteBuffer payload) {
+        try {
+            switch (type) {
+                case WriteAheadLog.USER -> putUser(MemoryJournal.readUser(payload), lsn);
+                case WriteAheadLog.ACCOUNT -> putAccount(MemoryJournal.readAccount(payload), lsn);
+                case WriteAheadLog.TRANSFER -> replayTransfer(lsn, MemoryJournal.readTransfer(payload));
+                case WriteAheadLog.READ -> {
+                    MemoryJournal.ReadRecord read = MemoryJournal.readRead(payload);
+                    markRead(activity(read.userId), read.upTo, lsn);
+                }
+                default -> throw new IllegalStateException("Unknown journal record type " + type + " at LSN " + lsn);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unreadable journal record at LSN " + lsn, e);
+        }
+    }
+
+    private void replayTransfer(long lsn, MemoryJournal.TransferRecord record) {
+        Transaction t = record.transaction;
+        long amountMinor = t.getAmountMinor();
+        Party from = t.getFromAccountId() != null ? this.accounts.get(t.getFromAccountId())
+                : this.users.get(t.getFromUserId());
+        Party to = t.getToAccountId() != null ? this.accounts.get(t.getToAccountId())
+                : this.users.get(t.getToUserId());
+        if (from == null || to == null) {
+            this.replayMismatches.increment();
+            System.err.println("Journal transfer at LSN " + lsn + " names a party that does not exist");
+            return;
+        }
+        // A party that has not seen this record yet should land on the
+        // recorded balance; if not, the journal is what clients were told
+        if (from != to && MemoryJournal.applies(from, lsn) && from.balance - amountMinor != record.fromAfter) {
+            this.replayMismatches.increment();
+        }
+        if (from != to && record.toAfter != MemoryJournal.BUFFERED && MemoryJournal.applies(to, lsn)
+                && to.balance + amountMinor != record.toAfter) {
+            this.replayMismatches.increment();
+        }
+        apply(from, to, record.fromAfter, record.toAfter, t, record.json, amountMinor, t.getTimestamp(), lsn);
+    }
+
+    // ===== SNAPSHOTS =====
+
+    /**
+     * Writes a snapshot of every user, account and activity, then drops
+     * snapshots and journal segments that are no longer needed. Transfers
+     * carry on meanwhile; each entity is locked only while it is copied.
+     * Returns the snapshot's LSN, or 0 if nothing changed since the last one.
+     */
+    public synchronized long snapshot() throws IOException {
+        if (this.journal == null) {
+            throw new IllegalStateException("Snapshots need WIPAY_JOURNAL_DIR");
+        }
+        long lsn = this.journal.lastLsn();
+        if (lsn == this.snapshotLsn) {
+            return 0;
+        }
+        long started = System.nanoTime();
+        long bytes = Snapshots.write(this.journalDir, lsn, this::writeSnapshot);
+        this.snapshotLsn = lsn;
+        this.journal.truncateThrough(Snapshots.prune(this.journalDir, SNAPSHOTS_KEPT));
+
+        Map<String, Object> taken = new LinkedHashMap<>();
+        taken.put("lsn", lsn);
+        taken.put("bytes", bytes);
+        taken.put("ms", (System.nanoTime() - started) / 1_000_000);
+        taken.put("at", LocalDateTime.now().toString());
+        this.lastSnapshot = taken;
+        return lsn;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Snapshot failed: " + e);
+        }
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        // Copies may include records after the snapshot's LSN; those must be
+        // durable before the snapshot can stand in for them
+        long newest = 0;
+
+        for (String userId : this.userIds.all()) {
+            UserRecord user;
+            long balance;
+            long lsn;
+            int[] held = lock(USER + userId);
+            try {
+                user = this.users.get(userId);
+                balance = user.balance;
+                lsn = user.lsn;
+            } finally {
+                unlock(held);
+            }
+            MemorySnapshots.writeUser(out, user, balance, lsn);
+            newest = Math.max(newest, lsn);
+        }
+        MemorySnapshots.endSection(out);
+
+        for (String accountId : this.accountIds.all()) {
+            AccountRecord account;
+            long balance;
+            long lsn;
+            int[] held = lock(ACCOUNT + accountId);
+            try {
+                account = this.accounts.get(accountId);
+                balance = account.balance;
+                lsn = account.lsn;
+            } finally {
+                unlock(held);
+            }
+            MemorySnapshots.writeAccount(out, account, balance, lsn);
+            newest = Math.max(newest, lsn);
+        }
+        MemorySnapshots.endSection(out);
+
+        for (String userId : new ArrayList<>(this.activity.keySet())) {
+            Activity copy;
+            int[] held = lock(USER + userId);
+            try {
+                copy = this.activity.get(userId).copy();
+            } finally {
+                unlock(held);
+            }
+            MemorySnapshots.writeActivity(out, userId, copy);
+            newest = Math.max(newest, copy.lsn);
+        }
+        MemorySnapshots.endSection(out);
+
+        this.journal.awaitDurable(newest);
+    }
+
+    // Runs single-threaded from the constructor, before the journal is opened
+    private void readSnapshot(DataInputStream in, int version) throws IOException {
+        UserRecord user;
+        while ((user = MemorySnapshots.readUser(in)) != null) {
+            this.users.put(user.id, user);
+            this.userIds.add(user.id);
+            indexContact(user.toUser());
+        }
+        AccountRecord account;
+        while ((account = MemorySnapshots.readAccount(in)) != null) {
+            this.accounts.put(account.id, account);
+            this.accountIds.add(account.id);
+            this.accountsByUser.computeIfAbsent(String.valueOf(account.ownerUserId),
+                    id -> ConcurrentHashMap.newKeySet()).add(account.id);
+        }
+        String userId;
+        while ((userId = MemorySnapshots.nextActivity(in)) != null) {
+            MemorySnapshots.readActivity(in, version, activity(userId));
+        }
+    }
+
+    // ===== NOTIFICATIONS =====
+
+    @Override
+    public Page<RawJson> notifications(String userId, String cursor, int limit) {
+        int start = Integer.parseInt(cursor);
+        List<RawJson> items = new ArrayList<>();
+        int[] held = lock(USER + userId);
+        try {
+            Activity inbox = this.activity.get(userId);
+            if (inbox != null) {
+                Iterator<String> it = inbox.inbox.iterator();
+                for (int i = 0; it.hasNext() && i < start + limit; i++) {
+                    String json = it.next();
+                    if (i >= start) {
+                        items.add(new RawJson(json));
+                    }
+                }
+            }
+        } finally {
+            unlock(held);
+        }
+        return new Page<>(items, items.size() < limit ? null : String.valueOf(start + limit));
+    }
+
+    @Override
+    public Map<String, Object> notificationsSince(String userId, long since) {
+        List<RawJson> items = new ArrayList<>();
+        int[] held = lock(USER + userId);
+        try {
+            Activity inbox = this.activity.getOrDefault(userId, Activity.EMPTY);
+            // Sequence numbers are consecutive and the inbox is newest first
+            long count = inbox.seq - since;
+            Iterator<String> it = inbox.inbox.iterator();
+            for (long i = 0; i < count && it.hasNext(); i++) {
+                items.add(new RawJson(it.next()));
+            }
+            Map<String, Object> result = inbox.state();
+            result.put("items", items);
+            return result;
+        } finally {
+            unlock(held);
+        }
+    }
+
+    @Override
+    public Map<String, Object> unreadNotifications(String userId) {
+        int[] held = lock(USER + userId);
+        try {
+            return this.activity.getOrDefault(userId, Activity.EMPTY).state();
+        } finally {
+            unlock(held);
+        }
+    }
+
+    @Override
+    public Map<String, Object> markNotificationsRead(String userId, Long seq) {
+        long lsn = 0;
+        int[] held = lock(USER + userId);
+        try {
+            Activity inbox = this.activity.get(userId);
+            if (inbox == null) {
+                return Activity.EMPTY.state();
+            }
+            long upTo = seq == null ? inbox.seq : Math.min(seq, inbox.seq);
+            if (upTo > inbox.read) {
+                lsn = log(WriteAheadLog.READ, MemoryJournal.read(userId, upTo));
+                markRead(inbox, upTo, lsn);
+            }
+            return inbox.state();
+        } finally {
+            unlock(held);
+            commit(lsn);
+        }
+    }
+
+    private static void markRead(Activity inbox, long upTo, long lsn) {
+        if (MemoryJournal.applies(inbox, lsn)) {
+            inbox.read = Math.max(inbox.read, upTo);
+            inbox.lsn = lsn;
+        }
+    }
+
+    // ===== REPORTS =====
+
+    @Override
+    public Map<String, Object> report(String userId, int limit, int offset) {
+        int[] held = lock(USER + userId);
+        try {
+            UserRecord user = this.users.get(userId);
+            if (user == null) {
+                return null;
+            }
+            return MemoryReports.forUser(user, this.activity.getOrDefault(userId, Activity.EMPTY), limit, offset);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    @Override
+    public Map<String, Object> rangeReport(String userId, Rollups.Range range, int top) {
+        List<Map<String, Long>> buckets;
+        int[] held = lock(USER + userId);
+        try {
+            if (!this.users.containsKey(userId)) {
+                return null;
+            }
+            buckets = MemoryReports.buckets(this.activity.getOrDefault(userId, Activity.EMPTY), range);
+        } finally {
+            unlock(held);
+        }
+        return Rollups.report(userId, range, buckets, top);
+    }
+
+    /**
+     * Reads the user's history in the order it was recorded; the cursor is
+     * the position to continue from, which transfers landing during the
+     * export do not shift.
+     */
+    @Override
+    public Page<RawJson> statement(String userId, LocalDateTime from, LocalDateTime to, String cursor, int limit) {
+        int[] held = lock(USER + userId);
+        try {
+            if (!this.users.containsKey(userId)) {
+                return null;
+            }
+            return MemoryReports.statement(this.activity.getOrDefault(userId, Activity.EMPTY).history, from, to,
+                    Integer.parseInt(cursor), limit);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    // ===== IDEMPOTENCY =====
+
+    @Override
+    public IdempotencyStore idempotency() {
+        return this.idempotency;
+    }
+
+    // ===== LIFECYCLE =====
+
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("store", "memory");
+        stats.put("users", this.users.size());
+        stats.put("accounts", this.accounts.size());
+        stats.put("stripes", this.stripes.length);
+        stats.put("transfers", this.transfers.sum());
+        stats.put("contendedLocks", this.contended.sum());
+        if (this.journal != null) {
+            Map<String, Object> journal = this.journal.stats();
+            journal.put("replayMismatches", this.replayMismatches.sum());
+            stats.put("journal", journal);
+            stats.put("recovery", this.recovery);
+            stats.put("lastSnapshot", this.lastSnapshot);
+        }
+        return stats;
+    }
+
+    /** Takes a last snapshot so the next start has little to replay. */
+    @Override
+    public void close() {
+        if (this.journal == null) {
+            return;
+        }
+        if (this.snapshotter != null) {
+            this.snapshotter.shutdownNow();
+        }
+        snapshotQuietly();
+        this.journal.close();
+    }
+
+    // ===== LOCKING =====
+
+    /**
+     * Locks the stripes of the given keys, each once, lowest index first.
+     * Returns the indexes to pass to unlock.
+     */
+    private int[] lock(String... keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = stripe(keys[i]);
+        }
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        int[] held = Arrays.copyOf(indexes, distinct);
+        for (int index : held) {
+            ReentrantLock lock = this.stripes[index];
+            if (!lock.tryLock()) {
+                this.contended.increment();
+                lock.lock();
+            }
+        }
+        return held;
+    }
+
+    private void unlock(int[] held) {
+        for (int i = held.length - 1; i >= 0; i--) {
+            this.stripes[held[i]].unlock();
+        }
+    }
+
+    private int stripe(String key) {
+        int h = key.hashCode();
+        // Spread the high bits down, as HashMap does
+        return (h ^ (h >>> 16)) & (this.stripes.length - 1);
+    }
+
+    // ===== RECORDS =====
+
+    /** A transfer's result and its journal LSN (0 if it failed or nothing is journaled). */
+    private static class Transfer {
+        private final TransferResult result;
+        private final long lsn;
+
+        Transfer(TransferResult result, long lsn) {
+            this.result = result;
+            this.lsn = lsn;
+        }
+    }
+
+    /** Who made the transfer with some id, and its JSON once it went through. */
+    private static class TransferId {
+        private final String fromUserId;
+        private final String json;
+
+        TransferId(String fromUserId, String json) {
+            this.fromUserId = fromUserId;
+            this.json = json;
+        }
+    }
+
+    /** Ids in creation order, paged by index like the notification lists. */
+    private static class IdList {
+        private final List<String> ids = new ArrayList<>();
+        private final Set<String> seen = new HashSet<>();
+
+        synchronized void add(String id) {
+            if (this.seen.add(id)) {
+                this.ids.add(id);
+            }
+        }
+
+        synchronized List<String> all() {
+            return new ArrayList<>(this.ids);
+        }
+
+        <T> Page<T> page(String cursor, int limit, Function<String, T> view) {
+            int start = Integer.parseInt(cursor);
+            List<String> window;
+            synchronized (this) {
+                int end = Math.min(this.ids.size(), start + limit);
+                window = start < end ? new ArrayList<>(this.ids.subList(start, end)) : List.of();
+            }
+            List<T> items = new ArrayList<>(window.size());
+            for (String id : window) {
+                T item = view.apply(id);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return new Page<>(items, window.size() < limit ? null : String.valueOf(start + limit));
+        }
+    }
+}
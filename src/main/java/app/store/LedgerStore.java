@@ -0,0 +1,129 @@
+package app.store;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import app.json.RawJson;
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+import app.redis.Rollups;
+
+/**
+ * Everything the routes need from storage: users, accounts, transfers,
+ * notifications and reports. Amounts are in minor units.
+ *
+ * RedisLedgerStore is the default; InMemoryLedgerStore keeps everything in the
+ * JVM for tests and single-node edge deployments. WIPAY_STORE=memory selects
+ * the latter.
+ */
+public interface LedgerStore extends AutoCloseable {
+
+    /** WIPAY_STORE=redis (the default) or memory. */
+    static LedgerStore fromEnv(boolean virtualThreads) {
+        String store = System.getenv("WIPAY_STORE");
+        if ("memory".equalsIgnoreCase(store)) {
+            return InMemoryLedgerStore.fromEnv();
+        }
+        if (store != null && !"redis".equalsIgnoreCase(store)) {
+            System.err.println("Unknown WIPAY_STORE " + store + ", using redis");
+        }
+        return RedisLedgerStore.fromEnv(virtualThreads);
+    }
+
+    // ===== USERS =====
+
+    /** Creates the user, or replaces one with the same id. */
+    void createUser(User user);
+
+    /** The user, or null if there is none. */
+    User user(String userId);
+
+    Page<User> users(String cursor, int limit);
+
+    /**
+     * Users whose first name, last name or payment id start with the words of
+     * the query, best match first; see Contacts for the ranking.
+     */
+    List<User> searchContacts(String query, int limit);
+
+    // ===== ACCOUNTS =====
+
+    /**
+     * Creates the account and, as the API always has, sets the owning user's
+     * balance to the account's opening balance.
+     */
+    void createAccount(Account account);
+
+    Page<Account> accounts(String cursor, int limit);
+
+    List<Account> accountsOf(String userId);
+
+    // ===== TRANSFERS =====
+
+    /**
+     * transferId is the client's id for the transfer, or null for a new one.
+     * It is an idempotency key scoped to the sender: a transfer repeated with
+     * the id of one that went through returns the original transaction and
+     * moves no money.
+     */
+    TransferResult transferBetweenUsers(String fromUserId, String toUserId, long amountMinor, String transferId);
+
+    /** As transferBetweenUsers; the id is scoped to the sending account's owner. */
+    TransferResult transferBetweenAccounts(String fromAccountId, String toAccountId, long amountMinor,
+            String transferId);
+
+    /**
+     * Validated transfers by user ids or by account ids, applied in order.
+     * Each is atomic on its own; one failing does not stop the rest. An
+     * item's id, if given, is its transferId. The store failing on an item
+     * makes that item ERROR instead of throwing, since earlier ones may
+     * already have gone through.
+     */
+    List<TransferResult> transferBatch(List<Transaction> transfers);
+
+    // ===== NOTIFICATIONS =====
+
+    /** The user's inbox, newest first; the cursor is an index into it. */
+    Page<RawJson> notifications(String userId, String cursor, int limit);
+
+    /** Notifications numbered after since, with lastSeq, readSeq and unread. */
+    Map<String, Object> notificationsSince(String userId, long since);
+
+    Map<String, Object> unreadNotifications(String userId);
+
+    /** Moves the read cursor up to seq, or to the latest if seq is null. */
+    Map<String, Object> markNotificationsRead(String userId, Long seq);
+
+    // ===== REPORTS =====
+
+    /** One page of the user's transactions plus totals, or null if no such user. */
+    Map<String, Object> report(String userId, int limit, int offset);
+
+    /**
+     * Sent and received totals, counts and top counterparties over a date
+     * range, per day or month, from the rollups kept as transfers complete;
+     * null if no such user.
+     */
+    Map<String, Object> rangeReport(String userId, Rollups.Range range, int top);
+
+    /**
+     * One window of the user's transactions timestamped from..to (inclusive;
+     * null for open-ended), oldest first, as stored. Start with Page.FIRST;
+     * the next cursor is opaque. Null if no such user.
+     */
+    Page<RawJson> statement(String userId, LocalDateTime from, LocalDateTime to, String cursor, int limit);
+
+    // ===== IDEMPOTENCY =====
+
+    /** Where responses to requests with an Idempotency-Key are kept. */
+    IdempotencyStore idempotency();
+
+    // ===== LIFECYCLE =====
+
+    Map<String, Object> stats();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,103 @@
+package app.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import app.json.JsonCodec;
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+import app.store.MemoryRecords.Versioned;
+
+/**
+ * Payloads of the WriteAheadLog records InMemoryLedgerStore writes, one
+ * encoder per record type and decoders for replay:
+ *
+ * USER, ACCOUNT: the entity's JSON.
+ * TRANSFER: the sender's balance after it, the receiver's, then the
+ * transaction's JSON. Older journals may hold BUFFERED for the receiver's.
+ * READ: the sequence number read up to, then the user id.
+ */
+final class MemoryJournal {
+
+    // Receiver's balance in credits logged by the hot-account buffer, which is gone; replay adds the amount
+    static final long BUFFERED = Long.MIN_VALUE;
+
+    private MemoryJournal() {
+    }
+
+    static byte[] user(User user) {
+        return JsonCodec.write(user).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] account(Account account) {
+        return JsonCodec.write(account).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] transfer(long fromAfter, long toAfter, String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(16 + bytes.length).putLong(fromAfter).putLong(toAfter).put(bytes).array();
+    }
+
+    static byte[] read(String userId, long upTo) {
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + id.length).putLong(upTo).put(id).array();
+    }
+
+    static User readUser(ByteBuffer payload) throws IOException {
+        return JsonCodec.readUser(bytes(payload));
+    }
+
+    static Account readAccount(ByteBuffer payload) throws IOException {
+        return JsonCodec.readAccount(bytes(payload));
+    }
+
+    static TransferRecord readTransfer(ByteBuffer payload) throws IOException {
+        long fromAfter = payload.getLong();
+        long toAfter = payload.getLong();
+        byte[] json = bytes(payload);
+        return new TransferRecord(fromAfter, toAfter, JsonCodec.readTransaction(json),
+                new String(json, StandardCharsets.UTF_8));
+    }
+
+    static ReadRecord readRead(ByteBuffer payload) {
+        long upTo = payload.getLong();
+        return new ReadRecord(new String(bytes(payload), StandardCharsets.UTF_8), upTo);
+    }
+
+    // Without a journal every LSN is 0 and every change applies
+    static boolean applies(Versioned target, long lsn) {
+        return lsn == 0 || target.lsn < lsn;
+    }
+
+    private static byte[] bytes(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    static class TransferRecord {
+        final long fromAfter;
+        final long toAfter;
+        final Transaction transaction;
+        final String json;
+
+        TransferRecord(long fromAfter, long toAfter, Transaction transaction, String json) {
+            this.fromAfter = fromAfter;
+            this.toAfter = toAfter;
+            this.transaction = transaction;
+            this.json = json;
+        }
+    }
+
+    static class ReadRecord {
+        final String userId;
+        final long upTo;
+
+        ReadRecord(String userId, long upTo) {
+            this.userId = userId;
+            this.upTo = upTo;
+        }
+    }
+}
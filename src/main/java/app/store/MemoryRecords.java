@@ -0,0 +1,170 @@
+package app.store;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.model.Account;
+import app.model.Bank;
+import app.model.User;
+import app.redis.Notifications;
+import app.redis.Rollups;
+
+/**
+ * What InMemoryLedgerStore keeps per user and account. None of these lock
+ * anything themselves: the store guards each record with the stripe of the
+ * user or account it belongs to.
+ */
+final class MemoryRecords {
+
+    private MemoryRecords() {
+    }
+
+    /** Anything a journal record changes: the LSN of the last record applied to it. */
+    abstract static class Versioned {
+        long lsn;
+    }
+
+    /** A user or account: something with a balance. */
+    abstract static class Party extends Versioned {
+        long balance;
+    }
+
+    // Fields are only read or written under the user's stripe
+    static class UserRecord extends Party {
+        final String id;
+        final String firstName;
+        final String lastName;
+        final LocalDateTime createdAt;
+
+        UserRecord(User user) {
+            this.id = user.getUserId();
+            this.firstName = user.getFirstName();
+            this.lastName = user.getLastName();
+            this.createdAt = user.getCreatedAt();
+            this.balance = user.getBalanceMinor();
+        }
+
+        User toUser() {
+            User user = new User();
+            user.setUserId(this.id);
+            user.setFirstName(this.firstName);
+            user.setLastName(this.lastName);
+            user.setBalanceMinor(this.balance);
+            user.setCreatedAt(this.createdAt);
+            return user;
+        }
+    }
+
+    // Fields are only read or written under the account's stripe
+    static class AccountRecord extends Party {
+        final String id;
+        final String ownerUserId;
+        final String accountNumber;
+        final String bankName;
+        final LocalDateTime createdAt;
+
+        AccountRecord(Account account) {
+            this.id = account.getAccountId();
+            this.ownerUserId = account.getOwnerUserId();
+            this.accountNumber = account.getAccountNumber();
+            this.bankName = account.getBankName();
+            this.createdAt = account.getCreatedAt();
+            this.balance = account.getBalanceMinor();
+        }
+
+        Account toAccount() {
+            Account account = new Account();
+            account.setAccountId(this.id);
+            if (this.ownerUserId != null) {
+                User owner = new User();
+                owner.setUserId(this.ownerUserId);
+                account.setOwner(owner);
+            }
+            account.setAccountNumber(this.accountNumber);
+            if (this.bankName != null) {
+                Bank bank = new Bank();
+                bank.setBankName(this.bankName);
+                account.setBank(bank);
+            }
+            account.setBalanceMinor(this.balance);
+            account.setCreatedAt(this.createdAt);
+            return account;
+        }
+    }
+
+    /**
+     * A user's transactions, totals and inbox. Guarded by the user's stripe;
+     * kept apart from UserRecord because account transfers record activity
+     * for owners whether or not they exist as users, as the scripts do.
+     */
+    static class Activity extends Versioned {
+        static final Activity EMPTY = new Activity();
+
+        // Every transaction, oldest first; only ever appended to, so positions are stable
+        final List<String> history = new ArrayList<>();
+        long sentMinor;
+        long receivedMinor;
+        long totalTransactions;
+        // Period (2025-11-13 or 2025-11) -> the fields of that rollup hash in Redis
+        final Map<String, Map<String, Long>> rollups = new HashMap<>();
+
+        // Newest first, at most Notifications.CAP; older ones move to the archive
+        final ArrayDeque<String> inbox = new ArrayDeque<>();
+        final ArrayDeque<String> archive = new ArrayDeque<>();
+        long seq;
+        long read;
+
+        void add(String transactionJson) {
+            this.history.add(transactionJson);
+        }
+
+        void rollup(LocalDateTime at, boolean sent, long amountMinor, String peer) {
+            Rollups.add(this.rollups.computeIfAbsent(Rollups.day(at), p -> new HashMap<>()), sent, amountMinor, peer);
+            Rollups.add(this.rollups.computeIfAbsent(Rollups.month(at), p -> new HashMap<>()), sent, amountMinor,
+                    peer);
+        }
+
+        void notify(String message, LocalDateTime at) {
+            Map<String, Object> notification = new LinkedHashMap<>();
+            notification.put("seq", ++this.seq);
+            notification.put("message", message);
+            notification.put("timestamp", at.toString());
+            this.inbox.addFirst(JsonCodec.write(notification));
+            while (this.inbox.size() > Notifications.CAP) {
+                this.archive.addLast(this.inbox.removeLast());
+                if (this.archive.size() > Notifications.ARCHIVE_CAP) {
+                    this.archive.removeFirst();
+                }
+            }
+        }
+
+        // For snapshots, which do not keep the notification archive; it is never served
+        Activity copy() {
+            Activity copy = new Activity();
+            copy.lsn = this.lsn;
+            copy.sentMinor = this.sentMinor;
+            copy.receivedMinor = this.receivedMinor;
+            copy.totalTransactions = this.totalTransactions;
+            copy.seq = this.seq;
+            copy.read = this.read;
+            copy.history.addAll(this.history);
+            copy.inbox.addAll(this.inbox);
+            this.rollups.forEach((period, fields) -> copy.rollups.put(period, new HashMap<>(fields)));
+            return copy;
+        }
+
+        Map<String, Object> state() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("lastSeq", this.seq);
+            state.put("readSeq", this.read);
+            state.put("unread", Math.max(0, this.seq - this.read));
+            return state;
+        }
+    }
+}
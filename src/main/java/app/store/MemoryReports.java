@@ -0,0 +1,77 @@
+package app.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import app.json.JsonCodec;
+import app.json.RawJson;
+import app.redis.Rollups;
+import app.store.MemoryRecords.Activity;
+import app.store.MemoryRecords.UserRecord;
+
+/**
+ * Builds InMemoryLedgerStore's reports from a user's activity, in the same
+ * shapes as app.redis.Reports and Rollups. Callers hold the user's stripe.
+ */
+final class MemoryReports {
+
+    private MemoryReports() {
+    }
+
+    /** One page of the user's transactions, newest first, plus their totals. */
+    static Map<String, Object> forUser(UserRecord user, Activity activity, int limit, int offset) {
+        // History is oldest first; the report is newest first
+        List<RawJson> userTransactions = new ArrayList<>();
+        for (int i = activity.history.size() - 1 - offset; i >= 0 && userTransactions.size() < limit; i--) {
+            userTransactions.add(new RawJson(activity.history.get(i)));
+        }
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("userId", user.id);
+        report.put("totalTransactions", activity.totalTransactions);
+        report.put("totalSent", JsonCodec.money(activity.sentMinor));
+        report.put("totalReceived", JsonCodec.money(activity.receivedMinor));
+        report.put("currentBalance", JsonCodec.money(user.balance));
+        report.put("transactions", userTransactions);
+        report.put("limit", limit);
+        report.put("offset", offset);
+        return report;
+    }
+
+    /** Copies of the rollup buckets for Rollups.report, one per period of the range. */
+    static List<Map<String, Long>> buckets(Activity activity, Rollups.Range range) {
+        List<Map<String, Long>> buckets = new ArrayList<>();
+        for (String period : range.periods()) {
+            buckets.add(new HashMap<>(activity.rollups.getOrDefault(period, Map.of())));
+        }
+        return buckets;
+    }
+
+    /**
+     * Up to limit transactions between from and to (either may be null),
+     * reading the history from position next on; the cursor of the page is
+     * the position after the last one read.
+     */
+    static Page<RawJson> statement(List<String> history, LocalDateTime from, LocalDateTime to, int next,
+            int limit) {
+        List<RawJson> items = new ArrayList<>();
+        try {
+            for (; next < history.size() && items.size() < limit; next++) {
+                String json = history.get(next);
+                LocalDateTime at = JsonCodec.readTransaction(json.getBytes(StandardCharsets.UTF_8)).getTimestamp();
+                if ((from == null || !at.isBefore(from)) && (to == null || !at.isAfter(to))) {
+                    items.add(new RawJson(json));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Page<>(items, items.size() < limit ? null : String.valueOf(next));
+    }
+}
@@ -0,0 +1,172 @@
+package app.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import app.model.Account;
+import app.model.Bank;
+import app.model.User;
+import app.store.MemoryRecords.AccountRecord;
+import app.store.MemoryRecords.Activity;
+import app.store.MemoryRecords.UserRecord;
+
+/**
+ * The body of an InMemoryLedgerStore snapshot, inside the framing Snapshots
+ * adds: users, then accounts, then activities. Every entry starts with true
+ * and every section ends with false. Callers copy what they write under the
+ * entity's stripe; nothing here locks.
+ */
+final class MemorySnapshots {
+
+    private MemorySnapshots() {
+    }
+
+    static void writeUser(DataOutputStream out, UserRecord user, long balance, long lsn) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(user.id);
+        writeNullable(out, user.firstName);
+        writeNullable(out, user.lastName);
+        writeNullable(out, user.createdAt != null ? user.createdAt.toString() : null);
+        out.writeLong(balance);
+        out.writeLong(lsn);
+    }
+
+    /** The next user in the section, or null at its end. */
+    static UserRecord readUser(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        User user = new User();
+        user.setUserId(in.readUTF());
+        user.setFirstName(readNullable(in));
+        user.setLastName(readNullable(in));
+        user.setCreatedAt(readTime(in));
+        UserRecord record = new UserRecord(user);
+        record.balance = in.readLong();
+        record.lsn = in.readLong();
+        return record;
+    }
+
+    static void writeAccount(DataOutputStream out, AccountRecord account, long balance, long lsn)
+            throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(account.id);
+        writeNullable(out, account.ownerUserId);
+        writeNullable(out, account.accountNumber);
+        writeNullable(out, account.bankName);
+        writeNullable(out, account.createdAt != null ? account.createdAt.toString() : null);
+        out.writeLong(balance);
+        out.writeLong(lsn);
+    }
+
+    /** The next account in the section, or null at its end. */
+    static AccountRecord readAccount(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Account account = new Account();
+        account.setAccountId(in.readUTF());
+        String ownerUserId = readNullable(in);
+        if (ownerUserId != null) {
+            User owner = new User();
+            owner.setUserId(ownerUserId);
+            account.setOwner(owner);
+        }
+        account.setAccountNumber(readNullable(in));
+        String bankName = readNullable(in);
+        if (bankName != null) {
+            Bank bank = new Bank();
+            bank.setBankName(bankName);
+            account.setBank(bank);
+        }
+        account.setCreatedAt(readTime(in));
+        AccountRecord record = new AccountRecord(account);
+        record.balance = in.readLong();
+        record.lsn = in.readLong();
+        return record;
+    }
+
+    static void writeActivity(DataOutputStream out, String userId, Activity activity) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(userId);
+        out.writeLong(activity.lsn);
+        out.writeLong(activity.sentMinor);
+        out.writeLong(activity.receivedMinor);
+        out.writeLong(activity.totalTransactions);
+        out.writeLong(activity.seq);
+        out.writeLong(activity.read);
+        writeStrings(out, activity.history);
+        writeStrings(out, activity.inbox);
+        out.writeInt(activity.rollups.size());
+        for (Map.Entry<String, Map<String, Long>> rollup : activity.rollups.entrySet()) {
+            out.writeUTF(rollup.getKey());
+            out.writeInt(rollup.getValue().size());
+            for (Map.Entry<String, Long> field : rollup.getValue().entrySet()) {
+                out.writeUTF(field.getKey());
+                out.writeLong(field.getValue());
+            }
+        }
+    }
+
+    /** The user id of the next activity in the section, or null at its end; readActivity reads the rest. */
+    static String nextActivity(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void readActivity(DataInputStream in, int version, Activity activity) throws IOException {
+        activity.lsn = in.readLong();
+        activity.sentMinor = in.readLong();
+        activity.receivedMinor = in.readLong();
+        activity.totalTransactions = in.readLong();
+        activity.seq = in.readLong();
+        activity.read = in.readLong();
+        readStrings(in, activity.history);
+        readStrings(in, activity.inbox);
+        // Version 1 had no rollups; they start over from the first transfer after it
+        for (int i = version >= 2 ? in.readInt() : 0; i > 0; i--) {
+            Map<String, Long> fields = activity.rollups.computeIfAbsent(in.readUTF(), p -> new HashMap<>());
+            for (int j = in.readInt(); j > 0; j--) {
+                fields.put(in.readUTF(), in.readLong());
+            }
+        }
+    }
+
+    static void endSection(DataOutputStream out) throws IOException {
+        out.writeBoolean(false);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static LocalDateTime readTime(DataInputStream in) throws IOException {
+        String value = readNullable(in);
+        return value != null ? LocalDateTime.parse(value) : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void readStrings(DataInputStream in, Collection<String> values) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+    }
+}
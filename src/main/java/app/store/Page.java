@@ -0,0 +1,26 @@
+package app.store;
+
+import java.util.List;
+
+/**
+ * One window of a list endpoint. nextCursor is null on the last page.
+ */
+public class Page<T> {
+    public static final String FIRST = "0";
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    public Page(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return this.items;
+    }
+
+    public String getNextCursor() {
+        return this.nextCursor;
+    }
+}
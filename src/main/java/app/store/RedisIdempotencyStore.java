@@ -0,0 +1,53 @@
+package app.store;
+
+import java.util.List;
+
+import app.redis.RedisKeys;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.SetParams;
+
+/** Idempotency keys as strings with a TTL; each key is one slot on its own. */
+public class RedisIdempotencyStore implements IdempotencyStore {
+
+    // KEYS: the idempotency key
+    // ARGV: the claim, seconds it holds
+    // Returns what the key held, or nil after claiming it
+    private static final String CLAIM = String.join("\n",
+            "local held = redis.call('GET', KEYS[1])",
+            "if held then",
+            "  return held",
+            "end",
+            "redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2])",
+            "return false");
+
+    // KEYS: the idempotency key
+    // ARGV: the claim to remove; a claim that expired and was taken over stays
+    private static final String RELEASE = String.join("\n",
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then",
+            "  redis.call('DEL', KEYS[1])",
+            "end",
+            "return 0");
+
+    private final UnifiedJedis redis;
+
+    public RedisIdempotencyStore(UnifiedJedis redis) {
+        this.redis = redis;
+    }
+
+    @Override
+    public Entry claim(String key, String fingerprint) {
+        Object held = this.redis.eval(CLAIM, List.of(RedisKeys.idempotency(key)),
+                List.of(Entry.claim(fingerprint).encode(), String.valueOf(CLAIM_SECONDS)));
+        return held != null ? Entry.decode((String) held) : null;
+    }
+
+    @Override
+    public void complete(String key, Entry response) {
+        this.redis.set(RedisKeys.idempotency(key), response.encode(), SetParams.setParams().ex(TTL_SECONDS));
+    }
+
+    @Override
+    public void release(String key, String fingerprint) {
+        this.redis.eval(RELEASE, List.of(RedisKeys.idempotency(key)), List.of(Entry.claim(fingerprint).encode()));
+    }
+}
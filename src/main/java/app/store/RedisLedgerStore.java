@@ -0,0 +1,321 @@
+package app.store;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import app.cache.EntityCache;
+import app.json.RawJson;
+import app.migration.Migration;
+import app.model.Account;
+import app.model.Transaction;
+import app.model.User;
+import app.redis.Contacts;
+import app.redis.EntityHashes;
+import app.redis.NotificationWorker;
+import app.redis.Notifications;
+import app.redis.Paging;
+import app.redis.RedisKeys;
+import app.redis.RedisPool;
+import app.redis.Reports;
+import app.redis.Rollups;
+import app.redis.TransferScripts;
+import app.redis.TwoPhaseTransfers;
+import app.util.Env;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * The Redis-backed store: entity hashes read through the EntityCache,
+ * transfers as Lua scripts, reports from the indexes the scripts maintain,
+ * and notifications stored in the background by a NotificationWorker. Works
+ * against one node or, with REDIS_CLUSTER_NODES, a Redis Cluster; see
+ * RedisKeys for how the keys are spread.
+ *
+ * Every WIPAY_TRANSFER_RECOVERY_S a background sweep settles cross-slot
+ * transfers that have been pending for over WIPAY_TRANSFER_STUCK_S (see
+ * TwoPhaseTransfers).
+ */
+public class RedisLedgerStore implements LedgerStore {
+
+    // KEYS: account hash, owner's account set, owner's hash
+    // ARGV: account id, then field/value pairs of the account hash
+    private static final String CREATE_ACCOUNT = String.join("\n",
+            "redis.call('HSET', KEYS[1], unpack(ARGV, 2))",
+            "redis.call('SADD', KEYS[2], ARGV[1])",
+            "if redis.call('EXISTS', KEYS[3]) == 1 then",
+            "  redis.call('HSET', KEYS[3], 'balance', redis.call('HGET', KEYS[1], 'balance'))",
+            "end",
+            "return 0");
+
+    private static final int RECOVERY_SECONDS = Env.getInt("WIPAY_TRANSFER_RECOVERY_S", 10);
+    private static final int STUCK_SECONDS = Env.getInt("WIPAY_TRANSFER_STUCK_S", 30);
+
+    private final UnifiedJedis redis;
+    private final EntityCache cache;
+    private final IdempotencyStore idempotency;
+    private final NotificationWorker notifications;
+    private final ScheduledExecutorService recovery;
+    private final LongAdder recoveredCompleted = new LongAdder();
+    private final LongAdder recoveredRefunded = new LongAdder();
+
+    public RedisLedgerStore(UnifiedJedis redis, EntityCache cache) {
+        this.redis = redis;
+        this.cache = cache;
+        this.idempotency = new RedisIdempotencyStore(redis);
+        this.notifications = new NotificationWorker(redis);
+        if (RECOVERY_SECONDS > 0) {
+            this.recovery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "transfer-recovery");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.recovery.scheduleWithFixedDelay(this::recoverQuietly, RECOVERY_SECONDS, RECOVERY_SECONDS,
+                    TimeUnit.SECONDS);
+        } else {
+            this.recovery = null;
+        }
+    }
+
+    /**
+     * Connects, runs pending migrations, loads the scripts and starts
+     * listening for cache invalidations.
+     */
+    public static RedisLedgerStore fromEnv(boolean virtualThreads) {
+        UnifiedJedis redis = RedisPool.fromEnv(virtualThreads);
+        Migration.runPending(redis);
+        TransferScripts.preload(redis);
+        Notifications.preload(redis);
+        NotificationWorker.preload(redis);
+        EntityCache cache = EntityCache.fromEnv(redis);
+        cache.listen();
+        return new RedisLedgerStore(redis, cache);
+    }
+
+    public UnifiedJedis redis() {
+        return this.redis;
+    }
+
+    public EntityCache cache() {
+        return this.cache;
+    }
+
+    // ===== USERS =====
+
+    @Override
+    public void createUser(User user) {
+        String userId = user.getUserId();
+        // The hash and its id set entry are in different slots; the id is
+        // listed only once the hash it points to exists
+        this.redis.hset(RedisKeys.user(userId), EntityHashes.userFields(user));
+        try (AbstractPipeline pipeline = this.redis.pipelined()) {
+            pipeline.sadd(RedisKeys.userIds(RedisKeys.idShard(userId)), userId);
+            Contacts.index(pipeline, user);
+            pipeline.sync();
+        }
+        this.cache.userChanged(userId);
+    }
+
+    @Override
+    public User user(String userId) {
+        return this.cache.user(userId);
+    }
+
+    @Override
+    public Page<User> users(String cursor, int limit) {
+        return Paging.setPage(this.redis, RedisKeys::userIds, cursor, limit, this.cache::users);
+    }
+
+    @Override
+    public List<User> searchContacts(String query, int limit) {
+        List<String> words = Contacts.words(query);
+        if (words.isEmpty()) {
+            return List.of();
+        }
+        List<String> userIds = Contacts.candidates(this.redis, Contacts.lookupWord(words));
+        return Contacts.rank(this.cache.users(userIds), words, limit);
+    }
+
+    // ===== ACCOUNTS =====
+
+    @Override
+    public void createAccount(Account account) {
+        String userId = account.getOwnerUserId();
+        String accountId = account.getAccountId();
+        Map<String, String> fields = EntityHashes.accountFields(account);
+
+        // The account, the owner's index and the owner's balance share the
+        // owner's slot and change together; the directory entry and the id
+        // set entry come after, so neither points at a missing account
+        List<String> args = new ArrayList<>();
+        args.add(accountId);
+        fields.forEach((name, value) -> {
+            args.add(name);
+            args.add(value);
+        });
+        this.redis.eval(CREATE_ACCOUNT,
+                List.of(RedisKeys.account(userId, accountId), RedisKeys.accountsByUser(userId),
+                        RedisKeys.user(userId)),
+                args);
+        try (AbstractPipeline pipeline = this.redis.pipelined()) {
+            pipeline.set(RedisKeys.accountOwner(accountId), userId);
+            pipeline.sadd(RedisKeys.accountIds(RedisKeys.idShard(accountId)), accountId);
+            pipeline.sync();
+        }
+        this.cache.accountCreated(accountId, userId);
+        this.cache.userChanged(userId);
+    }
+
+    @Override
+    public Page<Account> accounts(String cursor, int limit) {
+        return Paging.setPage(this.redis, RedisKeys::accountIds, cursor, limit, this.cache::accounts);
+    }
+
+    @Override
+    public List<Account> accountsOf(String userId) {
+        return this.cache.accounts(this.redis.smembers(RedisKeys.accountsByUser(userId)));
+    }
+
+    // ===== TRANSFERS =====
+
+    @Override
+    public TransferResult transferBetweenUsers(String fromUserId, String toUserId, long amountMinor,
+            String transferId) {
+        return notified(TransferScripts.betweenUsers(this.redis, fromUserId, toUserId, amountMinor,
+                idOrNew(transferId), LocalDateTime.now()));
+    }
+
+    @Override
+    public TransferResult transferBetweenAccounts(String fromAccountId, String toAccountId, long amountMinor,
+            String transferId) {
+        return notified(TransferScripts.betweenAccounts(this.redis, fromAccountId, this.cache.owner(fromAccountId),
+                toAccountId, this.cache.owner(toAccountId), amountMinor, idOrNew(transferId), LocalDateTime.now()));
+    }
+
+    // Queues both parties' notifications, once per transfer: not again for a repeated one
+    private TransferResult notified(TransferResult result) {
+        if (result.isOk() && !result.isRepeated()) {
+            this.notifications.transferCompleted(result.getTransactionJson());
+        }
+        return result;
+    }
+
+    private static String idOrNew(String transferId) {
+        return transferId != null ? transferId : UUID.randomUUID().toString();
+    }
+
+    @Override
+    public List<TransferResult> transferBatch(List<Transaction> transfers) {
+        Set<String> accountIds = new HashSet<>();
+        for (Transaction transfer : transfers) {
+            if (transfer.getFromAccountId() != null) {
+                accountIds.add(transfer.getFromAccountId());
+                accountIds.add(transfer.getToAccountId());
+            }
+        }
+        List<TransferResult> results = TransferScripts.batch(this.redis, transfers, this.cache.owners(accountIds));
+        results.forEach(this::notified);
+        return results;
+    }
+
+    private void recoverQuietly() {
+        try {
+            long olderThan = System.currentTimeMillis() - STUCK_SECONDS * 1000L;
+            for (TransferResult result : TwoPhaseTransfers.recoverStuck(this.redis, olderThan)) {
+                notified(result);
+                (result.isOk() ? this.recoveredCompleted : this.recoveredRefunded).increment();
+            }
+        } catch (RuntimeException e) {
+            // Retried on the next run; every step of the protocol can be repeated
+            System.err.println("Transfer recovery failed: " + e);
+        }
+    }
+
+    // ===== NOTIFICATIONS =====
+
+    @Override
+    public Page<RawJson> notifications(String userId, String cursor, int limit) {
+        // Stored as JSON by notify.lua, so passed through as-is
+        return Paging.listPage(this.redis, RedisKeys.notifications(userId), cursor, limit, RawJson::new);
+    }
+
+    @Override
+    public Map<String, Object> notificationsSince(String userId, long since) {
+        return Notifications.since(this.redis, userId, since);
+    }
+
+    @Override
+    public Map<String, Object> unreadNotifications(String userId) {
+        return Notifications.unread(this.redis, userId);
+    }
+
+    @Override
+    public Map<String, Object> markNotificationsRead(String userId, Long seq) {
+        return Notifications.markRead(this.redis, userId, seq);
+    }
+
+    // ===== REPORTS =====
+
+    @Override
+    public Map<String, Object> report(String userId, int limit, int offset) {
+        return Reports.forUser(this.redis, userId, limit, offset);
+    }
+
+    @Override
+    public Map<String, Object> rangeReport(String userId, Rollups.Range range, int top) {
+        return Rollups.forUser(this.redis, userId, range, top);
+    }
+
+    @Override
+    public Page<RawJson> statement(String userId, LocalDateTime from, LocalDateTime to, String cursor, int limit) {
+        if (Page.FIRST.equals(cursor) && !this.redis.exists(RedisKeys.user(userId))) {
+            return null;
+        }
+        return Paging.scorePage(this.redis, RedisKeys.transactionsByUser(userId), RedisKeys.transactions(userId),
+                from == null ? Long.MIN_VALUE : TransferScripts.epochMillis(from),
+                to == null ? Long.MAX_VALUE : TransferScripts.epochMillis(to), cursor, limit, RawJson::new);
+    }
+
+    // ===== IDEMPOTENCY =====
+
+    @Override
+    public IdempotencyStore idempotency() {
+        return this.idempotency;
+    }
+
+    // ===== LIFECYCLE =====
+
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("store", "redis");
+        stats.put("pool", RedisPool.stats(this.redis));
+        stats.put("cache", this.cache.stats());
+        Map<String, Object> transfers = new LinkedHashMap<>();
+        transfers.put("pending", TwoPhaseTransfers.pendingCount(this.redis));
+        transfers.put("recoveredCompleted", this.recoveredCompleted.sum());
+        transfers.put("recoveredRefunded", this.recoveredRefunded.sum());
+        stats.put("twoPhaseTransfers", transfers);
+        stats.put("notifications", this.notifications.stats());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        if (this.recovery != null) {
+            this.recovery.shutdownNow();
+        }
+        this.notifications.close();
+        this.cache.close();
+        this.redis.close();
+    }
+}
@@ -0,0 +1,173 @@
+package app.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot files next to the write-ahead log, named by the LSN they cover up
+ * to: {lsn}.snap holds a state that replaying the log from lsn + 1 brings up
+ * to date.
+ *
+ * Layout: magic, version, LSN, the caller's body, then a CRC32C of everything
+ * before it. A file is written under a temporary name, forced, and renamed
+ * into place, so a crash never leaves a half-written snapshot behind under
+ * the real name; one that still fails its checksum is skipped in favour of
+ * the one before it.
+ */
+public class Snapshots {
+
+    private static final int MAGIC = 0x57504e53; // "WPNS"
+    // 2 added report rollups; version 1 files are still read
+    private static final int VERSION = 2;
+    private static final int OLDEST_VERSION = 1;
+    private static final String SUFFIX = ".snap";
+    private static final String PARTIAL = ".snap.partial";
+
+    /** Writes a snapshot body; the stream is buffered and checksummed. */
+    @FunctionalInterface
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Reads a snapshot body back, in the order it was written by that version. */
+    @FunctionalInterface
+    public interface Reader {
+        void read(DataInputStream in, int version) throws IOException;
+    }
+
+    /** Writes {lsn}.snap and returns its size in bytes. */
+    public static long write(Path dir, long lsn, Writer body) throws IOException {
+        Files.createDirectories(dir);
+        Path partial = dir.resolve(name(lsn) + PARTIAL);
+        CRC32C crc = new CRC32C();
+        try (OutputStream file = Files.newOutputStream(partial);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lsn);
+            body.write(out);
+            out.flush();
+            // The checksum itself is not part of what it covers
+            file.write(intBytes((int) crc.getValue()));
+        }
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Path target = dir.resolve(name(lsn) + SUFFIX);
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return Files.size(target);
+    }
+
+    /**
+     * Loads the newest snapshot that passes its checksum and returns its LSN,
+     * or 0 if there is none. The checksum is verified before the reader sees
+     * any of the file.
+     */
+    public static long loadLatest(Path dir, Reader body) throws IOException {
+        List<Path> files = list(dir);
+        Collections.reverse(files);
+        for (Path file : files) {
+            if (verify(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                        1 << 16))) {
+                    in.readInt();
+                    int version = in.readInt();
+                    long lsn = in.readLong();
+                    body.read(in, version);
+                    return lsn;
+                }
+            }
+            System.err.println("Skipping corrupt snapshot " + file);
+        }
+        return 0;
+    }
+
+    /**
+     * Deletes all but the newest {@code keep} snapshots, and any left half
+     * written, and returns the oldest LSN kept.
+     */
+    public static long prune(Path dir, int keep) throws IOException {
+        try (Stream<Path> listing = Files.list(dir)) {
+            for (Path partial : listing.filter(p -> p.getFileName().toString().endsWith(PARTIAL)).toList()) {
+                Files.delete(partial);
+            }
+        }
+        List<Path> files = list(dir);
+        for (int i = 0; i < files.size() - keep; i++) {
+            Files.delete(files.get(i));
+        }
+        return files.isEmpty() ? 0 : lsn(files.get(Math.max(0, files.size() - keep)));
+    }
+
+    private static boolean verify(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size < 20) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        try (InputStream in = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16),
+                crc)) {
+            byte[] buffer = new byte[1 << 16];
+            long left = size - 4;
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0) {
+                    return false;
+                }
+                left -= read;
+            }
+            int expected = (int) crc.getValue();
+            DataInputStream trailer = new DataInputStream(in);
+            if (trailer.readInt() != expected) {
+                return false;
+            }
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            int version = in.readInt();
+            return version >= OLDEST_VERSION && version <= VERSION;
+        }
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> listing = Files.list(dir)) {
+            return new ArrayList<>(listing.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList());
+        }
+    }
+
+    private static String name(long lsn) {
+        return String.format("%020d", lsn);
+    }
+
+    private static long lsn(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
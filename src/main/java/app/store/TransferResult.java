@@ -0,0 +1,64 @@
+package app.store;
+
+/**
+ * Outcome of one transfer: OK with the stored transaction JSON, or one of
+ * SENDER_NOT_FOUND, RECEIVER_NOT_FOUND, INSUFFICIENT_BALANCE, DUPLICATE_ID
+ * when another transfer in the sender's or receiver's history has the same
+ * transaction id, ABORTED for a cross-slot transfer the recovery sweeper
+ * refunded before it completed, or ERROR for a batch item the store failed
+ * on, which may or may not have gone through: repeating it with the same
+ * transaction id settles which.
+ * An OK result is repeated when an earlier request with the same transaction
+ * id already made the transfer and this one moved nothing.
+ */
+public class TransferResult {
+    public static final String OK = "OK";
+    public static final String SENDER_NOT_FOUND = "SENDER_NOT_FOUND";
+    public static final String RECEIVER_NOT_FOUND = "RECEIVER_NOT_FOUND";
+    public static final String INSUFFICIENT_BALANCE = "INSUFFICIENT_BALANCE";
+    public static final String DUPLICATE_ID = "DUPLICATE_ID";
+    public static final String ABORTED = "ABORTED";
+    public static final String ERROR = "ERROR";
+
+    private final String status;
+    private final String transactionJson;
+    private final boolean repeated;
+
+    public TransferResult(String status, String transactionJson) {
+        this(status, transactionJson, false);
+    }
+
+    private TransferResult(String status, String transactionJson, boolean repeated) {
+        this.status = status;
+        this.transactionJson = transactionJson;
+        this.repeated = repeated;
+    }
+
+    public static TransferResult ok(String transactionJson) {
+        return new TransferResult(OK, transactionJson);
+    }
+
+    public static TransferResult repeated(String transactionJson) {
+        return new TransferResult(OK, transactionJson, true);
+    }
+
+    public static TransferResult failed(String status) {
+        return new TransferResult(status, null);
+    }
+
+    public String getStatus() {
+        return this.status;
+    }
+
+    public String getTransactionJson() {
+        return this.transactionJson;
+    }
+
+    public boolean isOk() {
+        return OK.equals(this.status);
+    }
+
+    public boolean isRepeated() {
+        return this.repeated;
+    }
+}
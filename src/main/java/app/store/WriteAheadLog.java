@@ -0,0 +1,399 @@
+package app.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import app.util.Env;
+
+/**
+ * Append-only journal of the in-memory store's writes, in memory-mapped
+ * segment files of WIPAY_JOURNAL_SEGMENT_MB each, named by the sequence number
+ * (LSN) of their first record.
+ *
+ * Appends only copy into the mapped segment. A background thread forces the
+ * segment to disk once WIPAY_JOURNAL_GROUP records are waiting or
+ * WIPAY_JOURNAL_FLUSH_MS has passed since the first of them, and wakes every
+ * writer the flush covered; so one fsync commits a whole group and throughput
+ * grows with the group rather than being bound by disk latency.
+ *
+ * Record layout: [int length][int crc32c][long lsn][byte type][payload], where
+ * length and the checksum cover everything after the checksum. A zero length
+ * ends a segment. On open, every record after the given LSN (that of the
+ * snapshot the caller restored, or 0) is checked and handed to the replay
+ * callback in order; segments holding only older records are not read. A
+ * torn or corrupt record at the tail of the last segment is where the log was
+ * cut off by a crash, so it and anything after it are discarded and appending
+ * resumes there.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public static final byte USER = 1;
+    public static final byte ACCOUNT = 2;
+    public static final byte TRANSFER = 3;
+    public static final byte READ = 4;
+
+    private static final int HEADER = 8;
+    private static final int BODY_FIXED = 9;
+    private static final String SUFFIX = ".wal";
+
+    /** Receives each intact record, oldest first, while the log is opened. */
+    @FunctionalInterface
+    public interface Replay {
+        void apply(long lsn, byte type, ByteBuffer payload);
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long flushNanos;
+    private final int groupSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = this.lock.newCondition();
+    private final Condition flushed = this.lock.newCondition();
+    private final Thread flusher;
+
+    // Guarded by lock
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int position;
+    private long lastLsn;
+    private long durableLsn;
+    private boolean closed;
+    private long flushes;
+    private long segments;
+    private long replayed;
+    private long recoveredLsn;
+
+    private WriteAheadLog(Path dir, int segmentBytes, long flushMillis, int groupSize) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.groupSize = groupSize;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    public static WriteAheadLog open(Path dir, int segmentBytes, long flushMillis, int groupSize, long afterLsn,
+            Replay replay) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog log = new WriteAheadLog(dir, segmentBytes, flushMillis, groupSize);
+        log.recover(afterLsn, replay);
+        log.flusher.start();
+        return log;
+    }
+
+    public static WriteAheadLog fromEnv(Path dir, long afterLsn, Replay replay) throws IOException {
+        return open(dir, Env.getInt("WIPAY_JOURNAL_SEGMENT_MB", 64) << 20,
+                Env.getInt("WIPAY_JOURNAL_FLUSH_MS", 2), Env.getInt("WIPAY_JOURNAL_GROUP", 64),
+                afterLsn, replay);
+    }
+
+    // ===== WRITING =====
+
+    /**
+     * Copies the record into the log and returns its LSN. It is not durable
+     * until awaitDurable(lsn) returns.
+     */
+    public long append(byte type, byte[] payload) {
+        int length = BODY_FIXED + payload.length;
+        if (HEADER + length > this.segmentBytes) {
+            throw new IllegalArgumentException("A " + payload.length + " byte record does not fit in a journal segment");
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.putInt(length).putInt(0).putLong(0).put(type).put(payload);
+
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            if (this.position + record.capacity() > this.segment.capacity()) {
+                rotate();
+            }
+            long lsn = ++this.lastLsn;
+            record.putLong(HEADER, lsn);
+            CRC32C crc = new CRC32C();
+            crc.update(record.array(), HEADER, length);
+            record.putInt(4, (int) crc.getValue());
+            this.segment.put(this.position, record.array());
+            this.position += record.capacity();
+
+            long pending = lsn - this.durableLsn;
+            if (pending == 1 || pending >= this.groupSize) {
+                this.flushNeeded.signal();
+            }
+            return lsn;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Blocks until the group holding this LSN has been forced to disk. */
+    public void awaitDurable(long lsn) {
+        this.lock.lock();
+        try {
+            while (this.durableLsn < lsn) {
+                this.flushed.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long lastLsn() {
+        this.lock.lock();
+        try {
+            return this.lastLsn;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments whose records are all at or below the LSN, once a
+     * snapshot covers them. The segment being written is always kept.
+     */
+    public void truncateThrough(long lsn) throws IOException {
+        List<Path> files = segmentFiles();
+        for (int i = 0; i < files.size() - 1; i++) {
+            if (firstLsn(files.get(i + 1)) > lsn + 1) {
+                break;
+            }
+            Files.delete(files.get(i));
+        }
+    }
+
+    // Caller holds the lock. Forced here so the flusher only ever has to force
+    // the current segment.
+    private void rotate() throws IOException {
+        this.segment.force();
+        this.channel.close();
+        openSegment(this.lastLsn + 1, this.segmentBytes);
+        this.position = 0;
+    }
+
+    private void openSegment(long firstLsn, int size) throws IOException {
+        Path path = this.dir.resolve(String.format("%020d%s", firstLsn, SUFFIX));
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.segment = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.segments++;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer target;
+            long upTo;
+            this.lock.lock();
+            try {
+                // Wait for a first unflushed record, then for the group to
+                // fill or the interval to run out
+                while (!this.closed && this.lastLsn == this.durableLsn) {
+                    this.flushNeeded.awaitUninterruptibly();
+                }
+                long deadline = System.nanoTime() + this.flushNanos;
+                while (!this.closed && this.lastLsn - this.durableLsn < this.groupSize) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    this.flushNeeded.awaitNanos(left);
+                }
+                if (this.lastLsn == this.durableLsn) {
+                    return;
+                }
+                target = this.segment;
+                upTo = this.lastLsn;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                this.lock.unlock();
+            }
+
+            // Appends carry on into the segment while it is being forced
+            target.force();
+
+            this.lock.lock();
+            try {
+                this.durableLsn = Math.max(this.durableLsn, upTo);
+                this.flushes++;
+                this.flushed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    // ===== RECOVERY =====
+
+    private void recover(long afterLsn, Replay replay) throws IOException {
+        List<Path> files = segmentFiles();
+        if (files.isEmpty()) {
+            openSegment(afterLsn + 1, this.segmentBytes);
+            this.lastLsn = afterLsn;
+            this.recoveredLsn = afterLsn;
+            this.durableLsn = afterLsn;
+            return;
+        }
+
+        boolean first = true;
+        for (int i = 0; i < files.size(); i++) {
+            boolean last = i == files.size() - 1;
+            Path file = files.get(i);
+            if (!last && firstLsn(files.get(i + 1)) <= afterLsn + 1) {
+                // Everything in here is already in the snapshot
+                this.lastLsn = firstLsn(files.get(i + 1)) - 1;
+                continue;
+            }
+            if (first && firstLsn(file) > afterLsn + 1) {
+                throw new IllegalStateException("Journal starts at LSN " + firstLsn(file)
+                        + " but the snapshot only goes up to " + afterLsn);
+            }
+            first = false;
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int end;
+            try {
+                end = scan(file, segment, last, afterLsn, replay);
+            } catch (RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (last) {
+                // Keep appending where the intact records end
+                this.channel = channel;
+                this.segment = segment;
+                this.position = end;
+            } else {
+                channel.close();
+            }
+        }
+        this.segments = files.size();
+        if (this.lastLsn < afterLsn) {
+            // The snapshot is ahead of what survived in the log; carry on from
+            // the snapshot in a fresh segment so LSNs stay contiguous per segment
+            this.lastLsn = afterLsn;
+            rotate();
+        }
+        this.recoveredLsn = this.lastLsn;
+        this.durableLsn = this.lastLsn;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> listing = Files.list(this.dir)) {
+            return new ArrayList<>(listing.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList());
+        }
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /** Replays one segment and returns the offset just past its last intact record. */
+    private int scan(Path file, MappedByteBuffer segment, boolean last, long afterLsn, Replay replay) {
+        int pos = 0;
+        while (pos + HEADER <= segment.capacity()) {
+            int length = segment.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            String problem = check(segment, pos, length);
+            if (problem != null) {
+                if (!last) {
+                    throw new IllegalStateException("Journal segment " + file + " is corrupt at offset " + pos
+                            + ": " + problem);
+                }
+                System.err.println("Discarding journal tail of " + file + " from offset " + pos + ": " + problem);
+                for (int i = pos; i < segment.capacity(); i++) {
+                    segment.put(i, (byte) 0);
+                }
+                segment.force();
+                break;
+            }
+            long lsn = segment.getLong(pos + HEADER);
+            byte type = segment.get(pos + HEADER + 8);
+            if (lsn > afterLsn) {
+                replay.apply(lsn, type, segment.slice(pos + HEADER + BODY_FIXED, length - BODY_FIXED));
+                this.replayed++;
+            }
+            this.lastLsn = lsn;
+            pos += HEADER + length;
+        }
+        return pos;
+    }
+
+    private String check(MappedByteBuffer segment, int pos, int length) {
+        if (length < BODY_FIXED || pos + HEADER + length > segment.capacity()) {
+            return "bad length " + length;
+        }
+        byte[] body = new byte[length];
+        segment.get(pos + HEADER, body);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        if ((int) crc.getValue() != segment.getInt(pos + 4)) {
+            return "checksum mismatch";
+        }
+        long lsn = segment.getLong(pos + HEADER);
+        if (this.lastLsn != 0 && lsn != this.lastLsn + 1) {
+            return "expected LSN " + (this.lastLsn + 1) + " but found " + lsn;
+        }
+        return null;
+    }
+
+    // ===== LIFECYCLE =====
+
+    public Map<String, Object> stats() {
+        this.lock.lock();
+        try {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("lastLsn", this.lastLsn);
+            stats.put("durableLsn", this.durableLsn);
+            stats.put("flushes", this.flushes);
+            stats.put("meanGroup", this.flushes == 0 ? 0.0 : (double) (this.lastLsn - this.recoveredLsn) / this.flushes);
+            stats.put("segments", this.segments);
+            stats.put("replayed", this.replayed);
+            return stats;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Flushes whatever is pending and closes the current segment. */
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.flushNeeded.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        try {
+            this.flusher.join();
+            this.channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
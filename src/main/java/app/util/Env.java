@@ -0,0 +1,22 @@
+package app.util;
+
+/**
+ * Settings read from the environment. A variable that is unset, empty or not
+ * a number falls back to its default, so a typo cannot stop the service from
+ * starting; an invalid value is reported on stderr.
+ */
+public class Env {
+
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + name + "=" + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
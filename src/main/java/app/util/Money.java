@@ -0,0 +1,123 @@
+package app.util;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Balances and amounts are longs counting whole paise (1/100 of a rupee)
+ * everywhere: in the models, in Redis, in the journal and in arithmetic.
+ * Rupees only appear as text, at the JSON boundary, where they are parsed and
+ * formatted exactly without going through a double or a BigDecimal.
+ */
+public class Money {
+    public static final int MINOR_PER_MAJOR = 100;
+    private static final int FRACTION_DIGITS = 2;
+
+    /**
+     * Parses a rupee amount such as "10", "10.5" or "-0.25" into paise.
+     * Throws NumberFormatException if the text is not a number, has a non-zero
+     * digit past the paise, or does not fit in a long.
+     */
+    public static long parse(String text) {
+        if (text == null || text.isEmpty()) {
+            throw new NumberFormatException("Empty amount");
+        }
+        int i = 0;
+        boolean negative = text.charAt(0) == '-';
+        if (negative || text.charAt(0) == '+') {
+            i++;
+        }
+        // Accumulated negatively, like Long.parseLong, so Long.MIN_VALUE fits
+        long minor = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            if (c == 'e' || c == 'E') {
+                return parseScientific(text);
+            }
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Invalid amount: " + text);
+            }
+            digits++;
+            if (fraction >= 0 && ++fraction > FRACTION_DIGITS) {
+                if (c != '0') {
+                    throw new NumberFormatException("Amount has more than " + FRACTION_DIGITS + " decimals: " + text);
+                }
+                continue;
+            }
+            minor = minorDigit(minor, c - '0', text);
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+        for (int f = Math.max(fraction, 0); f < FRACTION_DIGITS; f++) {
+            minor = minorDigit(minor, 0, text);
+        }
+        if (!negative) {
+            if (minor == Long.MIN_VALUE) {
+                throw new NumberFormatException("Amount out of range: " + text);
+            }
+            minor = -minor;
+        }
+        return minor;
+    }
+
+    private static long minorDigit(long minor, int digit, String text) {
+        try {
+            return Math.subtractExact(Math.multiplyExact(minor, 10), digit);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    // Rare (1E+3 style, as some clients and old data write large doubles)
+    private static long parseScientific(String text) {
+        try {
+            return new BigDecimal(text).movePointRight(FRACTION_DIGITS).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range or has more than " + FRACTION_DIGITS
+                    + " decimals: " + text);
+        }
+    }
+
+    /**
+     * Like parse, but rounds anything past the paise half-up instead of
+     * rejecting it. Only for data written while balances were doubles.
+     */
+    public static long parseRounded(String text) {
+        try {
+            return parse(text);
+        } catch (NumberFormatException e) {
+            try {
+                return new BigDecimal(text).setScale(FRACTION_DIGITS, RoundingMode.HALF_UP).unscaledValue()
+                        .longValueExact();
+            } catch (ArithmeticException | NumberFormatException rounded) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Formats paise as rupees with exactly two decimals, e.g. 1025 as "10.25"
+     * and -5 as "-0.05"; valid as a JSON number.
+     */
+    public static String format(long minor) {
+        StringBuilder text = new StringBuilder(24);
+        if (minor < 0) {
+            text.append('-');
+        }
+        // Math.abs would overflow on Long.MIN_VALUE; the remainder's sign is that of minor
+        long major = Math.abs(minor / MINOR_PER_MAJOR);
+        int paise = (int) Math.abs(minor % MINOR_PER_MAJOR);
+        text.append(major).append('.');
+        if (paise < 10) {
+            text.append('0');
+        }
+        return text.append(paise).toString();
+    }
+}
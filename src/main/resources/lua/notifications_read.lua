@@ -0,0 +1,21 @@
+-- Moves a user's read cursor forward, never back and never past the last
+-- notification.
+--
+-- KEYS[1] inbox meta hash
+-- ARGV[1] sequence number read up to, or '' for everything
+--
+-- Returns {lastSeq, readSeq}.
+
+local meta = redis.call('HMGET', KEYS[1], 'seq', 'read')
+local last = tonumber(meta[1]) or 0
+local read = tonumber(meta[2]) or 0
+
+local upTo = last
+if ARGV[1] ~= '' then
+  upTo = math.min(tonumber(ARGV[1]), last)
+end
+if upTo > read then
+  redis.call('HSET', KEYS[1], 'read', upTo)
+  read = upTo
+end
+return {last, read}
@@ -0,0 +1,20 @@
+-- Notifications newer than a sequence number, read together with the inbox
+-- state so a push landing in between cannot shift the window.
+--
+-- KEYS[1] inbox list   KEYS[2] inbox meta hash
+-- ARGV[1] since (last sequence number the client has seen)
+--
+-- Returns {lastSeq, readSeq, {notificationJson, ...}}, newest first.
+
+local meta = redis.call('HMGET', KEYS[2], 'seq', 'read')
+local last = tonumber(meta[1]) or 0
+local read = tonumber(meta[2]) or 0
+local since = tonumber(ARGV[1])
+
+-- Sequence numbers are consecutive and the list is newest first, so the
+-- notifications after `since` are exactly the first last - since entries
+local items = {}
+if last > since then
+  items = redis.call('LRANGE', KEYS[1], 0, last - since - 1)
+end
+return {last, read, items}
@@ -0,0 +1,27 @@
+-- Pushes one notification onto a user's inbox with the next sequence number,
+-- then moves anything past the cap to the archive stream (oldest first) and
+-- trims the list.
+--
+-- KEYS[1] inbox list   KEYS[2] inbox meta   KEYS[3] archive stream
+-- ARGV[1] message      ARGV[2] timestamp
+-- ARGV[3] inbox cap    ARGV[4] archive cap
+--
+-- Returns the notification's sequence number.
+
+local CAP = tonumber(ARGV[3])
+
+local seq = redis.call('HINCRBY', KEYS[2], 'seq', 1)
+redis.call('LPUSH', KEYS[1], cjson.encode({
+  seq = seq,
+  message = ARGV[1],
+  timestamp = ARGV[2]
+}))
+local overflow = redis.call('LRANGE', KEYS[1], CAP, -1)
+if #overflow > 0 then
+  for i = #overflow, 1, -1 do
+    redis.call('XADD', KEYS[3], 'MAXLEN', '~', ARGV[4], '*', 'n', overflow[i])
+  end
+  redis.call('LTRIM', KEYS[1], 0, CAP - 1)
+end
+
+return seq
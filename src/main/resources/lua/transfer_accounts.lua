@@ -0,0 +1,113 @@
+-- Moves money between two bank accounts in one atomic step.
+--
+-- Each account lives in its owner's slot, and the caller looks the owners up
+-- in the account directory first, so every key is declared here.
+--
+-- KEYS[1] sender account hash   KEYS[2] receiver account hash
+-- KEYS[3] sender owner txn hash     KEYS[4] receiver owner txn hash
+-- KEYS[5] sender owner txn index    KEYS[6] receiver owner txn index
+-- KEYS[7] sender owner totals       KEYS[8] receiver owner totals
+-- KEYS[9] sender owner day rollup    KEYS[10] sender owner month rollup
+-- KEYS[11] receiver owner day rollup KEYS[12] receiver owner month rollup
+-- ARGV[1] fromAccountId  ARGV[2] toAccountId  ARGV[3] amount (minor units)
+-- ARGV[4] txnId          ARGV[5] timestamp    ARGV[6] score (epoch millis)
+-- ARGV[7] cache invalidation channel
+-- ARGV[8] sender owner   ARGV[9] receiver owner
+--
+-- Returns {status} on failure, {'OK', transactionJson}, or
+-- {'DONE', transactionJson} when the sender already made a transfer with
+-- ARGV[4]. DUPLICATE_ID is the failure when another transfer in either
+-- party's history has that id. Notifications are left to the caller.
+
+-- Adds one side of a transfer to a day or month rollup of the user's report
+local function rollup(key, side, amount, peer)
+  redis.call('HINCRBY', key, side .. 'Minor', amount)
+  redis.call('HINCRBY', key, side .. 'Count', 1)
+  redis.call('HINCRBY', key, 'peer:' .. peer, amount)
+  redis.call('HINCRBY', key, 'peerCount:' .. peer, 1)
+end
+
+-- Amounts stay digit strings: a Lua number is a double, which HINCRBY would
+-- get as "1e+14" and cjson would round to 14 significant digits
+
+-- Whether a balance covers an amount, both whole paise as text
+local function covers(balance, amount)
+  if balance:sub(1, 1) == '-' then
+    return false
+  end
+  if #balance ~= #amount then
+    return #balance > #amount
+  end
+  return balance >= amount
+end
+
+-- Transaction JSON with the amount in rupees, exactly two decimals as the API writes them
+local function encode(fields, amount)
+  local padded = string.rep('0', 3 - #amount) .. amount
+  local json = cjson.encode(fields)
+  return json:sub(1, -2) .. ',"amount":' .. padded:sub(1, -3) .. '.' .. padded:sub(-2) .. '}'
+end
+
+local fromId, toId = ARGV[1], ARGV[2]
+local amount = ARGV[3]
+
+-- The transaction id doubles as an idempotency key: a retry of a transfer
+-- that already went through gets the stored record back. An id is unique
+-- across both sides of a user's history, so one this user received, or one
+-- the receiver already holds, belongs to another transfer
+local done = redis.call('HGET', KEYS[3], ARGV[4])
+if done then
+  if cjson.decode(done).fromUserId == ARGV[8] then
+    return {'DONE', done}
+  end
+  return {'DUPLICATE_ID'}
+end
+if ARGV[8] ~= ARGV[9] and redis.call('HEXISTS', KEYS[4], ARGV[4]) == 1 then
+  return {'DUPLICATE_ID'}
+end
+
+local balance = redis.call('HGET', KEYS[1], 'balance')
+if not balance then
+  return {'SENDER_NOT_FOUND'}
+end
+if redis.call('EXISTS', KEYS[2]) == 0 then
+  return {'RECEIVER_NOT_FOUND'}
+end
+if not covers(balance, amount) then
+  return {'INSUFFICIENT_BALANCE'}
+end
+
+if fromId ~= toId then
+  -- Receiver first: a balance that would overflow fails the script before anything is written
+  redis.call('HINCRBY', KEYS[2], 'balance', amount)
+  redis.call('HINCRBY', KEYS[1], 'balance', '-' .. amount)
+  redis.call('PUBLISH', ARGV[7], 'account:' .. fromId)
+  redis.call('PUBLISH', ARGV[7], 'account:' .. toId)
+end
+
+local fromUserId, toUserId = ARGV[8], ARGV[9]
+local txn = encode({
+  id = ARGV[4],
+  fromAccountId = fromId,
+  toAccountId = toId,
+  fromUserId = fromUserId,
+  toUserId = toUserId,
+  timestamp = ARGV[5],
+  status = 'completed'
+}, amount)
+redis.call('HSET', KEYS[3], ARGV[4], txn)
+redis.call('ZADD', KEYS[5], ARGV[6], ARGV[4])
+redis.call('HINCRBY', KEYS[7], 'sentMinor', amount)
+redis.call('HINCRBY', KEYS[7], 'totalTransactions', 1)
+rollup(KEYS[9], 'sent', amount, ARGV[9])
+rollup(KEYS[10], 'sent', amount, ARGV[9])
+if fromUserId ~= toUserId then
+  redis.call('HSET', KEYS[4], ARGV[4], txn)
+  redis.call('ZADD', KEYS[6], ARGV[6], ARGV[4])
+  redis.call('HINCRBY', KEYS[8], 'receivedMinor', amount)
+  redis.call('HINCRBY', KEYS[8], 'totalTransactions', 1)
+  rollup(KEYS[11], 'received', amount, ARGV[8])
+  rollup(KEYS[12], 'received', amount, ARGV[8])
+end
+
+return {'OK', txn}
@@ -0,0 +1,67 @@
+-- Phase two of a cross-slot transfer, on the receiver's slot: credits the
+-- receiver and records its side of the transaction, unless the transfer has
+-- been aborted here first. Either the credit or the abort marker exists,
+-- never both, which is what decides how transfer_finish.lua settles it.
+--
+-- KEYS[1] receiver hash (user or account)
+-- KEYS[2] abort marker
+-- KEYS[3] receiver (owner) txn hash   KEYS[4] receiver (owner) txn index
+-- KEYS[5] receiver (owner) totals
+-- KEYS[6] receiver (owner) day rollup   KEYS[7] receiver (owner) month rollup
+-- ARGV[1] kind: user or account
+-- ARGV[2] receiver id      ARGV[3] amount (minor units)
+-- ARGV[4] txnId            ARGV[5] transactionJson
+-- ARGV[6] score (epoch millis)
+-- ARGV[7] cache invalidation channel
+-- ARGV[8] seconds an abort marker is kept
+-- ARGV[9] sender (owner) user id
+--
+-- Returns {'OK'} (also if already credited) or the failure status held in
+-- the abort marker: ABORTED when the recovery sweeper fenced the transfer
+-- off, RECEIVER_NOT_FOUND when there was no receiver, DUPLICATE_ID when the
+-- receiver already holds another transfer with this id. The latter two are
+-- only returned after leaving that marker, so a retry cannot credit a
+-- receiver created in the meantime.
+
+-- Adds one side of a transfer to a day or month rollup of the user's report
+local function rollup(key, side, amount, peer)
+  redis.call('HINCRBY', key, side .. 'Minor', amount)
+  redis.call('HINCRBY', key, side .. 'Count', 1)
+  redis.call('HINCRBY', key, 'peer:' .. peer, amount)
+  redis.call('HINCRBY', key, 'peerCount:' .. peer, 1)
+end
+
+local kind = ARGV[1]
+-- Kept as text, which HINCRBY takes exactly
+local amount = ARGV[3]
+
+-- The receiver's copy of this transfer means it was credited; another
+-- transfer with the same id, from someone else, means it never can be
+local held = redis.call('HGET', KEYS[3], ARGV[4])
+if held and cjson.decode(held).fromUserId == ARGV[9] then
+  return {'OK'}
+end
+local aborted = redis.call('GET', KEYS[2])
+if aborted then
+  return {aborted}
+end
+if held then
+  redis.call('SET', KEYS[2], 'DUPLICATE_ID', 'EX', ARGV[8])
+  return {'DUPLICATE_ID'}
+end
+if redis.call('EXISTS', KEYS[1]) == 0 then
+  redis.call('SET', KEYS[2], 'RECEIVER_NOT_FOUND', 'EX', ARGV[8])
+  return {'RECEIVER_NOT_FOUND'}
+end
+
+redis.call('HINCRBY', KEYS[1], 'balance', amount)
+redis.call('PUBLISH', ARGV[7], kind .. ':' .. ARGV[2])
+
+redis.call('HSET', KEYS[3], ARGV[4], ARGV[5])
+redis.call('ZADD', KEYS[4], ARGV[6], ARGV[4])
+redis.call('HINCRBY', KEYS[5], 'receivedMinor', amount)
+redis.call('HINCRBY', KEYS[5], 'totalTransactions', 1)
+rollup(KEYS[6], 'received', amount, ARGV[9])
+rollup(KEYS[7], 'received', amount, ARGV[9])
+
+return {'OK'}
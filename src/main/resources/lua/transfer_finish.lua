@@ -0,0 +1,72 @@
+-- Last phase of a cross-slot transfer, on the sender's slot: settles the
+-- PENDING reservation. SUCCESS (the receiver was credited) records the
+-- sender's side of the transaction; FAILED (the receiver refused or was
+-- fenced off) refunds the sender. Reservations that are already settled are
+-- left alone, so retries and the recovery sweeper can both call this.
+--
+-- KEYS[1] sender hash (user or account)
+-- KEYS[2] reservation hash
+-- KEYS[3] sender (owner) txn hash   KEYS[4] sender (owner) txn index
+-- KEYS[5] sender (owner) totals
+-- KEYS[6] sender (owner) day rollup   KEYS[7] sender (owner) month rollup
+-- ARGV[1] SUCCESS or FAILED   ARGV[2] failure status
+-- ARGV[3] txnId
+-- ARGV[4] cache invalidation channel
+-- ARGV[5] seconds a settled reservation is kept
+--
+-- Returns {'SETTLED', transactionJson} when this call settled the transfer as
+-- SUCCESS, {'SUCCESS', transactionJson} when an earlier one did, or
+-- {'FAILED', status}. Notifications are left to the caller. With no
+-- reservation at all (it never got made, or expired after settling) FAILED
+-- leaves a FAILED one behind, so a late reserve for the same id is refused.
+
+-- Adds one side of a transfer to a day or month rollup of the user's report
+local function rollup(key, side, amount, peer)
+  redis.call('HINCRBY', key, side .. 'Minor', amount)
+  redis.call('HINCRBY', key, side .. 'Count', 1)
+  redis.call('HINCRBY', key, 'peer:' .. peer, amount)
+  redis.call('HINCRBY', key, 'peerCount:' .. peer, 1)
+end
+
+local KEEP = ARGV[5]
+
+local r = redis.call('HMGET', KEYS[2], 'state', 'kind', 'from', 'amount', 'txn', 'score', 'reason', 'toUserId')
+local state, kind, fromId = r[1], r[2], r[3]
+-- The amount is kept as text, which HINCRBY takes exactly
+local amount, txn, score, reason, toUserId = r[4], r[5], r[6], r[7], r[8]
+
+if not state then
+  local done = redis.call('HGET', KEYS[3], ARGV[3])
+  if done then
+    return {'SUCCESS', done}
+  end
+  if ARGV[1] ~= 'FAILED' then
+    return redis.error_reply('No reservation for transfer ' .. ARGV[3])
+  end
+  redis.call('HSET', KEYS[2], 'state', 'FAILED', 'reason', ARGV[2])
+  redis.call('EXPIRE', KEYS[2], KEEP)
+  return {'FAILED', ARGV[2]}
+end
+if state == 'SUCCESS' then
+  return {'SUCCESS', txn}
+elseif state == 'FAILED' then
+  return {'FAILED', reason}
+end
+
+if ARGV[1] == 'SUCCESS' then
+  redis.call('HSET', KEYS[3], ARGV[3], txn)
+  redis.call('ZADD', KEYS[4], score, ARGV[3])
+  redis.call('HINCRBY', KEYS[5], 'sentMinor', amount)
+  redis.call('HINCRBY', KEYS[5], 'totalTransactions', 1)
+  rollup(KEYS[6], 'sent', amount, toUserId)
+  rollup(KEYS[7], 'sent', amount, toUserId)
+  redis.call('HSET', KEYS[2], 'state', 'SUCCESS')
+  redis.call('EXPIRE', KEYS[2], KEEP)
+  return {'SETTLED', txn}
+end
+
+redis.call('HINCRBY', KEYS[1], 'balance', amount)
+redis.call('PUBLISH', ARGV[4], kind .. ':' .. fromId)
+redis.call('HSET', KEYS[2], 'state', 'FAILED', 'reason', ARGV[2])
+redis.call('EXPIRE', KEYS[2], KEEP)
+return {'FAILED', ARGV[2]}
@@ -0,0 +1,99 @@
+-- Phase one of a transfer whose parties live in different cluster slots:
+-- debits the sender and records a PENDING reservation next to it. The
+-- receiver is credited by transfer_credit.lua on its own slot, then
+-- transfer_finish.lua settles the reservation as SUCCESS or FAILED.
+--
+-- KEYS[1] sender hash (user or account)
+-- KEYS[2] reservation hash
+-- KEYS[3] sender (owner) txn hash
+-- ARGV[1] kind: user or account
+-- ARGV[2] sender id     ARGV[3] receiver id
+-- ARGV[4] sender owner  ARGV[5] receiver owner
+-- ARGV[6] amount (minor units)
+-- ARGV[7] txnId         ARGV[8] timestamp  ARGV[9] score (epoch millis)
+-- ARGV[10] cache invalidation channel
+--
+-- Returns {'PENDING', transactionJson} once reserved, {'DONE', transactionJson}
+-- if the transfer already went through, {'RESUME'} if an earlier attempt left
+-- it PENDING, or {status} if it failed, now or in an earlier attempt.
+
+-- Amounts stay digit strings: a Lua number is a double, which HINCRBY would
+-- get as "1e+14" and cjson would round to 14 significant digits
+
+-- Whether a balance covers an amount, both whole paise as text
+local function covers(balance, amount)
+  if balance:sub(1, 1) == '-' then
+    return false
+  end
+  if #balance ~= #amount then
+    return #balance > #amount
+  end
+  return balance >= amount
+end
+
+-- Transaction JSON with the amount in rupees, exactly two decimals as the API writes them
+local function encode(fields, amount)
+  local padded = string.rep('0', 3 - #amount) .. amount
+  local json = cjson.encode(fields)
+  return json:sub(1, -2) .. ',"amount":' .. padded:sub(1, -3) .. '.' .. padded:sub(-2) .. '}'
+end
+
+local kind = ARGV[1]
+local fromId, toId = ARGV[2], ARGV[3]
+local fromUserId, toUserId = ARGV[4], ARGV[5]
+local amount = ARGV[6]
+
+-- An id this user received belongs to another transfer
+local done = redis.call('HGET', KEYS[3], ARGV[7])
+if done then
+  if cjson.decode(done).fromUserId == fromUserId then
+    return {'DONE', done}
+  end
+  return {'DUPLICATE_ID'}
+end
+
+local state = redis.call('HMGET', KEYS[2], 'state', 'txn', 'reason')
+if state[1] == 'SUCCESS' then
+  return {'DONE', state[2]}
+elseif state[1] == 'FAILED' then
+  return {state[3]}
+elseif state[1] == 'PENDING' then
+  return {'RESUME'}
+end
+
+local balance = redis.call('HGET', KEYS[1], 'balance')
+if not balance then
+  return {'SENDER_NOT_FOUND'}
+end
+if not covers(balance, amount) then
+  return {'INSUFFICIENT_BALANCE'}
+end
+
+local fields = {
+  id = ARGV[7],
+  fromUserId = fromUserId,
+  toUserId = toUserId,
+  timestamp = ARGV[8],
+  status = 'completed'
+}
+if kind == 'account' then
+  fields.fromAccountId = fromId
+  fields.toAccountId = toId
+end
+local txn = encode(fields, amount)
+
+redis.call('HINCRBY', KEYS[1], 'balance', '-' .. amount)
+redis.call('PUBLISH', ARGV[10], kind .. ':' .. fromId)
+redis.call('HSET', KEYS[2],
+  'state', 'PENDING',
+  'kind', kind,
+  'from', fromId,
+  'to', toId,
+  'fromUserId', fromUserId,
+  'toUserId', toUserId,
+  'amount', ARGV[6],
+  'txn', txn,
+  'timestamp', ARGV[8],
+  'score', ARGV[9])
+
+return {'PENDING', txn}
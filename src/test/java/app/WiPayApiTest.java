@@ -0,0 +1,62 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import app.store.InMemoryLedgerStore;
+import io.javalin.Javalin;
+
+class WiPayApiTest {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Javalin app;
+
+    @BeforeEach
+    void start() {
+        this.app = WiPayApi.start(new InMemoryLedgerStore(4), 0);
+    }
+
+    @AfterEach
+    void stop() {
+        this.app.stop();
+    }
+
+    @Test
+    void badCreatedAtIsRejectedAs400() throws Exception {
+        HttpResponse<String> response = post("/api/users",
+                "{\"firstName\":\"Asha\",\"lastName\":\"Rao\",\"balance\":10,\"createdAt\":\"yesterday\"}");
+
+        assertEquals(400, response.statusCode());
+        assertTrue(response.body().contains("Invalid JSON"), response.body());
+    }
+
+    @Test
+    void badTimestampIsRejectedAs400() throws Exception {
+        post("/api/users", "{\"firstName\":\"Asha\",\"lastName\":\"Rao\",\"balance\":10}");
+        post("/api/users", "{\"firstName\":\"Ravi\",\"lastName\":\"Kumar\",\"balance\":0}");
+
+        HttpResponse<String> response = post("/api/transfer", "{\"fromUserId\":\"asha@wipay\","
+                + "\"toUserId\":\"ravi@wipay\",\"amount\":1,\"timestamp\":\"2025-13-45T99:00:00\"}");
+
+        assertEquals(400, response.statusCode());
+        assertTrue(response.body().contains("Invalid JSON"), response.body());
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + this.app.port() + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return this.client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
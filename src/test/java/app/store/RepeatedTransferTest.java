@@ -0,0 +1,103 @@
+package app.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import app.cache.EntityCache;
+import app.model.Account;
+import app.model.Bank;
+import app.model.User;
+import app.redis.RedisPool;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPooled;
+import redis.embedded.RedisServer;
+
+/**
+ * A transfer sent again with its transaction id returns the original
+ * transaction, flagged as repeated so it is not counted as a new one, on
+ * both stores alike.
+ */
+class RepeatedTransferTest {
+
+    @Test
+    void inMemoryStoreReportsRepeatedTransfers() {
+        try (InMemoryLedgerStore store = new InMemoryLedgerStore(4)) {
+            assertRepeats(store);
+        }
+    }
+
+    @Test
+    void redisStoreReportsRepeatedTransfers() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        RedisServer server = RedisServer.newRedisServer()
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        server.start();
+        try (JedisPooled redis = RedisPool.create(new HostAndPort("localhost", port),
+                DefaultJedisClientConfig.builder().build(), RedisPool.poolConfigFromEnv());
+                RedisLedgerStore store = new RedisLedgerStore(redis,
+                        new EntityCache(redis, 100, Duration.ofSeconds(30)))) {
+            assertRepeats(store);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void assertRepeats(LedgerStore store) {
+        createAccount(store, "asha@wipay", "acct-asha", 100_00);
+        createAccount(store, "ravi@wipay", "acct-ravi", 0);
+
+        TransferResult first = store.transferBetweenUsers("asha@wipay", "ravi@wipay", 10_00, "pay-1");
+        TransferResult again = store.transferBetweenUsers("asha@wipay", "ravi@wipay", 10_00, "pay-1");
+        assertTrue(first.isOk());
+        assertFalse(first.isRepeated());
+        assertTrue(again.isOk());
+        assertTrue(again.isRepeated());
+        assertEquals(first.getTransactionJson(), again.getTransactionJson());
+        assertEquals(90_00, store.user("asha@wipay").getBalanceMinor());
+
+        first = store.transferBetweenAccounts("acct-asha", "acct-ravi", 5_00, "pay-2");
+        again = store.transferBetweenAccounts("acct-asha", "acct-ravi", 5_00, "pay-2");
+        assertTrue(first.isOk());
+        assertFalse(first.isRepeated());
+        assertTrue(again.isOk());
+        assertTrue(again.isRepeated());
+        assertEquals(first.getTransactionJson(), again.getTransactionJson());
+        assertEquals(95_00, store.accountsOf("asha@wipay").get(0).getBalanceMinor());
+    }
+
+    private static void createAccount(LedgerStore store, String userId, String accountId, long balanceMinor) {
+        User user = new User();
+        user.setUserId(userId);
+        user.setFirstName(userId.substring(0, userId.indexOf('@')));
+        user.setLastName("Test");
+        user.setBalanceMinor(balanceMinor);
+        user.setCreatedAt(LocalDateTime.now());
+        store.createUser(user);
+
+        Bank bank = new Bank();
+        bank.setBankName("Test Bank");
+        Account account = new Account();
+        account.setAccountId(accountId);
+        account.setOwner(user);
+        account.setAccountNumber(accountId);
+        account.setBank(bank);
+        account.setBalanceMinor(balanceMinor);
+        account.setCreatedAt(LocalDateTime.now());
+        store.createAccount(account);
+    }
+}